@@ -10,11 +10,27 @@ import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.CallbackMode;
+import org.ws4d.coap.core.connection.OverloadPolicy;
+import org.ws4d.coap.core.connection.api.CoapChannelManager;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
 /**
  * CCoap
  * 
@@ -29,6 +45,8 @@ public class CCoap extends CordovaPlugin {
      */
     private static final String API_REQUEST = "request";
     private static final String API_DISCOVER = "discover";
+    private static final String API_IS_WRITABLE = "isWritable";
+    private static final String API_CONFIGURE = "configure";
 
     /**
      * Default values.
@@ -37,12 +55,88 @@ public class CCoap extends CordovaPlugin {
 
     private CCoapClient client;
 
+    /**
+     * Stops and restarts the CoAP stack in the order of the lifecycle events,
+     * off the UI thread. Closing the sockets joins their threads, which takes
+     * too long for the UI thread.
+     */
+    private final ExecutorService lifecycleExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The last stop or restart submitted to the lifecycle executor.
+     */
+    private volatile Future<?> pendingLifecycle;
+
+    private final Runnable stopStack = new Runnable() {
+        @Override
+        public void run() {
+            BasicCoapChannelManager.getInstance().stop();
+        }
+    };
+
+    private final Runnable startStack = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                BasicCoapChannelManager.getInstance().start();
+            } catch (IOException e) {
+                // Requests fail with CONNECTION_FAILED until the next resume.
+                Log.e("CCoap", "Failed to restart the CoAP stack", e);
+            }
+        }
+    };
+
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
         this.client = new CCoapClient();
     }
 
+    /**
+     * Stop the CoAP stack while the app is in background, so no threads keep
+     * running. Pending requests fail. The stack is stopped asynchronously.
+     */
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        this.pendingLifecycle = this.lifecycleExecutor.submit(this.stopStack);
+    }
+
+    /**
+     * Restart the CoAP stack stopped by {@link #onPause(boolean)}, after the
+     * stop finished. The stack is restarted asynchronously.
+     */
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        this.pendingLifecycle = this.lifecycleExecutor.submit(this.startStack);
+    }
+
+    @Override
+    public void onDestroy() {
+        this.pendingLifecycle = this.lifecycleExecutor.submit(this.stopStack);
+        this.lifecycleExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Wait until the last stop or restart of the CoAP stack finished, so a
+     * request right after a resume does not find the stack stopped.
+     */
+    private void awaitLifecycle() {
+        Future<?> pending = this.pendingLifecycle;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e("CCoap", "Failed to stop or restart the CoAP stack", e);
+        }
+    }
+
     /**
      * Decode and execute native function.
      * 
@@ -55,10 +149,16 @@ public class CCoap extends CordovaPlugin {
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
 
+        awaitLifecycle();
+
         if (action.equals(API_REQUEST)) {
             return this.request(args, callbackContext);
         } else if (action.equals(API_DISCOVER)) {
             return this.discover(args, callbackContext);
+        } else if (action.equals(API_IS_WRITABLE)) {
+            return this.isWritable(callbackContext);
+        } else if (action.equals(API_CONFIGURE)) {
+            return this.configure(args, callbackContext);
         } else {
             callbackContext.error(CCoapUtils.getErrorObject(CCoapError.INVALID_ACTION, "Invalid action"));
         }
@@ -119,4 +219,121 @@ public class CCoap extends CordovaPlugin {
 
         return true;
     }
+
+    /**
+     * Report whether new requests can be queued for sending.
+     * 
+     * Resolves to false while the outbound queue is full. Requests sent meanwhile
+     * are rejected with error code SEND_QUEUE_FULL.
+     * 
+     * @param callbackContext Javascript's callback.
+     * @return Always true.
+     */
+    private boolean isWritable(CallbackContext callbackContext) {
+        final boolean writable = BasicCoapChannelManager.getInstance().isWritable();
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, writable));
+        return true;
+    }
+
+    /**
+     * Change the network parameters of the CoAP stack.
+     * 
+     * Only the given keys are changed, all others keep their current value.
+     * Timeouts are given in milliseconds and block sizes in bytes.
+     * 
+     * @param args            Array with the configuration object within.
+     * @param callbackContext Javascript's callback.
+     * @return True on success, false on error.
+     */
+    private boolean configure(JSONArray args, CallbackContext callbackContext) {
+        final CoapChannelManager manager = BasicCoapChannelManager.getInstance();
+        final NetworkConfig config = new NetworkConfig(manager.getNetworkConfig());
+
+        try {
+            final JSONObject cfg = args.getJSONObject(0);
+
+            if (cfg.has("ackTimeout")) {
+                config.setAckTimeout(cfg.getInt("ackTimeout"));
+            }
+            if (cfg.has("ackRandomFactor")) {
+                config.setAckRandomFactor(cfg.getDouble("ackRandomFactor"));
+            }
+            if (cfg.has("maxRetransmit")) {
+                config.setMaxRetransmit(cfg.getInt("maxRetransmit"));
+            }
+            if (cfg.has("nstart")) {
+                config.setNstart(cfg.getInt("nstart"));
+            }
+            if (cfg.has("probingRate")) {
+                config.setProbingRate(cfg.getDouble("probingRate"));
+            }
+            if (cfg.has("minRto") || cfg.has("maxRto")) {
+                int minRto = cfg.has("minRto") ? cfg.getInt("minRto") : config.getMinRto();
+                int maxRto = cfg.has("maxRto") ? cfg.getInt("maxRto") : config.getMaxRto();
+                config.setRtoBounds(minRto, maxRto);
+            }
+            if (cfg.has("exchangeLifetime")) {
+                config.setExchangeLifetime(cfg.getInt("exchangeLifetime"));
+            }
+            if (cfg.has("maxDatagramSize")) {
+                config.setMaxDatagramSize(cfg.getInt("maxDatagramSize"));
+            }
+            if (cfg.has("receiveBufferSize")) {
+                config.setReceiveBufferSize(cfg.getInt("receiveBufferSize"));
+            }
+            if (cfg.has("sendBufferSize")) {
+                config.setSendBufferSize(cfg.getInt("sendBufferSize"));
+            }
+            if (cfg.has("receiveBatchBudget")) {
+                config.setReceiveBatchBudget(cfg.getInt("receiveBatchBudget"));
+            }
+            if (cfg.has("outboundQueueSize")) {
+                config.setOutboundQueueSize(cfg.getInt("outboundQueueSize"));
+            }
+            if (cfg.has("overloadPolicy")) {
+                config.setOverloadPolicy(OverloadPolicy.valueOf(cfg.getString("overloadPolicy").toUpperCase()));
+            }
+            if (cfg.has("dispatchThreads")) {
+                config.setDispatchThreads(cfg.getInt("dispatchThreads"));
+            }
+            if (cfg.has("dispatchQueueSize")) {
+                config.setDispatchQueueSize(cfg.getInt("dispatchQueueSize"));
+            }
+            if (cfg.has("deduplicationCapacity")) {
+                config.setDeduplicationCapacity(cfg.getInt("deduplicationCapacity"));
+            }
+            if (cfg.has("callbackMode")) {
+                config.setCallbackMode(CallbackMode.valueOf(cfg.getString("callbackMode").toUpperCase()));
+            }
+            if (cfg.has("maxReceiveBlockSize")) {
+                config.setMaxReceiveBlocksize(getBlockSize(cfg.getInt("maxReceiveBlockSize")));
+            }
+            if (cfg.has("maxSendBlockSize")) {
+                config.setMaxSendBlocksize(getBlockSize(cfg.getInt("maxSendBlockSize")));
+            }
+
+            manager.setNetworkConfig(config);
+        } catch (JSONException e) {
+            callbackContext.error(CCoapUtils.getErrorObject(CCoapError.INVALID_ARGUMENT, "Invalid argument"));
+            return false;
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(CCoapUtils.getErrorObject(CCoapError.INVALID_ARGUMENT, e.getMessage()));
+            return false;
+        }
+
+        callbackContext.success();
+        return true;
+    }
+
+    /**
+     * Map a block size in bytes to its {@link CoapBlockSize}.
+     */
+    private static CoapBlockSize getBlockSize(int size) {
+        for (CoapBlockSize blockSize : CoapBlockSize.values()) {
+            if (blockSize != CoapBlockSize.UNKNOWN && blockSize.getSize() == size) {
+                return blockSize;
+            }
+        }
+        throw new IllegalArgumentException("Invalid block size: " + size);
+    }
 }
@@ -9,6 +9,7 @@ import cordova.plugin.ccoap.CCoapUtils;
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.CoapConstants;
 import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.TokenKey;
 import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
@@ -45,7 +46,11 @@ import android.util.Log;
  */
 public class CCoapClient implements CoapClient {
 
-    private HashMap<CoapClientChannel, CallbackContext> callbackMap = new HashMap<CoapClientChannel, CallbackContext>();
+    /**
+     * Javascript callbacks of the pending requests, by request token. Requests to
+     * the same server share one channel.
+     */
+    private HashMap<TokenKey, CallbackContext> callbackMap = new HashMap<TokenKey, CallbackContext>();
     private Random tokenGenerator = null;
 
     /**
@@ -55,7 +60,8 @@ public class CCoapClient implements CoapClient {
      * @param callbackContext Javascript received and error callbacks.
      * @throws CCoapException Thrown at any error {@link CCoapException}.
      */
-    public void request(final JSONObject req, final CallbackContext callbackContext) throws CCoapException {
+    public synchronized void request(final JSONObject req, final CallbackContext callbackContext)
+            throws CCoapException {
 
         Log.v("CCoap", "Request");
 
@@ -67,22 +73,38 @@ public class CCoapClient implements CoapClient {
             uri = createURI(req);
             channel = createChannel(uri);
             request = createRequest(uri, channel, req);
+            request.setToken(createToken(8));
             appendOptions(request, req);
             appendQuery(request, uri);
-            appendPayload(request, channel, req);
+            request = appendPayload(request, channel, req);
 
-            callbackMap.put(channel, callbackContext);
+            final TokenKey tokenKey = new TokenKey(request.getToken());
+            callbackMap.put(tokenKey, callbackContext);
 
-            channel.sendMessage(request);
+            try {
+                channel.sendMessage(request);
+            } catch (final IllegalStateException e) {
+                callbackMap.remove(tokenKey);
+                throw new CCoapException("Send queue is full", CCoapError.SEND_QUEUE_FULL, e);
+            }
         } catch (final CCoapException e) {
             if (null != channel) {
-                channel.close();
+                releaseChannel(channel);
             }
 
             throw e;
         }
     }
 
+    /**
+     * Close a channel once no request waits for a response on it.
+     */
+    private void releaseChannel(final CoapClientChannel channel) {
+        if (channel.getExchangeCount() == 0) {
+            channel.close();
+        }
+    }
+
     /**
      * Create a java URI object from the request json.
      * 
@@ -117,13 +139,52 @@ public class CCoapClient implements CoapClient {
             throw new CCoapException("Invalid server address", CCoapError.DESTINATION_IS_UNREACHABLE, e);
         }
 
-        final int port = uri.getPort();
+        // coaps:// URIs are sent over DTLS, coap+tcp:// URIs over TCP.
+        final boolean secure = "coaps".equalsIgnoreCase(uri.getScheme());
+        final boolean tcp = "coap+tcp".equalsIgnoreCase(uri.getScheme());
+
+        int port = uri.getPort();
+        if (-1 == port) {
+            port = secure ? CoapConstants.COAPS_DEFAULT_PORT : CoapConstants.COAP_DEFAULT_PORT;
+        }
 
         CoapClientChannel channel;
 
-        channel = manager.connect(this, addr, port);
-        channel.setMaxReceiveBlocksize(CoapBlockSize.BLOCK_1024);
-        channel.setMaxSendBlocksize(CoapBlockSize.BLOCK_1024);
+        if (secure) {
+            // The server certificate must match the host of the URI.
+            String host = uri.getHost();
+            if (host.startsWith("[")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            channel = manager.connectSecure(this, host, addr, port);
+        } else if (tcp) {
+            channel = manager.connectTcp(this, addr, port);
+        } else {
+            channel = manager.connect(this, addr, port);
+        }
+
+        if (null == channel) {
+            if (!manager.isRunning()) {
+                throw new CCoapException("CoAP stack is stopped", CCoapError.CONNECTION_FAILED);
+            }
+            if (secure) {
+                throw new CCoapException("DTLS is not available", CCoapError.CONNECTION_FAILED);
+            }
+            throw new CCoapException("Server is used by another client", CCoapError.CONNECTION_FAILED);
+        }
+
+        // TCP sends large payloads in a single message.
+        if (tcp) {
+            return channel;
+        }
+
+        // Block sizes configured through the network config take precedence.
+        if (null == channel.getMaxReceiveBlocksize()) {
+            channel.setMaxReceiveBlocksize(CoapBlockSize.BLOCK_1024);
+        }
+        if (null == channel.getMaxSendBlocksize()) {
+            channel.setMaxSendBlocksize(CoapBlockSize.BLOCK_1024);
+        }
 
         return channel;
     }
@@ -198,14 +259,22 @@ public class CCoapClient implements CoapClient {
         }
     }
 
-    private void appendPayload(CoapRequest request, CoapClientChannel channel, JSONObject req) throws CCoapException {
+    /**
+     * Append the payload to a {@link CoapRequest} object.
+     * 
+     * @return The request to send, the first block of a blockwise transfer for
+     *         large payloads.
+     * @throws CCoapException Thrown when the payload has an invalid format.
+     */
+    private CoapRequest appendPayload(CoapRequest request, CoapClientChannel channel, JSONObject req)
+            throws CCoapException {
 
         final boolean hasPayload = req.has("payload");
         final boolean isPostPut = (request.getRequestCode() == CoapRequestCode.PUT)
                 || (request.getRequestCode() == CoapRequestCode.POST);
 
         if ((hasPayload == false) || (isPostPut == false)) {
-            return;
+            return request;
         }
 
         CoapMediaType type = request.getContentType();
@@ -234,10 +303,12 @@ public class CCoapClient implements CoapClient {
 
         request.setPayload(data);
 
-        if (raw.length > 1024) {
+        if (null != channel.getMaxSendBlocksize() && raw.length > 1024) {
             Log.v("CCoap", "Init block1 transfer");
             request = channel.addBlockContext(request);
         }
+
+        return request;
     }
 
     /**
@@ -349,7 +420,8 @@ public class CCoapClient implements CoapClient {
     /**
      * Create a new message token with @p size bytes.
      * 
-     * TODO: Add token to request.
+     * The token matches the response with the request, so it must be unique among
+     * the pending requests.
      * 
      * @param size Length of the token.
      * @return New random token.
@@ -373,29 +445,49 @@ public class CCoapClient implements CoapClient {
      * If the server is not found, calls the javascript error callback with error
      * code DESTINATION_IS_UNREACHABLE. Else, informe the error.
      * 
-     * The client is closed after this call is executed.
+     * The client is closed after this call is executed, if no other request is
+     * pending on it.
      * 
      * @param channel       The {@link CoapClientChannel} where the error happened.
+     * @param request       The {@link CoapRequest} that failed.
      * @param notReachable  Indicates that the server is not within reach.
      * @param resetByServer The server sent a connection reset.
      */
     @Override
-    public void onConnectionFailed(final CoapClientChannel channel, final boolean notReachable,
-            final boolean resetByServer) {
-        Log.e("CCoap", "Connection Failed");
-
-        CallbackContext callback = callbackMap.get(channel);
-
-        if (notReachable) {
-            callback.error(
-                    CCoapUtils.getErrorObject(-1, CCoapError.DESTINATION_IS_UNREACHABLE, "Destination is unreachable"));
-        } else {
-            callback.error(CCoapUtils.getErrorObject(-1, CCoapError.CONNECTION_FAILED, "Connection Failed"));
+    public synchronized void onRequestFailed(final CoapClientChannel channel, final CoapRequest request,
+            final boolean notReachable, final boolean resetByServer) {
+        Log.e("CCoap", "Request Failed");
+
+        CallbackContext callback = callbackMap.remove(new TokenKey(request.getToken()));
+
+        if (null != callback) {
+            if (notReachable) {
+                callback.error(CCoapUtils.getErrorObject(-1, CCoapError.DESTINATION_IS_UNREACHABLE,
+                        "Destination is unreachable"));
+            } else {
+                callback.error(CCoapUtils.getErrorObject(-1, CCoapError.CONNECTION_FAILED, "Connection Failed"));
+            }
         }
 
-        callbackMap.remove(channel);
+        releaseChannel(channel);
+    }
 
-        channel.close();
+    /**
+     * Coap client callback on failures that cannot be assigned to a request.
+     * 
+     * The client is closed after this call is executed, if no other request is
+     * pending on it.
+     * 
+     * @param channel       The {@link CoapClientChannel} where the error happened.
+     * @param notReachable  Indicates that the server is not within reach.
+     * @param resetByServer The server sent a connection reset.
+     */
+    @Override
+    public synchronized void onConnectionFailed(final CoapClientChannel channel, final boolean notReachable,
+            final boolean resetByServer) {
+        Log.e("CCoap", "Connection Failed");
+
+        releaseChannel(channel);
     }
 
     /**
@@ -406,17 +498,23 @@ public class CCoapClient implements CoapClient {
      * 
      * On error, calls the javascript's error callback.
      * 
-     * This function closes the connection.
+     * This function closes the connection, if no other request is pending on it.
      * 
      * @param channel  The {@link CoapClientChannel} where the response arrived.
      * @param response The {@link CoapResponse} that was received.
      */
     @Override
-    public void onResponse(final CoapClientChannel channel, final CoapResponse response) {
+    public synchronized void onResponse(final CoapClientChannel channel, final CoapResponse response) {
 
         Log.v("CCoap", "Received");
 
-        CallbackContext callback = callbackMap.get(channel);
+        CallbackContext callback = callbackMap.remove(new TokenKey(response.getToken()));
+
+        if (null == callback) {
+            Log.w("CCoap", "No request for this response");
+            releaseChannel(channel);
+            return;
+        }
 
         try {
             final JSONObject jres = new JSONObject();
@@ -464,8 +562,7 @@ public class CCoapClient implements CoapClient {
         } catch (final JSONException e) {
             callback.error(CCoapUtils.getErrorObject(-1, CCoapError.UNKNOWN, "Cannot create response JSON"));
         } finally {
-            callbackMap.remove(channel);
-            channel.close();
+            releaseChannel(channel);
         }
     }
 
@@ -482,7 +579,6 @@ public class CCoapClient implements CoapClient {
 
         Log.v("CCoap", "Received Multicast");
 
-        callbackMap.remove(channel);
-        channel.close();
+        releaseChannel(channel);
     }
 }
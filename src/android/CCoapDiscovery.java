@@ -76,12 +76,10 @@ public class CCoapDiscovery implements CoapClient {
 
         channel = manager.connect(this, address, CoapConstants.COAP_DEFAULT_PORT);
 
-        // initialize the request
+        // initialize the request, it gets a new random token that matches the
+        // incoming unicast responses to this discovery only
         CoapRequest request = channel.createRequest(CoapRequestCode.GET, "/.well-known/core", false);
 
-        // add a token to match outgoing multicast message and incoming unicast messages
-        request.setToken("MCToken".getBytes());
-
         // send the request
         channel.sendMessage(request);
 
@@ -163,4 +161,21 @@ public class CCoapDiscovery implements CoapClient {
         callback.error(CCoapUtils.getErrorObject(-1, CCoapError.CONNECTION_FAILED, "Connection failed"));
     }
 
+    /**
+     * Coap client callback to handle failed requests.
+     * 
+     * Like {@link #onConnectionFailed}, this should never be called.
+     * 
+     * @param channel       - The {@link CoapClientChannel} where the request was
+     *                      sent.
+     * @param request       - The {@link CoapRequest} that failed.
+     * @param notReachable  - A flag to indicate that the server is not reachable
+     * @param resetByServer - A flag to indicate that the remote server made a reset
+     */
+    @Override
+    public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+            boolean resetByServer) {
+        onConnectionFailed(channel, notReachable, resetByServer);
+    }
+
 }
@@ -15,7 +15,8 @@ public enum CCoapError {
     INVALID_ACTION(4), /// Function call does not exist.
     CONNECTION_FAILED(5), /// Connection failed.
     DESTINATION_IS_UNREACHABLE(6), /// Destination is unreachable.
-    UNKNOWN(7); /// Unknown error.
+    UNKNOWN(7), /// Unknown error.
+    SEND_QUEUE_FULL(8); /// Outbound queue is full, retry later.
 
     private int code_;
 
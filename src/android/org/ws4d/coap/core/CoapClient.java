@@ -18,11 +18,16 @@ package org.ws4d.coap.core;
 import java.net.InetAddress;
 
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.messages.api.CoapRequest;
 import org.ws4d.coap.core.messages.api.CoapResponse;
 
 /**
  * This is the base interface that has to be implemented by every CoAP client in
- * order to receive callbacks on different events.
+ * order to receive callbacks on different events.<br>
+ * In {@link org.ws4d.coap.core.connection.CallbackMode#DISPATCH_THREAD} mode a
+ * received message still refers to the receive buffer while the callback
+ * runs. It must not be passed to another thread, copy the values needed
+ * instead, e.g. the array returned by getPayload().
  * 
  * @author Christian Lerche
  */
@@ -66,4 +71,22 @@ public interface CoapClient {
 	 *            - A flag to indicate that the remote server made a reset
 	 */
 	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer);
+
+	/**
+	 * This is a callback method which allows to handle the failure of a single
+	 * request at the application layer. Other requests sent on the channel are
+	 * not affected. Clients that do not need it may extend
+	 * {@link CoapClientAdapter}.
+	 * 
+	 * @param channel
+	 *            - The {@link CoapClientChannel} where the request was sent.
+	 * @param request
+	 *            - The {@link CoapRequest} that failed.
+	 * @param notReachable
+	 *            - A flag to indicate that the server is not reachable
+	 * @param resetByServer
+	 *            - A flag to indicate that the remote server made a reset
+	 */
+	public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+			boolean resetByServer);
 }
@@ -0,0 +1,43 @@
+/* Copyright 2015 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core;
+
+import java.net.InetAddress;
+
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+
+/**
+ * A {@link CoapClient} that ignores the callbacks a client does not need to
+ * handle. Clients written before
+ * {@link CoapClient#onRequestFailed(CoapClientChannel, CoapRequest, boolean, boolean)}
+ * was added compile again when they extend this class instead of
+ * implementing the interface.
+ */
+public abstract class CoapClientAdapter implements CoapClient {
+
+	@Override
+	public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress, int srcPort) {
+		// no multicast requests
+	}
+
+	@Override
+	public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+			boolean resetByServer) {
+		// the failed request is ignored
+	}
+}
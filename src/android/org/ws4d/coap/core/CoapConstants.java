@@ -56,6 +56,12 @@ public final class CoapConstants {
 	 */
 	public static final int COAP_DEFAULT_PORT = 5683;
 
+	/**
+	 * The default port used by CoAP connections secured by DTLS. <br>
+	 * See rfc7252 - 6.2. "coaps URI Scheme" for further details.
+	 */
+	public static final int COAPS_DEFAULT_PORT = 5684;
+
 	/**
 	 * The all CoAP nodes IPv4 multicast address.
 	 */
@@ -107,6 +113,29 @@ public final class CoapConstants {
 	 */
 	public static final int MAX_RETRANSMIT = 4;
 
+	/**
+	 * The maximal number of simultaneous outstanding interactions with a remote
+	 * endpoint See rfc7252 - 4.7. "Congestion Control" for further details.
+	 */
+	public static final int NSTART = 1;
+
+	/**
+	 * The average data rate (bytes per second) for sending to a remote endpoint
+	 * that does not respond See rfc7252 - 4.7. "Congestion Control" for further
+	 * details.
+	 */
+	public static final double PROBING_RATE = 1;
+
+	/**
+	 * Lower bound of the retransmission timeout estimated per remote endpoint
+	 */
+	public static final int MIN_RTO_MS = 50;
+
+	/**
+	 * Upper bound of the retransmission timeout estimated per remote endpoint
+	 */
+	public static final int MAX_RTO_MS = 32000;
+
 	// TODO: ACK_RST_RETRANS_TIMEOUT_MS: Documentation & what is the right value?
 	/**
 	 * 
@@ -133,4 +162,100 @@ public final class CoapConstants {
 	 * The size of the receive buffer
 	 */
 	public static final int RECEIVE_BUFFER_SIZE = 330000;
+
+	/**
+	 * The maximal number of datagrams read from the socket per selector wakeup
+	 */
+	public static final int RECEIVE_BATCH_BUDGET = 64;
+
+	/**
+	 * The initial timeout in milliseconds before a DTLS handshake flight is
+	 * retransmitted, doubled with each retransmission <br>
+	 * See rfc6347 - 4.2.4.1. "Timer Values" for further details.
+	 */
+	public static final int DTLS_HANDSHAKE_TIMEOUT_MS = 1000;
+
+	/**
+	 * The number of retransmissions of a DTLS handshake flight before the
+	 * handshake fails
+	 */
+	public static final int DTLS_MAX_HANDSHAKE_RETRANSMIT = 4;
+
+	/**
+	 * The number of messages queued for a remote endpoint while its DTLS
+	 * handshake is running
+	 */
+	public static final int DTLS_PENDING_MESSAGES = 32;
+
+	/**
+	 * The maximal number of DTLS sessions a secure server keeps, ClientHellos of
+	 * further remote endpoints are dropped. Idle sessions are closed after
+	 * EXCHANGE_LIFETIME.
+	 */
+	public static final int DTLS_MAX_SESSIONS = 1024;
+
+	/**
+	 * The largest message accepted over a CoAP over TCP connection, announced
+	 * to the remote endpoint with the CSM signal <br>
+	 * See rfc8323 - 5.3.1. "Max-Message-Size Capability Option" for further
+	 * details.
+	 */
+	public static final int TCP_MAX_MESSAGE_SIZE = 8388608;
+
+	/**
+	 * The largest message sent over a CoAP over TCP connection until the
+	 * remote endpoint announced its own limit
+	 */
+	public static final int TCP_DEFAULT_MAX_MESSAGE_SIZE = 1152;
+
+	/**
+	 * The time in milliseconds a CoAP over TCP connection may be idle before it
+	 * is checked with a Ping signal. A connection that stays silent for another
+	 * interval is closed.
+	 */
+	public static final int TCP_IDLE_TIMEOUT_MS = 30000;
+
+	/**
+	 * The maximal time in milliseconds to establish a CoAP over TCP connection
+	 */
+	public static final int TCP_CONNECT_TIMEOUT_MS = 10000;
+
+	/**
+	 * The maximal time in milliseconds a released or aborted CoAP over TCP
+	 * connection may take to write its last frames before the socket is closed
+	 */
+	public static final int TCP_RELEASE_TIMEOUT_MS = 1000;
+
+	/**
+	 * The maximal number of connections a CoAP over TCP server accepts at the
+	 * same time, further connections are closed right after they were accepted
+	 */
+	public static final int TCP_MAX_CONNECTIONS = 1024;
+
+	/**
+	 * The maximal time in milliseconds closing a socket handler waits for each
+	 * of its threads to finish
+	 */
+	public static final int SHUTDOWN_TIMEOUT_MS = 2000;
+
+	/**
+	 * The number of threads dispatching received messages to the channels
+	 */
+	public static final int DISPATCH_THREADS = 2;
+
+	/**
+	 * The number of received datagrams each dispatch thread can queue
+	 */
+	public static final int DISPATCH_QUEUE_SIZE = 128;
+
+	/**
+	 * The number of message ids of remotes each dispatch thread remembers to
+	 * detect duplicates, the oldest is forgotten first
+	 */
+	public static final int DEDUPLICATION_CAPACITY = 4096;
+
+	/**
+	 * The number of messages that can wait to be sent by a socket handler
+	 */
+	public static final int OUTBOUND_QUEUE_SIZE = 256;
 }
@@ -20,7 +20,11 @@ import org.ws4d.coap.core.messages.api.CoapRequest;
 
 /**
  * This is the base interface that has to be implemented by every CoAP server in
- * order to receive callbacks on different events.
+ * order to receive callbacks on different events.<br>
+ * In {@link org.ws4d.coap.core.connection.CallbackMode#DISPATCH_THREAD} mode a
+ * received request still refers to the receive buffer while the callback
+ * runs. It must not be passed to another thread, copy the values needed
+ * instead, e.g. the array returned by getPayload().
  * 
  * @author Christian Lerche
  */
@@ -0,0 +1,411 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core;
+
+import org.ws4d.coap.core.connection.CallbackMode;
+import org.ws4d.coap.core.connection.OverloadPolicy;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+
+/**
+ * Runtime configuration of the CoAP stack. The defaults are taken from
+ * {@link CoapConstants}.<br>
+ * The transmission parameters (timeouts, retransmissions and congestion
+ * control) are read by the socket handlers whenever they are needed, so
+ * changes take effect immediately. Socket buffer sizes and queue sizes are
+ * applied when the config is set on a socket handler. The datagram size, the
+ * thread counts and the size of the deduplication tables are only used when a
+ * socket handler is created.
+ */
+public class NetworkConfig {
+
+	/* transmission parameters, see rfc7252 - 4.7 and 4.8 */
+	private volatile int ackTimeout = CoapConstants.RESPONSE_TIMEOUT_MS;
+	private volatile double ackRandomFactor = CoapConstants.RESPONSE_RANDOM_FACTOR;
+	private volatile int maxRetransmit = CoapConstants.MAX_RETRANSMIT;
+	private volatile int nstart = CoapConstants.NSTART;
+	private volatile double probingRate = CoapConstants.PROBING_RATE;
+	private volatile int minRto = CoapConstants.MIN_RTO_MS;
+	private volatile int maxRto = CoapConstants.MAX_RTO_MS;
+	private volatile int exchangeLifetime = CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS;
+
+	/* sockets and buffers */
+	private volatile int maxDatagramSize = CoapConstants.UDP_BUFFER_SIZE;
+	private volatile int receiveBufferSize = CoapConstants.RECEIVE_BUFFER_SIZE;
+	private volatile int sendBufferSize = 0;
+	private volatile int receiveBatchBudget = CoapConstants.RECEIVE_BATCH_BUDGET;
+	private volatile int outboundQueueSize = CoapConstants.OUTBOUND_QUEUE_SIZE;
+	private volatile OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+
+	/* threads */
+	private volatile int dispatchThreads = CoapConstants.DISPATCH_THREADS;
+	private volatile int dispatchQueueSize = CoapConstants.DISPATCH_QUEUE_SIZE;
+	private volatile int deduplicationCapacity = CoapConstants.DEDUPLICATION_CAPACITY;
+	private volatile CallbackMode callbackMode = CallbackMode.DISPATCH_THREAD;
+
+	/* blockwise transfers of new channels, null for no limit */
+	private volatile CoapBlockSize maxReceiveBlocksize = null;
+	private volatile CoapBlockSize maxSendBlocksize = null;
+
+	/**
+	 * Creates a config with the default values.
+	 */
+	public NetworkConfig() {
+	}
+
+	/**
+	 * Creates a copy of a config.
+	 * 
+	 * @param config
+	 *            - the config to copy
+	 */
+	public NetworkConfig(NetworkConfig config) {
+		set(config);
+	}
+
+	/**
+	 * Takes over all values of another config.
+	 * 
+	 * @param config
+	 *            - the config to copy
+	 */
+	public void set(NetworkConfig config) {
+		this.ackTimeout = config.ackTimeout;
+		this.ackRandomFactor = config.ackRandomFactor;
+		this.maxRetransmit = config.maxRetransmit;
+		this.nstart = config.nstart;
+		this.probingRate = config.probingRate;
+		this.minRto = config.minRto;
+		this.maxRto = config.maxRto;
+		this.exchangeLifetime = config.exchangeLifetime;
+		this.maxDatagramSize = config.maxDatagramSize;
+		this.receiveBufferSize = config.receiveBufferSize;
+		this.sendBufferSize = config.sendBufferSize;
+		this.receiveBatchBudget = config.receiveBatchBudget;
+		this.outboundQueueSize = config.outboundQueueSize;
+		this.overloadPolicy = config.overloadPolicy;
+		this.dispatchThreads = config.dispatchThreads;
+		this.dispatchQueueSize = config.dispatchQueueSize;
+		this.deduplicationCapacity = config.deduplicationCapacity;
+		this.callbackMode = config.callbackMode;
+		this.maxReceiveBlocksize = config.maxReceiveBlocksize;
+		this.maxSendBlocksize = config.maxSendBlocksize;
+	}
+
+	/**
+	 * @return The initial timeout of a CON message in milliseconds before any
+	 *         round trip time was measured (ACK_TIMEOUT).
+	 */
+	public int getAckTimeout() {
+		return this.ackTimeout;
+	}
+
+	public void setAckTimeout(int ackTimeout) {
+		if (ackTimeout < 1) {
+			throw new IllegalArgumentException("ACK_TIMEOUT must be positive");
+		}
+		this.ackTimeout = ackTimeout;
+	}
+
+	/**
+	 * @return The factor (ACK_RANDOM_FACTOR) the initial timeout of a CON
+	 *         message is randomized with.
+	 */
+	public double getAckRandomFactor() {
+		return this.ackRandomFactor;
+	}
+
+	public void setAckRandomFactor(double ackRandomFactor) {
+		if (ackRandomFactor < 1) {
+			throw new IllegalArgumentException("ACK_RANDOM_FACTOR must be at least 1");
+		}
+		this.ackRandomFactor = ackRandomFactor;
+	}
+
+	/**
+	 * @return The number of retransmissions of a CON message before the
+	 *         exchange fails (MAX_RETRANSMIT).
+	 */
+	public int getMaxRetransmit() {
+		return this.maxRetransmit;
+	}
+
+	public void setMaxRetransmit(int maxRetransmit) {
+		if (maxRetransmit < 0) {
+			throw new IllegalArgumentException("MAX_RETRANSMIT must not be negative");
+		}
+		this.maxRetransmit = maxRetransmit;
+	}
+
+	/**
+	 * @return The maximal number of outstanding CON messages per endpoint
+	 *         (NSTART).
+	 */
+	public int getNstart() {
+		return this.nstart;
+	}
+
+	public void setNstart(int nstart) {
+		if (nstart < 1) {
+			throw new IllegalArgumentException("NSTART must be at least 1");
+		}
+		this.nstart = nstart;
+	}
+
+	/**
+	 * @return The average data rate in bytes per second NON messages are sent
+	 *         to an endpoint that did not respond yet (PROBING_RATE).
+	 */
+	public double getProbingRate() {
+		return this.probingRate;
+	}
+
+	public void setProbingRate(double probingRate) {
+		if (probingRate <= 0) {
+			throw new IllegalArgumentException("PROBING_RATE must be positive");
+		}
+		this.probingRate = probingRate;
+	}
+
+	/**
+	 * @return The lower bound of the retransmission timeout estimated per
+	 *         endpoint in milliseconds.
+	 */
+	public int getMinRto() {
+		return this.minRto;
+	}
+
+	public void setMinRto(int minRto) {
+		setRtoBounds(minRto, this.maxRto);
+	}
+
+	/**
+	 * @return The upper bound of the retransmission timeout estimated per
+	 *         endpoint in milliseconds.
+	 */
+	public int getMaxRto() {
+		return this.maxRto;
+	}
+
+	public void setMaxRto(int maxRto) {
+		setRtoBounds(this.minRto, maxRto);
+	}
+
+	/**
+	 * Sets both bounds of the retransmission timeout at once, e.g. to move
+	 * them past each other.
+	 * 
+	 * @param minRto
+	 *            - the lower bound in milliseconds
+	 * @param maxRto
+	 *            - the upper bound in milliseconds, at least minRto
+	 */
+	public synchronized void setRtoBounds(int minRto, int maxRto) {
+		if (minRto < 1) {
+			throw new IllegalArgumentException("Minimal RTO must be positive");
+		}
+		if (maxRto < minRto) {
+			throw new IllegalArgumentException("Maximal RTO must not be less than the minimal RTO");
+		}
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+	}
+
+	/**
+	 * @return Milliseconds message ids are remembered to detect duplicates and
+	 *         requests wait for their response.
+	 */
+	public int getExchangeLifetime() {
+		return this.exchangeLifetime;
+	}
+
+	public void setExchangeLifetime(int exchangeLifetime) {
+		if (exchangeLifetime < 1) {
+			throw new IllegalArgumentException("Exchange lifetime must be positive");
+		}
+		this.exchangeLifetime = exchangeLifetime;
+	}
+
+	/**
+	 * @return The size of the largest datagram that can be received.
+	 */
+	public int getMaxDatagramSize() {
+		return this.maxDatagramSize;
+	}
+
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		if (maxDatagramSize < CoapConstants.COAP_MESSAGE_SIZE_MAX) {
+			throw new IllegalArgumentException("Datagram size must be at least " + CoapConstants.COAP_MESSAGE_SIZE_MAX);
+		}
+		this.maxDatagramSize = maxDatagramSize;
+	}
+
+	/**
+	 * @return The receive buffer size of the sockets (SO_RCVBUF), 0 to keep the
+	 *         system default.
+	 */
+	public int getReceiveBufferSize() {
+		return this.receiveBufferSize;
+	}
+
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("Receive buffer size must not be negative");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return The send buffer size of the sockets (SO_SNDBUF), 0 to keep the
+	 *         system default.
+	 */
+	public int getSendBufferSize() {
+		return this.sendBufferSize;
+	}
+
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("Send buffer size must not be negative");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return The maximal number of datagrams read per receive wakeup.
+	 */
+	public int getReceiveBatchBudget() {
+		return this.receiveBatchBudget;
+	}
+
+	public void setReceiveBatchBudget(int receiveBatchBudget) {
+		if (receiveBatchBudget < 1) {
+			throw new IllegalArgumentException("Receive batch budget must be at least 1");
+		}
+		this.receiveBatchBudget = receiveBatchBudget;
+	}
+
+	/**
+	 * @return The number of messages that can wait to be sent by a socket
+	 *         handler.
+	 */
+	public int getOutboundQueueSize() {
+		return this.outboundQueueSize;
+	}
+
+	public void setOutboundQueueSize(int outboundQueueSize) {
+		if (outboundQueueSize < 1) {
+			throw new IllegalArgumentException("Outbound queue size must be at least 1");
+		}
+		this.outboundQueueSize = outboundQueueSize;
+	}
+
+	/**
+	 * @return What happens to messages sent while the outbound queue is full.
+	 */
+	public OverloadPolicy getOverloadPolicy() {
+		return this.overloadPolicy;
+	}
+
+	public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null) {
+			throw new IllegalArgumentException("Overload policy must not be null");
+		}
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	/**
+	 * @return The number of threads dispatching received messages per socket
+	 *         handler.
+	 */
+	public int getDispatchThreads() {
+		return this.dispatchThreads;
+	}
+
+	public void setDispatchThreads(int dispatchThreads) {
+		if (dispatchThreads < 1) {
+			throw new IllegalArgumentException("At least one dispatch thread is required");
+		}
+		this.dispatchThreads = dispatchThreads;
+	}
+
+	/**
+	 * @return The number of received datagrams each dispatch thread can queue.
+	 */
+	public int getDispatchQueueSize() {
+		return this.dispatchQueueSize;
+	}
+
+	public void setDispatchQueueSize(int dispatchQueueSize) {
+		if (dispatchQueueSize < 1) {
+			throw new IllegalArgumentException("Dispatch queue size must be at least 1");
+		}
+		this.dispatchQueueSize = dispatchQueueSize;
+	}
+
+	/**
+	 * @return The number of message ids each dispatch thread remembers to
+	 *         detect duplicates.
+	 */
+	public int getDeduplicationCapacity() {
+		return this.deduplicationCapacity;
+	}
+
+	public void setDeduplicationCapacity(int deduplicationCapacity) {
+		if (deduplicationCapacity < 1) {
+			throw new IllegalArgumentException("Deduplication capacity must be at least 1");
+		}
+		this.deduplicationCapacity = deduplicationCapacity;
+	}
+
+	/**
+	 * @return The threads running the message handlers and thereby the
+	 *         callbacks of clients and servers. Changes apply to the next
+	 *         received message.
+	 */
+	public CallbackMode getCallbackMode() {
+		return this.callbackMode;
+	}
+
+	public void setCallbackMode(CallbackMode callbackMode) {
+		if (callbackMode == null) {
+			throw new IllegalArgumentException("Callback mode must not be null");
+		}
+		this.callbackMode = callbackMode;
+	}
+
+	/**
+	 * @return The maximal block size of blockwise transfers received by new
+	 *         channels, null for no limit.
+	 */
+	public CoapBlockSize getMaxReceiveBlocksize() {
+		return this.maxReceiveBlocksize;
+	}
+
+	public void setMaxReceiveBlocksize(CoapBlockSize maxReceiveBlocksize) {
+		this.maxReceiveBlocksize = maxReceiveBlocksize;
+	}
+
+	/**
+	 * @return The maximal block size of blockwise transfers sent by new
+	 *         channels, null for no limit.
+	 */
+	public CoapBlockSize getMaxSendBlocksize() {
+		return this.maxSendBlocksize;
+	}
+
+	public void setMaxSendBlocksize(CoapBlockSize maxSendBlocksize) {
+		this.maxSendBlocksize = maxSendBlocksize;
+	}
+}
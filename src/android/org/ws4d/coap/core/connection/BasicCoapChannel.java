@@ -16,6 +16,7 @@
 package org.ws4d.coap.core.connection;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
@@ -29,6 +30,8 @@ public abstract class BasicCoapChannel implements CoapChannel {
 	private CoapSocketHandler socketHandler;
 	private InetAddress remoteAddress;
 	private int remotePort;
+	/** created once, the socket handler needs it for every send */
+	private InetSocketAddress remoteSocketAddress;
 	private int localPort;
 	/** null means no block option */
 	private CoapBlockSize maxReceiveBlocksize;
@@ -39,7 +42,10 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		this.socketHandler = socketHandler;
 		this.remoteAddress = remoteAddress;
 		this.remotePort = remotePort;
+		this.remoteSocketAddress = new InetSocketAddress(remoteAddress, remotePort);
 		this.localPort = socketHandler.getLocalPort();
+		this.maxReceiveBlocksize = socketHandler.getNetworkConfig().getMaxReceiveBlocksize();
+		this.maxSendBlocksize = socketHandler.getNetworkConfig().getMaxSendBlocksize();
 	}
 	
 	CoapSocketHandler getSocketHandler(){
@@ -52,6 +58,11 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		this.socketHandler.sendMessage(msg);
 	}
 
+	@Override
+	public boolean isWritable() {
+		return this.socketHandler.isWritable();
+	}
+
 	@Override
 	public CoapBlockSize getMaxReceiveBlocksize() {
 		return this.maxReceiveBlocksize;
@@ -82,6 +93,10 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		return this.remotePort;
 	}
 
+	InetSocketAddress getRemoteSocketAddress() {
+		return this.remoteSocketAddress;
+	}
+
 	/*
 	 * A channel is identified (and therefore unique) by its remote address,
 	 * remote port and the local port
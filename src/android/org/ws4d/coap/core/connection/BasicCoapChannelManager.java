@@ -17,19 +17,30 @@ package org.ws4d.coap.core.connection;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 
+import javax.net.ssl.SSLContext;
+
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.CoapServer;
 import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.NetworkConfig;
 import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.connection.api.DatagramTransport;
+import org.ws4d.coap.core.connection.api.DatagramTransportFactory;
 import org.ws4d.coap.core.messages.BasicCoapRequest;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 
+import android.util.Log;
+
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
  */
@@ -37,16 +48,63 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 	// global message id
 	private int globalMessageId;
 	private static BasicCoapChannelManager instance;
-	private static CoapSocketHandler socketHandler;
+	private volatile CoapSocketHandler socketHandler;
+
+	/** opens the datagram transports of the UDP and DTLS socket handlers */
+	private final DatagramTransportFactory transportFactory;
+
+	/** server sockets by local port */
+	private HashMap<Integer, SocketInformation> socketMap = new HashMap<Integer, SocketInformation>();
+
+	/** TCP server sockets by local port, they may share the port number with a UDP socket */
+	private HashMap<Integer, SocketInformation> tcpSocketMap = new HashMap<Integer, SocketInformation>();
+
+	/** shared by all socket handlers */
+	private final NetworkConfig config = new NetworkConfig();
+
+	/** false while the sockets are closed */
+	private boolean running = false;
+
+	/** secures coaps connections, kept while stopped so its session cache survives */
+	private SSLContext dtlsContext = null;
 
-	// private HashMap<Integer, SocketInformation> socketMap = new HashMap<Integer, SocketInformation>();
+	/** client socket for coaps connections, created on demand */
+	private volatile DtlsCoapSocketHandler secureSocketHandler = null;
+
+	/** client socket for CoAP over TCP connections, created on demand */
+	private volatile CoapSocketHandler tcpSocketHandler = null;
+
+	/** the transport protocols of the server listeners */
+	private enum Transport {
+		UDP, DTLS, TCP
+	}
 
 	private BasicCoapChannelManager() {
+		this(UdpDatagramTransport.FACTORY);
+	}
+
+	/**
+	 * Creates and starts a channel manager of its own, besides the global
+	 * instance. Its UDP and DTLS socket handlers exchange their datagrams on the
+	 * transports of the factory, e.g. a LoopbackNetwork shared with the channel
+	 * manager of a server in the same JVM. CoAP over TCP still uses sockets.
+	 * If the client socket can not be opened, the channel manager stays
+	 * stopped: isRunning() returns false and start() may be called again.
+	 * 
+	 * @param transportFactory
+	 *            - opens the datagram transports
+	 */
+	public BasicCoapChannelManager(DatagramTransportFactory transportFactory) {
+		if (transportFactory == null) {
+			throw new IllegalArgumentException("transportFactory must not be null");
+		}
+		this.transportFactory = transportFactory;
 		initRandom();
 
 		try {
-			socketHandler = new BasicCoapSocketHandler(this);
+			start();
 		} catch (IOException e) {
+			Log.e("CCoap", "Failed to start the channel manager", e);
 		}
 
 	}
@@ -61,25 +119,24 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 	@Override
 	public synchronized CoapServerChannel createServerChannel(CoapSocketHandler socketHandler, CoapMessage message,
 			InetAddress addr, int port) {
-		// SocketInformation socketInfo = this.socketMap.get(socketHandler.getLocalPort());
+		SocketInformation socketInfo = getSocketMap(socketHandler).get(socketHandler.getLocalPort());
 
-		// if (socketInfo.getServerListener() == null) {
-		// 	/* this is not a server socket */
-		// 	throw new IllegalStateException("Invalid server socket");
-		// }
+		if (socketInfo == null || socketInfo.getServerListener() == null) {
+			/* this is not a server socket */
+			return null;
+		}
 
-		// if (!message.isRequest()) {
-		// 	throw new IllegalStateException("Incomming message is not a request message");
-		// }
+		if (!message.isRequest()) {
+			throw new IllegalStateException("Incomming message is not a request message");
+		}
 
-		// CoapServer server = socketInfo.getServerListener().onAccept((BasicCoapRequest) message);
-		// if (server == null) {
-		// 	/* Server rejected channel */
-		// 	return null;
-		// }
-		// CoapServerChannel newChannel = new BasicCoapServerChannel(socketHandler, server, addr, port);
-		// return newChannel;
-		return null;
+		CoapServer server = socketInfo.getServerListener().onAccept((BasicCoapRequest) message);
+		if (server == null) {
+			/* Server rejected channel */
+			return null;
+		}
+		CoapServerChannel newChannel = new BasicCoapServerChannel(socketHandler, server, addr, port);
+		return newChannel;
 	}
 
 	@Override
@@ -100,36 +157,342 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 
 	@Override
 	public void createServerListener(CoapServer listener, int localPort) {
-		// if (!this.socketMap.containsKey(localPort)) {
-		// 	try {
-		// 		SocketInformation socketInfo = new SocketInformation(new BasicCoapSocketHandler(this, localPort),
-		// 				listener);
-		// 		this.socketMap.put(localPort, socketInfo);
-		// 	} catch (IOException e) {
-		// 	}
-		// } else {
-		// 	throw new IllegalStateException("address already in use");
-		// }
+		createServerListener(listener, localPort, 1);
+	}
+
+	@Override
+	public synchronized void createServerListener(CoapServer listener, int localPort, int shards) {
+		addServerListener(listener, localPort, shards, Transport.UDP);
+	}
+
+	@Override
+	public synchronized void createSecureServerListener(CoapServer listener, int localPort) {
+		if (this.dtlsContext == null) {
+			throw new IllegalStateException("a DTLS context with the server certificate is required");
+		}
+		addServerListener(listener, localPort, 1, Transport.DTLS);
+	}
+
+	@Override
+	public synchronized void createTcpServerListener(CoapServer listener, int localPort) {
+		addServerListener(listener, localPort, 1, Transport.TCP);
+	}
+
+	private void addServerListener(CoapServer listener, int localPort, int shards, Transport transport) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("at least one socket handler is required");
+		}
+		HashMap<Integer, SocketInformation> map = transport == Transport.TCP ? this.tcpSocketMap : this.socketMap;
+		if (map.containsKey(localPort)) {
+			throw new IllegalStateException("address already in use");
+		}
+		if (shards > 1 && !this.transportFactory.isReusePortSupported()) {
+			/* the port can not be shared, fall back to a single socket handler */
+			shards = 1;
+		}
+
+		SocketInformation socketInfo = new SocketInformation(localPort, shards, transport, listener);
+		if (this.running) {
+			try {
+				openSocketHandlers(socketInfo);
+			} catch (IOException e) {
+				Log.e("CCoap", "Failed to open port " + localPort, e);
+				throw new IllegalStateException("could not open port " + localPort, e);
+			}
+		}
+		/* a stopped channel manager opens the sockets when it is started */
+		map.put(socketInfo.getPort(), socketInfo);
+	}
+
+	/**
+	 * @return The server sockets of the transport of a socket handler.
+	 */
+	private HashMap<Integer, SocketInformation> getSocketMap(CoapSocketHandler socketHandler) {
+		if (socketHandler instanceof TcpCoapSocketHandler) {
+			return this.tcpSocketMap;
+		}
+		return this.socketMap;
+	}
+
+	/**
+	 * Creates the socket handlers of a server listener. An ephemeral port is
+	 * replaced by the port actually bound, so the listener gets the same port
+	 * when the channel manager is restarted.
+	 */
+	private void openSocketHandlers(SocketInformation socketInfo) throws IOException {
+		int shards = socketInfo.getShards();
+		CoapSocketHandler[] handlers = new CoapSocketHandler[shards];
+		if (socketInfo.getTransport() == Transport.DTLS) {
+			handlers[0] = new DtlsCoapSocketHandler(this, openTransport(socketInfo.getPort(), false, false),
+					this.dtlsContext, true);
+			socketInfo.setPort(handlers[0].getLocalPort());
+			socketInfo.setSocketHandlers(handlers);
+			return;
+		}
+		if (socketInfo.getTransport() == Transport.TCP) {
+			handlers[0] = new TcpCoapSocketHandler(this, socketInfo.getPort(), true);
+			socketInfo.setPort(handlers[0].getLocalPort());
+			socketInfo.setSocketHandlers(handlers);
+			return;
+		}
+		try {
+			/* the first handler joins the multicast groups and determines the port */
+			handlers[0] = openSocketHandler(socketInfo.getPort(), shards > 1, true);
+			for (int i = 1; i < shards; i++) {
+				handlers[i] = openSocketHandler(handlers[0].getLocalPort(), true, false);
+			}
+		} catch (IOException e) {
+			for (CoapSocketHandler handler : handlers) {
+				if (handler != null) {
+					handler.close();
+				}
+			}
+			throw e;
+		}
+		socketInfo.setPort(handlers[0].getLocalPort());
+		socketInfo.setSocketHandlers(handlers);
+	}
+
+	private DatagramTransport openTransport(int port, boolean reusePort, boolean joinMulticast) throws IOException {
+		return this.transportFactory.open(port, reusePort, joinMulticast, this.config);
 	}
 
+	private CoapSocketHandler openSocketHandler(int port, boolean reusePort, boolean joinMulticast)
+			throws IOException {
+		return new BasicCoapSocketHandler(this, openTransport(port, reusePort, joinMulticast), this.config);
+	}
+
+	/**
+	 * Takes the socket handlers from a server listener, they have to be closed
+	 * without holding the lock of the channel manager. Their dispatch threads
+	 * may be waiting for it in createServerChannel().
+	 */
+	private static void takeSocketHandlers(SocketInformation socketInfo, List<CoapSocketHandler> handlers) {
+		handlers.addAll(Arrays.asList(socketInfo.getSocketHandlers()));
+		socketInfo.setSocketHandlers(new CoapSocketHandler[0]);
+	}
+
+	private static void closeSocketHandlers(List<CoapSocketHandler> handlers) {
+		for (CoapSocketHandler handler : handlers) {
+			handler.close();
+		}
+	}
+
+	@Override
 	public void removeServerListener(CoapServer listener, int localPort) {
-		// if (this.socketMap.containsKey(localPort)) {
-		// 	SocketInformation socketInfo = this.socketMap.get(localPort);
-		// 	if (socketInfo.getServerListener().equals(listener)) {
-		// 		socketInfo.getSocketHandler().close();
-		// 		this.socketMap.remove(localPort);
-		// 	}
-		// }
+		List<CoapSocketHandler> handlers = new ArrayList<CoapSocketHandler>();
+		synchronized (this) {
+			SocketInformation socketInfo = this.socketMap.get(localPort);
+			if (socketInfo != null && socketInfo.getServerListener().equals(listener)) {
+				takeSocketHandlers(socketInfo, handlers);
+				this.socketMap.remove(localPort);
+			}
+			socketInfo = this.tcpSocketMap.get(localPort);
+			if (socketInfo != null && socketInfo.getServerListener().equals(listener)) {
+				takeSocketHandlers(socketInfo, handlers);
+				this.tcpSocketMap.remove(localPort);
+			}
+		}
+		closeSocketHandlers(handlers);
 	}
 
 	@Override
 	public CoapClientChannel connect(CoapClient client, InetAddress addr, int port) {
+		CoapSocketHandler handler = this.socketHandler;
+		if (handler == null) {
+			/* stopped */
+			return null;
+		}
+		return handler.connect(client, addr, port);
+	}
 
-		// SocketInformation sockInfo = new SocketInformation(socketHandler, null);
+	@Override
+	public CoapClientChannel connectSecure(CoapClient client, InetAddress addr, int port) {
+		return connectSecure(client, null, addr, port);
+	}
 
-		// this.socketMap.put(socketHandler.getLocalPort(), sockInfo);
+	@Override
+	public CoapClientChannel connectSecure(CoapClient client, String hostName, InetAddress addr, int port) {
+		DtlsCoapSocketHandler handler;
+		synchronized (this) {
+			if (!this.running) {
+				return null;
+			}
+			if (this.secureSocketHandler == null) {
+				try {
+					if (this.dtlsContext == null) {
+						/* server certificates are checked against the default trust store */
+						SSLContext context = SSLContext.getInstance(DtlsCoapSocketHandler.PROTOCOL);
+						context.init(null, null, null);
+						this.dtlsContext = context;
+					}
+					this.secureSocketHandler = new DtlsCoapSocketHandler(this, openTransport(0, false, false),
+							this.dtlsContext, false);
+				} catch (GeneralSecurityException e) {
+					/* no DTLS support */
+					return null;
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			handler = this.secureSocketHandler;
+		}
+		return handler.connect(client, hostName, addr, port);
+	}
 
-		return socketHandler.connect(client, addr, port);
+	@Override
+	public CoapClientChannel connectTcp(CoapClient client, InetAddress addr, int port) {
+		CoapSocketHandler handler;
+		synchronized (this) {
+			if (!this.running) {
+				return null;
+			}
+			if (this.tcpSocketHandler == null) {
+				try {
+					this.tcpSocketHandler = new TcpCoapSocketHandler(this, 0, false);
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			handler = this.tcpSocketHandler;
+		}
+		return handler.connect(client, addr, port);
+	}
+
+	@Override
+	public void setDtlsContext(SSLContext context) {
+		List<CoapSocketHandler> handlers = new ArrayList<CoapSocketHandler>();
+		synchronized (this) {
+			this.dtlsContext = context;
+			/* new connections use the new context */
+			if (this.secureSocketHandler != null) {
+				handlers.add(this.secureSocketHandler);
+				this.secureSocketHandler = null;
+			}
+		}
+		closeSocketHandlers(handlers);
+	}
+
+	@Override
+	public synchronized SSLContext getDtlsContext() {
+		return this.dtlsContext;
+	}
+
+	@Override
+	public boolean isWritable() {
+		CoapSocketHandler handler = this.socketHandler;
+		return handler != null && handler.isWritable();
+	}
+
+	@Override
+	public void start() throws IOException {
+		List<CoapSocketHandler> handlers = new ArrayList<CoapSocketHandler>();
+		try {
+			synchronized (this) {
+				if (this.running) {
+					return;
+				}
+				try {
+					this.socketHandler = openSocketHandler(0, false, true);
+					/* listeners created while stopped get their ephemeral ports now */
+					this.socketMap = openSocketHandlers(this.socketMap);
+					this.tcpSocketMap = openSocketHandlers(this.tcpSocketMap);
+				} catch (IOException e) {
+					takeAllSocketHandlers(handlers);
+					throw e;
+				}
+				this.running = true;
+			}
+		} finally {
+			closeSocketHandlers(handlers);
+		}
+	}
+
+	/**
+	 * Opens the server sockets of a map of server listeners.
+	 * 
+	 * @return The listeners keyed by the ports actually bound.
+	 */
+	private HashMap<Integer, SocketInformation> openSocketHandlers(HashMap<Integer, SocketInformation> socketMap)
+			throws IOException {
+		HashMap<Integer, SocketInformation> opened = new HashMap<Integer, SocketInformation>();
+		for (SocketInformation socketInfo : socketMap.values()) {
+			openSocketHandlers(socketInfo);
+			opened.put(socketInfo.getPort(), socketInfo);
+		}
+		return opened;
+	}
+
+	@Override
+	public void stop() {
+		List<CoapSocketHandler> handlers = new ArrayList<CoapSocketHandler>();
+		synchronized (this) {
+			if (!this.running) {
+				return;
+			}
+			this.running = false;
+			takeAllSocketHandlers(handlers);
+		}
+		closeSocketHandlers(handlers);
+	}
+
+	private void takeAllSocketHandlers(List<CoapSocketHandler> handlers) {
+		if (this.socketHandler != null) {
+			handlers.add(this.socketHandler);
+			this.socketHandler = null;
+		}
+		if (this.secureSocketHandler != null) {
+			handlers.add(this.secureSocketHandler);
+			this.secureSocketHandler = null;
+		}
+		if (this.tcpSocketHandler != null) {
+			handlers.add(this.tcpSocketHandler);
+			this.tcpSocketHandler = null;
+		}
+		for (SocketInformation socketInfo : this.socketMap.values()) {
+			takeSocketHandlers(socketInfo, handlers);
+		}
+		for (SocketInformation socketInfo : this.tcpSocketMap.values()) {
+			takeSocketHandlers(socketInfo, handlers);
+		}
+	}
+
+	@Override
+	public synchronized boolean isRunning() {
+		return this.running;
+	}
+
+	@Override
+	public NetworkConfig getNetworkConfig() {
+		return this.config;
+	}
+
+	@Override
+	public synchronized void setNetworkConfig(NetworkConfig config) {
+		if (config == null) {
+			throw new IllegalArgumentException("config must not be null");
+		}
+		this.config.set(config);
+
+		if (this.socketHandler != null) {
+			this.socketHandler.applyNetworkConfig();
+		}
+		if (this.secureSocketHandler != null) {
+			this.secureSocketHandler.applyNetworkConfig();
+		}
+		if (this.tcpSocketHandler != null) {
+			this.tcpSocketHandler.applyNetworkConfig();
+		}
+		for (SocketInformation socketInfo : this.socketMap.values()) {
+			for (CoapSocketHandler handler : socketInfo.getSocketHandlers()) {
+				handler.applyNetworkConfig();
+			}
+		}
+		for (SocketInformation socketInfo : this.tcpSocketMap.values()) {
+			for (CoapSocketHandler handler : socketInfo.getSocketHandlers()) {
+				handler.applyNetworkConfig();
+			}
+		}
 	}
 
 	@Override
@@ -137,22 +500,47 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 		this.globalMessageId = globalMessageId;
 	}
 
-	// private class SocketInformation {
-	// 	private CoapSocketHandler handler = null;
-	// 	private CoapServer listener = null;
+	private class SocketInformation {
+		private CoapSocketHandler[] handlers = new CoapSocketHandler[0];
+		private CoapServer listener = null;
+		private int port;
+		private int shards;
+		private Transport transport;
+
+		public SocketInformation(int port, int shards, Transport transport, CoapServer serverListener) {
+			super();
+			this.port = port;
+			this.shards = shards;
+			this.transport = transport;
+			this.listener = serverListener;
+		}
+
+		public Transport getTransport() {
+			return this.transport;
+		}
 
-	// 	public SocketInformation(CoapSocketHandler socketHandler, CoapServer serverListener) {
-	// 		super();
-	// 		this.handler = socketHandler;
-	// 		this.listener = serverListener;
-	// 	}
+		public CoapSocketHandler[] getSocketHandlers() {
+			return this.handlers;
+		}
 
-	// 	public CoapSocketHandler getSocketHandler() {
-	// 		return this.handler;
-	// 	}
+		public void setSocketHandlers(CoapSocketHandler[] socketHandlers) {
+			this.handlers = socketHandlers;
+		}
 
-	// 	public CoapServer getServerListener() {
-	// 		return this.listener;
-	// 	}
-	// }
+		public int getPort() {
+			return this.port;
+		}
+
+		public void setPort(int port) {
+			this.port = port;
+		}
+
+		public int getShards() {
+			return this.shards;
+		}
+
+		public CoapServer getServerListener() {
+			return this.listener;
+		}
+	}
 }
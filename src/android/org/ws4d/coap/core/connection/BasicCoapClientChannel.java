@@ -19,6 +19,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Random;
 
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
@@ -33,6 +35,7 @@ import org.ws4d.coap.core.messages.CoapEmptyMessage;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 import org.ws4d.coap.core.messages.api.CoapRequest;
 import org.ws4d.coap.core.rest.CoapData;
+import org.ws4d.coap.core.tools.TimeoutHashMap;
 
 import android.util.Log;
 
@@ -42,20 +45,67 @@ import android.util.Log;
  */
 
 public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClientChannel {
+	/** length of the tokens created for new requests */
+	private static final int TOKEN_LENGTH = 8;
+
 	private CoapClient client = null;
-	private ClientBlockContext blockContext = null;
 	private CoapRequest lastRequest = null;
 	private Object trigger = null;
+	private Random tokenGenerator = new Random();
+
+	/**
+	 * requests waiting for their response by token, forgotten if no response
+	 * arrives
+	 */
+	private TimeoutHashMap<TokenKey, Exchange> exchanges;
 
 	public BasicCoapClientChannel(CoapSocketHandler socketHandler, CoapClient client, InetAddress remoteAddress,
 			int remotePort) {
 		super(socketHandler, remoteAddress, remotePort);
 		this.client = client;
+		this.exchanges = new TimeoutHashMap<TokenKey, Exchange>(
+				socketHandler.getNetworkConfig().getExchangeLifetime());
+		this.exchanges.setExpiryListener(new TimeoutHashMap.ExpiryListener<TokenKey, Exchange>() {
+
+			@Override
+			public void expired(TokenKey key, Exchange exchange) {
+				/* no response within the exchange lifetime */
+				BasicCoapClientChannel.this.client.onRequestFailed(BasicCoapClientChannel.this, exchange.request,
+						true, false);
+			}
+		});
 	}
 
 	@Override
 	public void close() {
 		this.getSocketHandler().removeClientChannel(this);
+		this.exchanges.close();
+	}
+
+	/**
+	 * Fails all pending requests and stops the expiry of the exchanges. Called
+	 * when the socket handler of the channel is closed.
+	 */
+	void abort() {
+		failExchanges(true, false);
+		this.exchanges.close();
+	}
+
+	/**
+	 * Fails all pending requests, e.g. when the connection they were sent on
+	 * is lost. The channel can still be used for new requests.
+	 */
+	void failExchanges(boolean notReachable, boolean resetByServer) {
+		for (TokenKey key : new ArrayList<TokenKey>(this.exchanges.keySet())) {
+			Exchange exchange = this.exchanges.remove(key);
+			if (exchange != null) {
+				this.client.onRequestFailed(this, exchange.request, notReachable, resetByServer);
+			}
+		}
+	}
+
+	CoapClient getClient() {
+		return this.client;
 	}
 
 	public byte[] getLastToken() {
@@ -84,6 +134,12 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			return;
 		}
 
+		if (message.isEmpty()) {
+			/* a RST that could not be assigned to a request */
+			lostConnection(false, true);
+			return;
+		}
+
 		if (message.getPacketType() == CoapPacketType.CON) {
 			/* this is a separate response */
 			/* send ACK */
@@ -92,6 +148,15 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			this.sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, message.getMessageID()));
 		}
 
+		/* find the request of the response */
+		TokenKey tokenKey = new TokenKey(message.getToken());
+		Exchange exchange = this.exchanges.get(tokenKey);
+		if (exchange == null) {
+			/* no request waits for this token, e.g. a late notification */
+			this.client.onResponse(this, (BasicCoapResponse) message);
+			return;
+		}
+
 		/* check for blockwise transfer */
 
 		@SuppressWarnings("unused")
@@ -99,15 +164,16 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 
 		CoapBlockOption block2 = message.getBlock2();
 
-		if (this.blockContext == null && block2 != null) {
+		if (exchange.blockContext == null && block2 != null) {
 			/* initiate blockwise transfer */
-			this.blockContext = new ClientBlockContext(block2, this.getMaxReceiveBlocksize());
-			this.blockContext.setFirstRequest(this.lastRequest);
+			exchange.blockContext = new ClientBlockContext(block2, this.getMaxReceiveBlocksize());
+			exchange.blockContext.setFirstRequest(exchange.request);
 		}
 
-		if (this.blockContext != null) {
+		ClientBlockContext blockContext = exchange.blockContext;
+		if (blockContext != null) {
 			/* blocking option */
-			if (this.blockContext.getFirstRequest() == null) {
+			if (blockContext.getFirstRequest() == null) {
 				Log.e("CCoap", "get first request is null");
 				return;
 			}
@@ -116,9 +182,9 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			 * If this is a response, to a blockwise GET, add the payload to the current
 			 * BlockContext.
 			 */
-			if (this.blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.GET) {
+			if (blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.GET) {
 
-				if (!this.blockContext.addBlock(message, block2)) {
+				if (!blockContext.addBlock(message, block2)) {
 					/*
 					 * Current block number and expected block number do not match! Hence, the block
 					 * was not added to the BlockContext
@@ -127,28 +193,28 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 				}
 			}
 
-			if (!this.blockContext.isFinished()) {
+			if (!blockContext.isFinished()) {
 				/*
 				 * TODO: implement a counter to avoid an infinity req/resp loop: if the same
 				 * block is received more than x times -> rst the connection implement
 				 * maxPayloadSize to avoid an infinity payload
 				 */
-				CoapBlockOption newBlock = this.blockContext.getNextBlock();
+				CoapBlockOption newBlock = blockContext.getNextBlock();
 
 				/* create a new request for the next block */
-				BasicCoapRequest request = new BasicCoapRequest(this.lastRequest.getPacketType(),
-						this.lastRequest.getRequestCode(),
-						this.getSocketHandler().getChannelManager().getNewMessageID());
+				BasicCoapRequest request = new BasicCoapRequest(exchange.request.getPacketType(),
+						exchange.request.getRequestCode(),
+						this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()));
 
-				request.copyHeaderOptions((BasicCoapRequest) this.blockContext.getFirstRequest());
+				request.copyHeaderOptions((BasicCoapRequest) blockContext.getFirstRequest());
 
-				request.setToken(this.blockContext.getFirstRequest().getToken());
+				request.setToken(blockContext.getFirstRequest().getToken());
 
 				if (request.getRequestCode() == CoapRequestCode.GET) {
 					request.setBlock2(newBlock);
 				} else {
 					request.setBlock1(newBlock);
-					request.setPayload(this.blockContext.getNextPayload(newBlock));
+					request.setPayload(blockContext.getNextPayload(newBlock));
 				}
 
 				sendMessage(request);
@@ -159,12 +225,15 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 				/* blockwise transfer finished */
 				Log.v("CCoap", "Block transfer finished");
 
-				message.setPayload(new CoapData(this.blockContext.getPayload(), message.getContentType()));
-				this.blockContext = null;
+				message.setPayload(new CoapData(blockContext.getPayload(), message.getContentType()));
 			}
 		}
 
 		/* normal or separate response */
+		if (this.exchanges.remove(tokenKey) == null) {
+			/* the exchange expired meanwhile and was already reported as failed */
+			return;
+		}
 		this.client.onResponse(this, (BasicCoapResponse) message);
 	}
 
@@ -202,30 +271,78 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 
 	}
 
+	@Override
+	public void lostExchange(byte[] token, boolean notReachable, boolean resetByServer) {
+		Exchange exchange = this.exchanges.remove(new TokenKey(token));
+		if (exchange == null) {
+			lostConnection(notReachable, resetByServer);
+			return;
+		}
+		this.client.onRequestFailed(this, exchange.request, notReachable, resetByServer);
+	}
+
+	@Override
+	public int getExchangeCount() {
+		return this.exchanges.size();
+	}
+
 	@Override
 	public BasicCoapRequest createRequest(boolean reliable, CoapRequestCode requestCode) {
 		BasicCoapRequest msg = new BasicCoapRequest(reliable ? CoapPacketType.CON : CoapPacketType.NON, requestCode,
-				this.getSocketHandler().getChannelManager().getNewMessageID());
+				this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()));
 		msg.setChannel(this);
+		msg.setToken(createToken());
 		return msg;
 	}
 
 	@Override
 	public BasicCoapRequest createRequest(CoapRequestCode requestCode, String path, boolean reliable) {
 		BasicCoapRequest msg = new BasicCoapRequest(reliable ? CoapPacketType.CON : CoapPacketType.NON, requestCode,
-				this.getSocketHandler().getChannelManager().getNewMessageID());
+				this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()));
 		msg.setChannel(this);
 		msg.setUriPath(path);
+		msg.setToken(createToken());
 		return msg;
 	}
 
+	/**
+	 * @return A new random token, so the response of the request can be told
+	 *         apart from the responses to other requests of the channel.
+	 */
+	private synchronized byte[] createToken() {
+		byte[] token = new byte[TOKEN_LENGTH];
+		this.tokenGenerator.nextBytes(token);
+		return token;
+	}
+
 	@Override
 	public void sendMessage(CoapMessage msg) {
-		super.sendMessage(msg);
-
 		// Check whether msg is a CoapRequest --> otherwise do nothing
-		if (msg.isRequest())
+		if (msg.isRequest()) {
 			this.lastRequest = (CoapRequest) msg;
+
+			/*
+			 * register the request before it is sent, requests for further blocks
+			 * continue the exchange of the first one
+			 */
+			TokenKey tokenKey = new TokenKey(msg.getToken());
+			Exchange exchange = this.exchanges.get(tokenKey);
+			if (exchange == null) {
+				exchange = new Exchange((CoapRequest) msg);
+			}
+			this.exchanges.put(tokenKey, exchange);
+
+			try {
+				super.sendMessage(msg);
+			} catch (IllegalStateException e) {
+				/* rejected by the outbound queue */
+				this.exchanges.remove(tokenKey);
+				throw e;
+			}
+			return;
+		}
+
+		super.sendMessage(msg);
 	}
 
 	/**
@@ -251,7 +368,7 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			if (block1 != null && block1.getBlockSize().getSize() < this.getMaxSendBlocksize().getSize())
 				bSize = block1.getBlockSize();
 
-			this.blockContext = new ClientBlockContext(bSize, request.getPayload());
+			ClientBlockContext blockContext = new ClientBlockContext(bSize, request.getPayload());
 
 			BasicCoapRequest firstRequest = createRequest(request.isReliable(), request.getRequestCode());
 			firstRequest.copyHeaderOptions((BasicCoapRequest) request);
@@ -263,14 +380,31 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 				block1 = new CoapBlockOption(0, true, bSize);
 
 			firstRequest.setBlock1(block1);
-			firstRequest.setPayload(this.blockContext.getNextPayload(block1));
-			this.blockContext.setFirstRequest(firstRequest);
+			firstRequest.setPayload(blockContext.getNextPayload(block1));
+			blockContext.setFirstRequest(firstRequest);
+
+			Exchange exchange = new Exchange(firstRequest);
+			exchange.blockContext = blockContext;
+			this.exchanges.put(new TokenKey(firstRequest.getToken()), exchange);
 			return firstRequest;
 		}
 		Log.e("CCoap", "ERROR: Tried to manually add BlockContext to GET request!");
 		return (BasicCoapRequest) request;
 	}
 
+	/**
+	 * A request waiting for its response and the state of its blockwise
+	 * transfer.
+	 */
+	private class Exchange {
+		private CoapRequest request;
+		private ClientBlockContext blockContext = null;
+
+		public Exchange(CoapRequest request) {
+			this.request = request;
+		}
+	}
+
 	private class ClientBlockContext {
 
 		private ByteArrayOutputStream incomingStream;
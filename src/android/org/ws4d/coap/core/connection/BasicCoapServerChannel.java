@@ -37,6 +37,8 @@ import org.ws4d.coap.core.messages.api.CoapMessage;
 import org.ws4d.coap.core.messages.api.CoapRequest;
 import org.ws4d.coap.core.messages.api.CoapResponse;
 
+import android.util.Log;
+
 /**
  * @author Bjoern Konieczek <bjoern.konieczek@uni-rostock.de>
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -96,7 +98,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 					if (!this.blockContext.isFinished()) {
 						response = createResponse(request, CoapResponseCode.Continue_231);
 						response.setBlock1(block1);
-						sendMessage(response);
+						sendResponse(response);
 						return;
 					}
 				} else if (this.blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.GET
@@ -108,7 +110,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 					// System.out.println("Sending Block Number: " +
 					// newBlock.getNumber()+"; Payload: " + new
 					// String(response.getPayload()) );
-					sendMessage(response);
+					sendResponse(response);
 					if (this.blockContext.isFinished()) {
 						this.blockContext = null;
 					}
@@ -171,10 +173,10 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			/*
 			 * The separate Response is CON (normally a Response is ACK or NON)
 			 */
-			response = new BasicCoapResponse(CoapPacketType.CON, responseCode, this.getSocketHandler().getChannelManager().getNewMessageID(),
+			response = new BasicCoapResponse(CoapPacketType.CON, responseCode, this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()),
 					request.getToken());
 			/* send ack immediately */
-			sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, request.getMessageID()));
+			sendResponse(new CoapEmptyMessage(CoapPacketType.ACK, request.getMessageID()));
 		} else if (request.getPacketType() == CoapPacketType.NON) {
 			/* Just a normal response */
 			response = new BasicCoapResponse(CoapPacketType.NON, responseCode, request.getMessageID(),
@@ -212,7 +214,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			packetType = CoapPacketType.NON;
 		}
 
-		response = new BasicCoapResponse(packetType, responseCode, this.getSocketHandler().getChannelManager().getNewMessageID(),
+		response = new BasicCoapResponse(packetType, responseCode, this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()),
 				request.getToken());
 		response.setChannel(this);
 		response.setObserveOption(sequenceNumber);
@@ -229,6 +231,19 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		super.sendMessage(msg);
 	}
 
+	/**
+	 * Sends a message the channel creates itself while handling a request. A
+	 * message rejected by the outbound queue is lost like a dropped datagram,
+	 * the dispatch thread goes on.
+	 */
+	private void sendResponse(CoapMessage msg) {
+		try {
+			sendMessage(msg);
+		} catch (IllegalStateException e) {
+			Log.w("CCoap", "response to " + getRemoteAddress() + " rejected: " + e.getMessage());
+		}
+	}
+
 	public CoapResponse addBlockContext(CoapRequest request, byte[] payload) {
 		CoapBlockSize bSize = request.getBlock2().getBlockSize();
 		BasicCoapResponse response = this.createResponse(request, CoapResponseCode.Content_205);
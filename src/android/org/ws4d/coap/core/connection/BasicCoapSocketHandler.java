@@ -16,34 +16,41 @@
 package org.ws4d.coap.core.connection;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
-import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.NetworkConfig;
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.connection.api.DatagramTransport;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
 import org.ws4d.coap.core.messages.AbstractCoapMessage;
 import org.ws4d.coap.core.messages.CoapEmptyMessage;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 import org.ws4d.coap.core.tools.TimeoutHashMap;
+import org.ws4d.coap.core.tools.TimingWheel;
+
+import android.util.Log;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -56,236 +63,692 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 	 */
 	private static final int POLLING_INTERVALL = 10000;
 
+	/** size of the pooled send buffers, larger messages use a temporary buffer */
+	private static final int SEND_BUFFER_SIZE = CoapConstants.COAP_MESSAGE_SIZE_MAX;
+
+	/** maximal number of idle send buffers kept by the worker thread */
+	private static final int SEND_BUFFER_POOL_SIZE = 16;
+
+	/* retransmission timer resolution, one wheel turn covers about 5 seconds */
+	private static final int TIMER_TICK_MS = 10;
+	private static final int TIMER_WHEEL_SIZE = 512;
+
 	private int localPort;
 
 	private WorkerThread workerThread = null;
-	// TODO can be removed MC receive thread can also handle unicast messages
 	private ReceiveThread receiveThread = null;
-	private ReceiveThread receiveMCThread = null;
-	private Map<ChannelKey, CoapClientChannel> clientChannels = new HashMap<ChannelKey, CoapClientChannel>();
-	private Map<ChannelKey, CoapServerChannel> serverChannels = new HashMap<ChannelKey, CoapServerChannel>();
+	private DispatchThread[] dispatchThreads = null;
+
+	/** false once the socket handler was closed, it can not be started again */
+	private volatile boolean running = true;
+
+	/* the channels are looked up by the dispatch threads concurrently */
+	private Map<ChannelKey, CoapClientChannel> clientChannels = new ConcurrentHashMap<ChannelKey, CoapClientChannel>();
+	private Map<ChannelKey, CoapServerChannel> serverChannels = new ConcurrentHashMap<ChannelKey, CoapServerChannel>();
+
+	/** client channels waiting for responses to their multicast requests by token */
+	private Map<TokenKey, CoapClientChannel> multicastRequests = new ConcurrentHashMap<TokenKey, CoapClientChannel>();
 
 	private CoapChannelManager channelManager = null;
-	private DatagramChannel dgramChannel = null;
-	private MulticastSocket dgramSocket = null;
+
+	/** the socket or in-memory network the datagrams are exchanged on */
+	private DatagramTransport transport = null;
+
+	/** transmission parameters, buffer and queue sizes, see NetworkConfig */
+	private final NetworkConfig config;
+
+	/* receive statistics, only written by the receive thread */
+	private volatile long receiveWakeups = 0;
+	private volatile long receivedDatagrams = 0;
+	private volatile int lastReceiveBatch = 0;
+	private volatile int maxReceiveBatch = 0;
+	private volatile long droppedDatagrams = 0;
+
+	/** datagrams the socket did not accept at once, only written by the worker thread */
+	private volatile long deferredSends = 0;
+
+	/** received messages whose dispatch or handler failed with an exception */
+	private final AtomicLong failedDispatches = new AtomicLong(0);
+
+	/** messages waiting to be sent by the worker thread */
+	private OutboundQueue outboundQueue;
 
 	/**
-	 * contains all received message keys of a remote (message id generated by the
-	 * remote) to detect duplications
+	 * contains the encoding of all messages that (possibly) needs to be
+	 * retransmitted (ACK, RST)
 	 */
-	private TimeoutHashMap<MessageKey, Boolean> duplicateRemoteMap = new TimeoutHashMap<MessageKey, Boolean>(
-			CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	private TimeoutHashMap<MessageKey, EncodedMessage> retransMsgMap;
 
 	/**
-	 * contains all received message keys of the host (message id generated by the
-	 * host) to detect duplications
+	 * per endpoint state, e.g. the estimated retransmission timeout, the message
+	 * ids and the CON messages that are not confirmed yet
 	 */
-	private TimeoutHashMap<Integer, Boolean> duplicateHostMap = new TimeoutHashMap<Integer, Boolean>(
-			CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	private ConcurrentHashMap<InetSocketAddress, RemoteEndpoint> remoteEndpoints = new ConcurrentHashMap<InetSocketAddress, RemoteEndpoint>();
+	private AtomicInteger remoteEndpointIds = new AtomicInteger();
+
+	/** runs the message handlers in CallbackMode.VIRTUAL_THREAD, created on demand */
+	private ExecutorService handlerExecutor = null;
+
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port) throws IOException {
+		this(channelManager, port, false, true);
+	}
 
 	/**
-	 * contains all messages that (possibly) needs to be retransmitted (ACK, RST)
+	 * Creates a socket handler that may share its port with other socket
+	 * handlers. Datagrams sent to a shared port are distributed among the
+	 * handlers by the kernel (SO_REUSEPORT), each handler has its own threads,
+	 * channels and retransmission state.
+	 * 
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param port
+	 *            - the local port, 0 for an ephemeral port
+	 * @param reusePort
+	 *            - true to bind the port with SO_REUSEPORT
+	 * @param joinMulticast
+	 *            - true to join the CoAP all nodes multicast groups. Only one
+	 *            handler of a shared port should join the groups.
+	 * @throws IOException
+	 *             if the port can not be bound or SO_REUSEPORT is not supported
 	 */
-	private TimeoutHashMap<MessageKey, CoapMessage> retransMsgMap = new TimeoutHashMap<MessageKey, CoapMessage>(
-			CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port, boolean reusePort,
+			boolean joinMulticast) throws IOException {
+		this(channelManager, port, reusePort, joinMulticast, channelManager.getNetworkConfig());
+	}
+
+	/**
+	 * Creates a socket handler with its own network config.
+	 * 
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param port
+	 *            - the local port, 0 for an ephemeral port
+	 * @param reusePort
+	 *            - true to bind the port with SO_REUSEPORT
+	 * @param joinMulticast
+	 *            - true to join the CoAP all nodes multicast groups
+	 * @param config
+	 *            - the network config, changes of its transmission parameters
+	 *            take effect immediately
+	 * @throws IOException
+	 *             if the port can not be bound or SO_REUSEPORT is not supported
+	 */
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port, boolean reusePort,
+			boolean joinMulticast, NetworkConfig config) throws IOException {
+		this(channelManager, port, reusePort, joinMulticast, config, true);
+	}
 
 	/**
-	 * contains all messages that are not confirmed yet (CON), MessageID is always
-	 * generated by Host and therefore unique
+	 * Creates a socket handler on top of a datagram transport, e.g. an in-memory
+	 * network. The socket handler closes the transport when it is closed.
+	 * 
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param transport
+	 *            - the bound transport
+	 * @param config
+	 *            - the network config
 	 */
-	private TimeoutHashMap<Integer, CoapMessage> timeoutConMsgMap = new TimeoutHashMap<Integer, CoapMessage>(
-			CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, DatagramTransport transport,
+			NetworkConfig config) {
+		this(channelManager, transport, config, true);
+	}
 
-	/** this queue handles the timeout objects in the right order */
-	private PriorityBlockingQueue<TimeoutObject<Integer>> timeoutQueue = new PriorityBlockingQueue<TimeoutObject<Integer>>();
+	/**
+	 * @param start
+	 *            - false if a subclass starts the threads by calling
+	 *            startThreads() at the end of its constructor, so they never
+	 *            see it partially constructed
+	 */
+	BasicCoapSocketHandler(CoapChannelManager channelManager, int port, boolean reusePort, boolean joinMulticast,
+			NetworkConfig config, boolean start) throws IOException {
+		this(channelManager, openUdp(port, reusePort, joinMulticast, config), config, start);
+	}
 
-	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port) throws IOException {
+	BasicCoapSocketHandler(CoapChannelManager channelManager, DatagramTransport transport, NetworkConfig config,
+			boolean start) {
+		if (config == null) {
+			throw new IllegalArgumentException("config must not be null");
+		}
+		if (transport == null) {
+			throw new IllegalArgumentException("transport must not be null");
+		}
 		this.channelManager = channelManager;
+		this.config = config;
+		this.transport = transport;
+		this.localPort = transport.getLocalPort();
+		this.outboundQueue = new OutboundQueue(config.getOutboundQueueSize(), config.getOverloadPolicy());
+		this.retransMsgMap = new TimeoutHashMap<MessageKey, EncodedMessage>(config.getExchangeLifetime());
+
+		if (start) {
+			startThreads();
+		}
+	}
 
-		Enumeration<NetworkInterface> Interfaces = NetworkInterface.getNetworkInterfaces();
-		NetworkInterface NetworkAdapter = null;
+	static DatagramTransport openUdp(int port, boolean reusePort, boolean joinMulticast, NetworkConfig config)
+			throws IOException {
+		if (config == null) {
+			throw new IllegalArgumentException("config must not be null");
+		}
+		return new UdpDatagramTransport(port, reusePort, joinMulticast, config);
+	}
 
-		while (Interfaces.hasMoreElements()) {
-			NetworkAdapter = Interfaces.nextElement();
-			if (NetworkAdapter.isUp() && !NetworkAdapter.isLoopback()) {
-				break;
-			}
+	void startThreads() {
+		this.workerThread = new WorkerThread();
+		this.workerThread.start();
+
+		this.dispatchThreads = new DispatchThread[config.getDispatchThreads()];
+		for (int i = 0; i < this.dispatchThreads.length; i++) {
+			this.dispatchThreads[i] = new DispatchThread(config.getDispatchQueueSize());
+			this.dispatchThreads[i].start();
 		}
 
-		this.dgramChannel = DatagramChannel.open();
-		this.dgramChannel.socket().setReuseAddress(true);
-		this.dgramChannel.socket().bind(new InetSocketAddress(port));
+		this.receiveThread = new ReceiveThread();
+		this.receiveThread.start();
+	}
+
+	@Override
+	public NetworkConfig getNetworkConfig() {
+		return this.config;
+	}
+
+	/**
+	 * Applies the socket buffer sizes, the outbound queue size and the overload
+	 * policy of the network config after it was changed. Transmission
+	 * parameters need not be applied, they are read from the config whenever
+	 * they are used.
+	 */
+	@Override
+	public void applyNetworkConfig() {
+		this.transport.applyNetworkConfig(this.config);
+		this.outboundQueue.setCapacity(this.config.getOutboundQueueSize());
+		this.outboundQueue.setPolicy(this.config.getOverloadPolicy());
+	}
+
+	/**
+	 * @return True if UDP sockets can share a port using SO_REUSEPORT.
+	 */
+	public static boolean isReusePortSupported() {
+		return UdpDatagramTransport.isReusePortSupported();
+	}
 
-		this.localPort = this.dgramChannel.socket().getLocalPort();
-		this.dgramChannel.configureBlocking(false);
+	boolean isRunning() {
+		return this.running;
+	}
 
-		this.dgramSocket = new MulticastSocket(port);
-		this.dgramSocket.setReuseAddress(true);
-		this.dgramSocket.setNetworkInterface(NetworkAdapter);
-		this.dgramSocket.setSoTimeout(0);
-		this.dgramSocket.setReceiveBufferSize(CoapConstants.RECEIVE_BUFFER_SIZE);
+	DatagramTransport getTransport() {
+		return this.transport;
+	}
 
-		try {
-			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_LL_MC_ADDR));
-		} catch (Exception e1) {
+	Map<MessageKey, EncodedMessage> getRetransMsgMap() {
+		return this.retransMsgMap;
+	}
+
+	Map<ChannelKey, CoapServerChannel> getServerChannels() {
+		return this.serverChannels;
+	}
+
+	Map<ChannelKey, CoapClientChannel> getClientChannels() {
+		return this.clientChannels;
+	}
+
+	Map<TokenKey, CoapClientChannel> getMulticastRequests() {
+		return this.multicastRequests;
+	}
+
+	/**
+	 * @return The state kept for a remote endpoint, created on first use.
+	 */
+	RemoteEndpoint getRemoteEndpoint(InetAddress address, int port) {
+		return getRemoteEndpoint(new InetSocketAddress(address, port));
+	}
+
+	/**
+	 * @return The state kept for a remote endpoint, created on first use.
+	 */
+	RemoteEndpoint getRemoteEndpoint(InetSocketAddress remote) {
+		long now = System.currentTimeMillis();
+		while (true) {
+			RemoteEndpoint endpoint = this.remoteEndpoints.get(remote);
+			if (endpoint == null) {
+				endpoint = new RemoteEndpoint(this.remoteEndpointIds.incrementAndGet(), remote.getAddress(),
+						remote.getPort(), this.config);
+				RemoteEndpoint existing = this.remoteEndpoints.putIfAbsent(remote, endpoint);
+				if (existing != null) {
+					endpoint = existing;
+				}
+			}
+			if (endpoint.touch(now)) {
+				return endpoint;
+			}
+			/* evicted meanwhile, replace it */
+			this.remoteEndpoints.remove(remote, endpoint);
 		}
-		try {
-			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_SL_MC_ADDR));
-		} catch (Exception e1) {
+	}
+
+	/**
+	 * @return The state kept for a remote endpoint or null if there is none.
+	 *         Messages that are only dropped or reset do not create state.
+	 */
+	RemoteEndpoint findRemoteEndpoint(InetSocketAddress remote) {
+		RemoteEndpoint endpoint = this.remoteEndpoints.get(remote);
+		if (endpoint == null || !endpoint.touch(System.currentTimeMillis())) {
+			return null;
 		}
-		try {
-			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV4_MC_ADDR));
-		} catch (Exception e1) {
+		return endpoint;
+	}
+
+	/**
+	 * Removes the state of the remote endpoints that were idle for
+	 * EXCHANGE_LIFETIME, e.g. of clients that used an ephemeral port. Called by
+	 * the worker thread only.
+	 */
+	void evictIdleEndpoints() {
+		long now = System.currentTimeMillis();
+		long idleTime = this.config.getExchangeLifetime();
+		Iterator<RemoteEndpoint> it = this.remoteEndpoints.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().evictIfIdle(now, idleTime)) {
+				it.remove();
+			}
 		}
+	}
 
-		this.workerThread = new WorkerThread();
-		this.workerThread.start();
+	/**
+	 * Called by the worker thread when a CON message to a remote endpoint
+	 * reached MAX_RETRANSMIT without an acknowledgement.
+	 */
+	void lostRemote(InetSocketAddress remote) {
+		// nothing to reset for plain UDP
+	}
 
-		this.receiveThread = new ReceiveThread(false);
-		this.receiveThread.start();
+	/**
+	 * @return The number of remote endpoints state is kept for.
+	 */
+	public int getRemoteEndpointCount() {
+		return this.remoteEndpoints.size();
+	}
 
-		this.receiveMCThread = new ReceiveThread(true);
-		this.receiveMCThread.start();
+	/**
+	 * @return The retransmission timeout currently estimated for a remote
+	 *         endpoint in milliseconds.
+	 */
+	public double getRetransmissionTimeout(InetAddress address, int port) {
+		RemoteEndpoint endpoint = findRemoteEndpoint(new InetSocketAddress(address, port));
+		if (endpoint == null) {
+			return this.config.getAckTimeout();
+		}
+		return endpoint.getRto();
 	}
 
-	DatagramChannel getDatagramChannel() {
-		return this.dgramChannel;
+	/**
+	 * Ends an outstanding CON exchange with an endpoint and sends the next CON
+	 * message waiting for the endpoint.
+	 */
+	void completeExchange(RemoteEndpoint endpoint) {
+		CoapMessage next = endpoint.completeExchange(getNstart());
+		if (next != null) {
+			/* the message held its slot in the outbound queue while it waited */
+			this.outboundQueue.release();
+			this.workerThread.addReleasedMessageToSendBuffer(next);
+		}
 	}
 
-	MulticastSocket getDatagramSocket() {
-		return this.dgramSocket;
+	/**
+	 * @return The maximal number of outstanding CON messages per endpoint.
+	 */
+	public int getNstart() {
+		return this.config.getNstart();
 	}
 
-	Map<Integer, Boolean> getDuplicateHostMap() {
-		return this.duplicateHostMap;
+	/**
+	 * Changes the network config of the handler, which may be shared with other
+	 * handlers.
+	 * 
+	 * @param nstart
+	 *            - the maximal number of outstanding CON messages per endpoint,
+	 *            at least 1. See rfc7252 - 4.7.
+	 */
+	public void setNstart(int nstart) {
+		this.config.setNstart(nstart);
 	}
 
-	Map<Integer, CoapMessage> getTimeoutConMsgMap() {
-		return this.timeoutConMsgMap;
+	/**
+	 * @return The average data rate in bytes per second NON messages are sent to
+	 *         an endpoint that did not respond yet.
+	 */
+	public double getProbingRate() {
+		return this.config.getProbingRate();
 	}
 
-	Map<MessageKey, CoapMessage> getRetransMsgMap() {
-		return this.retransMsgMap;
+	/**
+	 * Changes the network config of the handler, which may be shared with other
+	 * handlers.
+	 * 
+	 * @param probingRate
+	 *            - the average data rate in bytes per second, must be positive.
+	 *            See rfc7252 - 4.7.
+	 */
+	public void setProbingRate(double probingRate) {
+		this.config.setProbingRate(probingRate);
 	}
 
-	PriorityBlockingQueue<TimeoutObject<Integer>> getTimeoutQueue() {
-		return this.timeoutQueue;
+	@Override
+	public int getNewMessageID(InetAddress remoteAddress, int remotePort) {
+		return getRemoteEndpoint(remoteAddress, remotePort).getNewMessageID();
 	}
 
-	TimeoutHashMap<MessageKey, Boolean> getDuplicateRemoteMap() {
-		return this.duplicateRemoteMap;
+	/**
+	 * @return The number of CON messages waiting for an exchange slot of the
+	 *         remote endpoint.
+	 */
+	public int getPendingExchanges(InetAddress address, int port) {
+		RemoteEndpoint endpoint = findRemoteEndpoint(new InetSocketAddress(address, port));
+		if (endpoint == null) {
+			return 0;
+		}
+		return endpoint.getPendingExchanges();
 	}
 
-	Map<ChannelKey, CoapServerChannel> getServerChannels() {
-		return this.serverChannels;
+	OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
 	}
 
-	Map<ChannelKey, CoapClientChannel> getClientChannels() {
-		return this.clientChannels;
+	private synchronized ExecutorService getHandlerExecutor() {
+		if (this.handlerExecutor == null) {
+			this.handlerExecutor = SerialExecutor.newHandlerExecutor();
+		}
+		return this.handlerExecutor;
+	}
+
+	/**
+	 * Runs a handler according to the callback mode, either directly or on the
+	 * serial executor of its remote endpoint.
+	 */
+	private void runHandler(RemoteEndpoint endpoint, Runnable handler) {
+		if (this.config.getCallbackMode() == CallbackMode.DISPATCH_THREAD) {
+			handler.run();
+			return;
+		}
+		endpoint.getHandlerExecutor(getHandlerExecutor()).execute(handler);
+	}
+
+	/**
+	 * Hands a received datagram to the dispatch thread of its remote endpoint.
+	 * Called by the receive thread only, the datagram is copied.
+	 */
+	void receiveDatagram(ByteBuffer datagram, InetSocketAddress remote) {
+		DatagramRing ring = getDispatchThread(remote).getRing();
+		if (!ring.offer(datagram, remote)) {
+			this.droppedDatagrams++;
+		}
+	}
+
+	/**
+	 * Writes a datagram to the transport. Called by the worker thread only.
+	 * 
+	 * @return The number of bytes sent, 0 if the send buffer of the socket is
+	 *         full.
+	 */
+	int sendDatagram(ByteBuffer datagram, InetSocketAddress remote) throws IOException {
+		return this.transport.send(datagram, remote);
 	}
 
 	WorkerThread getWorkerThread() {
 		return this.workerThread;
 	}
 
+	/**
+	 * @return The dispatch thread for all datagrams of a remote endpoint.
+	 */
+	DispatchThread getDispatchThread(InetSocketAddress addr) {
+		int hash = ChannelKey.hashCode(addr.getAddress(), addr.getPort());
+		return this.dispatchThreads[(hash & 0x7fffffff) % this.dispatchThreads.length];
+	}
+
 	public BasicCoapSocketHandler(CoapChannelManager channelManager) throws IOException {
 		this(channelManager, 0);
 	}
 
+	/**
+	 * Receive stage of the receive pipeline: a single event loop for all incoming
+	 * datagrams. Unicast and multicast datagrams arrive on the same channel, each
+	 * datagram is queued to the dispatch thread of its remote endpoint. Multicast
+	 * responses are told apart from unicast responses by their token (see
+	 * handleIncommingMessage). Datagrams are dropped if the dispatch queue is
+	 * full, the remote will retransmit confirmable messages.
+	 */
 	private class ReceiveThread extends Thread {
 
-		private Selector selector = null;
 		private ByteBuffer dgramBuffer;
-		private boolean MCThread;
 
-		public ReceiveThread(boolean multicast) {
-			this.dgramBuffer = ByteBuffer.allocate(CoapConstants.UDP_BUFFER_SIZE);
-			this.MCThread = multicast;
+		public ReceiveThread() {
+			/* messages are decoded in place, see handleIncommingMessage */
+			this.dgramBuffer = ByteBuffer
+					.allocateDirect(BasicCoapSocketHandler.this.getNetworkConfig().getMaxDatagramSize());
+		}
 
-			try {
-				this.selector = Selector.open();
-				BasicCoapSocketHandler.this.getDatagramChannel().register(this.selector, SelectionKey.OP_READ);
-			} catch (IOException e1) {
-			}
+		/**
+		 * Wakes up the thread after the socket handler was closed.
+		 */
+		void shutdown() {
+			BasicCoapSocketHandler.this.getTransport().wakeup();
 		}
 
 		@Override
 		public void run() {
-			InetSocketAddress addr = null;
-			DatagramPacket dgramPacket = new DatagramPacket(this.dgramBuffer.array(), CoapConstants.UDP_BUFFER_SIZE);
-
-			if (this.MCThread) {
+			receive();
+		}
 
-				while (BasicCoapSocketHandler.this.getDatagramSocket() != null) {
-					this.dgramBuffer.clear();
+		private void receive() {
+			InetSocketAddress addr = null;
 
-					try {
-						BasicCoapSocketHandler.this.getDatagramSocket().receive(dgramPacket);
-						addr = new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
-						this.dgramBuffer.position(dgramPacket.getLength());
-						handleIncommingMessage(this.dgramBuffer, addr);
-					} catch (IOException e2) {
-					}
-				}
-			} else {
-				while (BasicCoapSocketHandler.this.getDatagramChannel() != null) {
+			while (BasicCoapSocketHandler.this.isRunning()) {
+				int budget = BasicCoapSocketHandler.this.getReceiveBatchBudget();
+				int batch = 0;
 
-					/* handle incoming packets */
+				/* drain the socket until it is empty or the budget is exhausted */
+				while (batch < budget) {
 					this.dgramBuffer.clear();
 
 					try {
-						addr = (InetSocketAddress) BasicCoapSocketHandler.this.getDatagramChannel()
-								.receive(this.dgramBuffer);
+						addr = BasicCoapSocketHandler.this.getTransport().receive(this.dgramBuffer);
 					} catch (IOException e1) {
+						addr = null;
 					}
 
-					if (addr != null) {
-						handleIncommingMessage(this.dgramBuffer, addr);
+					if (addr == null) {
+						break;
 					}
+					batch++;
+					this.dgramBuffer.flip();
+					receiveDatagram(this.dgramBuffer, addr);
+				}
+				recordBatch(batch);
 
-					// Wait until new message is in the receive buffer of the socket
+				/* if the budget is exhausted, there may be more datagrams pending */
+				if (batch < budget) {
 					try {
-						this.selector.select(0);
+						// Wait until new message is in the receive buffer of the socket
+						BasicCoapSocketHandler.this.getTransport().awaitDatagrams();
 					} catch (IOException e) {
 					}
 				}
 			}
 		}
 
-		private boolean isHostDuplicate(int msgId) {
-			if (BasicCoapSocketHandler.this.getDuplicateHostMap().get(msgId) != null) {
-				return true;
+		private void recordBatch(int batch) {
+			BasicCoapSocketHandler.this.receiveWakeups++;
+			BasicCoapSocketHandler.this.receivedDatagrams += batch;
+			BasicCoapSocketHandler.this.lastReceiveBatch = batch;
+			if (batch > BasicCoapSocketHandler.this.maxReceiveBatch) {
+				BasicCoapSocketHandler.this.maxReceiveBatch = batch;
 			}
-			return false;
 		}
+	}
 
-		private boolean isRemoteDuplicate(MessageKey msgKey) {
-			if (BasicCoapSocketHandler.this.getDuplicateRemoteMap().get(msgKey) != null) {
-				return true;
+	/**
+	 * Dispatch stage of the receive pipeline. Decodes the datagrams of its ring
+	 * and hands them to the channels. All datagrams of a remote endpoint are
+	 * dispatched by the same thread, so each remote keeps its order while a slow
+	 * handler only stalls the endpoints that share its thread.
+	 */
+	private class DispatchThread extends Thread {
+
+		private DatagramRing ring;
+
+		/** the current message was handed to another thread */
+		private boolean handedOff;
+
+		/** message ids generated by the remotes of this thread */
+		private DuplicateTable duplicates = new DuplicateTable(
+				BasicCoapSocketHandler.this.getNetworkConfig().getDeduplicationCapacity(),
+				BasicCoapSocketHandler.this.getNetworkConfig().getExchangeLifetime());
+
+		/** message ids generated by the host and answered by the remotes */
+		private DuplicateTable hostDuplicates = new DuplicateTable(
+				BasicCoapSocketHandler.this.getNetworkConfig().getDeduplicationCapacity(),
+				BasicCoapSocketHandler.this.getNetworkConfig().getExchangeLifetime());
+
+		public DispatchThread(int capacity) {
+			this.ring = new DatagramRing(capacity);
+		}
+
+		DatagramRing getRing() {
+			return this.ring;
+		}
+
+		@Override
+		public void run() {
+			/* the datagrams already received are dispatched until the ring is closed */
+			while (true) {
+				DatagramRing.Slot slot = this.ring.take();
+				if (slot == null) {
+					return;
+				}
+				try {
+					handleIncommingMessage(slot.getBuffer(), slot.getRemote());
+				} catch (Exception e) {
+					/* the message is lost, the thread goes on with the next one */
+					BasicCoapSocketHandler.this.failedDispatches.incrementAndGet();
+					Log.e("CCoap", "Failed to handle a message from " + slot.getRemote(), e);
+				} finally {
+					this.ring.release();
+				}
+			}
+		}
+
+		/**
+		 * Removes a CON message from the retransmission state and feeds the
+		 * measured round trip time into the RTO estimation of its endpoint.
+		 */
+		private EncodedMessage confirmMessage(RemoteEndpoint endpoint, int msgId) {
+			EncodedMessage confirmed = endpoint.removeUnconfirmed(msgId);
+			if (confirmed != null && confirmed.complete()) {
+				BasicCoapSocketHandler.this.getWorkerThread().cancelRetransmission(confirmed);
+				confirmed.getEndpoint().updateRtt(confirmed.getElapsed(), confirmed.getRetransmissions());
+				completeExchange(confirmed.getEndpoint());
+				return confirmed;
+			}
+			return null;
+		}
+
+		/**
+		 * The first message received from a remote endpoint ends the pacing of NON
+		 * messages to it.
+		 */
+		private void markResponsive(RemoteEndpoint endpoint) {
+			if (!endpoint.isResponsive()) {
+				endpoint.setResponsive(true);
+				BasicCoapSocketHandler.this.getWorkerThread().wakeup();
 			}
-			return false;
 		}
 
-		private void retransmitRemoteDuplicate(MessageKey msgKey) {
-			CoapMessage retransMsg;
-			retransMsg = BasicCoapSocketHandler.this.getRetransMsgMap().get(msgKey);
+		/**
+		 * Remembers a message id generated by the host that was answered by the
+		 * remote, so repeated ACKs and responses are dropped.
+		 */
+		private boolean isHostDuplicate(RemoteEndpoint endpoint, int msgId) {
+			return this.hostDuplicates.isDuplicate(endpoint.getMessageKey(msgId), System.currentTimeMillis());
+		}
+
+		/**
+		 * Remembers a message id generated by the remote. Only the dispatch thread
+		 * of the endpoint uses its entries, so the table needs no locking.
+		 */
+		private boolean isRemoteDuplicate(RemoteEndpoint endpoint, int msgId) {
+			return this.duplicates.isDuplicate(endpoint.getMessageKey(msgId), System.currentTimeMillis());
+		}
+
+		private void retransmitRemoteDuplicate(InetSocketAddress addr, int msgId) {
+			EncodedMessage retransMsg;
+			retransMsg = BasicCoapSocketHandler.this.getRetransMsgMap()
+					.get(new MessageKey(msgId, addr.getAddress(), addr.getPort()));
 			if (retransMsg == null) {
 			} else {
-				BasicCoapSocketHandler.this.getWorkerThread().addMessageToSendBuffer(retransMsg);
+				/* replay the cached encoding, the message is not serialized again */
+				BasicCoapSocketHandler.this.getWorkerThread().addEncodedMessageToSendBuffer(retransMsg);
 			}
 		}
 
+		/**
+		 * Decodes a datagram without copying it and dispatches the message. The
+		 * message refers to the receive buffer until it is detached. Messages that
+		 * were handed to a channel may be kept by the application and are detached
+		 * before the buffer is reused, all others are simply dropped. The detach
+		 * is not safe against other threads: in DISPATCH_THREAD mode a handler
+		 * must not pass the message on, see {@link CallbackMode}.
+		 */
 		private void handleIncommingMessage(ByteBuffer buffer, InetSocketAddress addr) {
-			CoapMessage msg;
+			AbstractCoapMessage msg;
 			try {
-				msg = AbstractCoapMessage.parseMessage(buffer.array(), buffer.position());
+				msg = (AbstractCoapMessage) AbstractCoapMessage.parseMessage(buffer);
 			} catch (Exception e) {
 				return;
 			}
 
+			this.handedOff = false;
+			try {
+				dispatchMessage(msg, addr);
+			} finally {
+				if (msg.getChannel() != null && !this.handedOff) {
+					msg.detach();
+				}
+			}
+		}
+
+		/**
+		 * Hands a message to its channel. A message handled by another thread is
+		 * detached from the receive buffer first.
+		 */
+		private void deliver(RemoteEndpoint endpoint, CoapMessage msg, Runnable handler) {
+			if (BasicCoapSocketHandler.this.config.getCallbackMode() == CallbackMode.DISPATCH_THREAD) {
+				handler.run();
+				return;
+			}
+			((AbstractCoapMessage) msg).detach();
+			this.handedOff = true;
+			endpoint.getHandlerExecutor(getHandlerExecutor()).execute(handler);
+		}
+
+		private void deliver(RemoteEndpoint endpoint, final CoapChannel channel, final CoapMessage msg) {
+			deliver(endpoint, msg, new Runnable() {
+				@Override
+				public void run() {
+					channel.handleMessage(msg);
+				}
+			});
+		}
+
+		private void dispatchMessage(CoapMessage msg, InetSocketAddress addr) {
+
 			CoapPacketType packetType = msg.getPacketType();
 			int msgId = msg.getMessageID();
-			MessageKey msgKey = new MessageKey(msgId, addr.getAddress(), addr.getPort());
+			/* only messages that are accepted create endpoint state */
+			RemoteEndpoint endpoint = findRemoteEndpoint(addr);
+			if (endpoint != null) {
+				markResponsive(endpoint);
+			}
 
 			if (msg.isRequest()) {
 				/*
@@ -299,8 +762,8 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				/*
 				 * check for duplicates and retransmit the response if a duplication is detected
 				 */
-				if (isRemoteDuplicate(msgKey)) {
-					retransmitRemoteDuplicate(msgKey);
+				if (endpoint != null && isRemoteDuplicate(endpoint, msgId)) {
+					retransmitRemoteDuplicate(addr, msgId);
 					return;
 				}
 
@@ -327,8 +790,14 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 					}
 				}
+				if (endpoint == null) {
+					endpoint = getRemoteEndpoint(addr);
+					markResponsive(endpoint);
+					/* remember the message id of the first request */
+					isRemoteDuplicate(endpoint, msgId);
+				}
 				msg.setChannel(channel);
-				channel.handleMessage(msg);
+				deliver(endpoint, channel, msg);
 				return;
 
 			} else if (msg.isResponse()) {
@@ -347,8 +816,12 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					/*
 					 * This is a separate response, the message ID is generated by the remote
 					 */
-					if (isRemoteDuplicate(msgKey)) {
-						retransmitRemoteDuplicate(msgKey);
+					if (endpoint == null) {
+						/* no request was sent to the remote */
+						return;
+					}
+					if (isRemoteDuplicate(endpoint, msgId)) {
+						retransmitRemoteDuplicate(addr, msgId);
 						return;
 					}
 					/* This is a separate Response */
@@ -359,14 +832,23 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 						return;
 					}
 					msg.setChannel(channel);
-					channel.handleMessage(msg);
+					deliver(endpoint, channel, msg);
 					return;
 				}
 
 				/*
 				 * normal response (ACK or NON), message id was generated by host
 				 */
-				if (isHostDuplicate(msgId)) {
+				if (endpoint == null) {
+					if (BasicCoapSocketHandler.this.getMulticastRequests().isEmpty()) {
+						/* no request was sent to the remote */
+						return;
+					}
+					/* a response to a multicast request comes from a new remote */
+					endpoint = getRemoteEndpoint(addr);
+					markResponsive(endpoint);
+				}
+				if (isHostDuplicate(endpoint, msgId)) {
 					/* drop duplicate responses */
 					return;
 				}
@@ -379,41 +861,33 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				 * Corresponding to the spec the server should be aware of a NON as answer to a
 				 * CON
 				 */
-				BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
+				confirmMessage(endpoint, msgId);
 				CoapClientChannel channel = BasicCoapSocketHandler.this.getClientChannels()
 						.get(new ChannelKey(addr.getAddress(), addr.getPort()));
 
 				/*
 				 * If no channel for the message can be found via channel key, it may be a
-				 * multicast response! Check whether the message tokens of the last request and
-				 * the current response match. If still no channel can be found, drop the
-				 * message!
+				 * multicast response! Look up the multicast request by the token of the
+				 * response. If still no channel can be found, drop the message!
 				 */
 				if (channel == null) {
-					boolean mcResp = false;
-					Iterator<ChannelKey> it = BasicCoapSocketHandler.this.getClientChannels().keySet().iterator();
-					while (it.hasNext()) {
-						channel = BasicCoapSocketHandler.this.getClientChannels().get(it.next());
-						try {
-							if (new String(channel.getLastToken()).equals(new String(msg.getToken()))) {
-								mcResp = true;
-								break;
+					final CoapClientChannel mcChannel = BasicCoapSocketHandler.this.getMulticastRequests()
+							.get(new TokenKey(msg.getToken()));
+					if (mcChannel != null) {
+						final InetSocketAddress source = addr;
+						msg.setChannel(mcChannel);
+						deliver(endpoint, msg, new Runnable() {
+							@Override
+							public void run() {
+								mcChannel.handleMCResponse(msg, source.getAddress(), source.getPort());
 							}
-						} catch (Exception e) {
-						}
-					}
-
-					if (!mcResp) {
-					} else if (null == channel) {
-					} else {
-						msg.setChannel(channel);
-						channel.handleMCResponse(msg, addr.getAddress(), addr.getPort());
+						});
 					}
 					return;
 				}
 
 				msg.setChannel(channel);
-				channel.handleMessage(msg);
+				deliver(endpoint, channel, msg);
 				return;
 
 			} else {
@@ -423,13 +897,17 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					}
 
 					/* ACK or RST, Message Id was generated by the host */
-					if (isHostDuplicate(msgId)) {
+					if (endpoint == null) {
+						/* nothing was sent to the remote */
+						return;
+					}
+					if (isHostDuplicate(endpoint, msgId)) {
 						/* drop duplicate responses */
 						return;
 					}
 
 					/* confirm */
-					BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
+					EncodedMessage confirmed = confirmMessage(endpoint, msgId);
 
 					/* get channel */
 					/*
@@ -449,13 +927,25 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					msg.setChannel(channel);
 					if (packetType == CoapPacketType.ACK) {
 						/* separate response ACK */
-						channel.handleMessage(msg);
+						deliver(endpoint, channel, msg);
 						return;
 					}
 
 					if (packetType == CoapPacketType.RST) {
 						/* connection closed by remote */
-						channel.handleMessage(msg);
+						if (confirmed != null && channel instanceof CoapClientChannel) {
+							/* only the request that was reset fails */
+							final CoapClientChannel client = (CoapClientChannel) channel;
+							final byte[] token = confirmed.getToken();
+							deliver(endpoint, msg, new Runnable() {
+								@Override
+								public void run() {
+									client.lostExchange(token, false, true);
+								}
+							});
+							return;
+						}
+						deliver(endpoint, channel, msg);
 						return;
 					}
 
@@ -466,101 +956,485 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	private class WorkerThread extends Thread {
 		private Selector selector = null;
-		private ConcurrentLinkedQueue<CoapMessage> workerSendBuffer = new ConcurrentLinkedQueue<CoapMessage>();
+		/** already encoded messages to be sent again (duplicate replays) */
+		private ConcurrentLinkedQueue<EncodedMessage> workerReplayBuffer = new ConcurrentLinkedQueue<EncodedMessage>();
+		/** CON messages that got a free exchange slot of their endpoint */
+		private ConcurrentLinkedQueue<CoapMessage> workerReleasedBuffer = new ConcurrentLinkedQueue<CoapMessage>();
+		/** endpoints with NON messages waiting for PROBING_RATE */
+		private ArrayDeque<RemoteEndpoint> probingEndpoints = new ArrayDeque<RemoteEndpoint>();
+
+		/** retransmission timers of the unconfirmed CON messages */
+		private TimingWheel<EncodedMessage> retransmissionTimers = new TimingWheel<EncodedMessage>(TIMER_WHEEL_SIZE,
+				TIMER_TICK_MS, now());
+		/** confirmed CON messages whose timers must be cancelled */
+		private ConcurrentLinkedQueue<EncodedMessage> cancelledTimers = new ConcurrentLinkedQueue<EncodedMessage>();
+
+		/** direct send buffers, only used by the worker thread */
+		private ArrayDeque<ByteBuffer> sendBufferPool = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * datagrams the socket did not accept because its send buffer was full,
+		 * they are sent in order as soon as it is writable again
+		 */
+		private ArrayDeque<DeferredFrame> deferredFrames = new ArrayDeque<DeferredFrame>();
+		private SelectionKey writeKey = null;
+
+		/**
+		 * true while the worker thread waits in select(), senders only wake it up
+		 * in this case
+		 */
+		private AtomicBoolean parked = new AtomicBoolean(false);
+		private AtomicLong wakeups = new AtomicLong(0);
 
 		public WorkerThread() {
 			try {
 				this.selector = Selector.open();
 				/*
 				 * No selection key is 0, because channel does not know, when new message are in
-				 * sendBuffer anyway.
+				 * sendBuffer anyway. OP_WRITE is only selected while frames are deferred.
 				 */
-				BasicCoapSocketHandler.this.getDatagramChannel().register(this.selector, 0);
+				this.writeKey = BasicCoapSocketHandler.this.getTransport().registerWritable(this.selector);
 			} catch (IOException e1) {
 			}
 		}
 
+		/**
+		 * Wakes up the thread after the socket handler was closed, it sends the
+		 * queued messages and terminates.
+		 */
+		void shutdown() {
+			this.selector.wakeup();
+		}
+
 		@Override
 		public void run() {
+			try {
+				work();
+				/* the last responses of the handlers */
+				flushDeferredFrames();
+				sendBufferedMessages(true);
+			} finally {
+				closeSelector(this.selector);
+			}
+		}
+
+		private void work() {
 			long waitFor = POLLING_INTERVALL;
+			long nextEviction = now() + POLLING_INTERVALL;
+
+			while (BasicCoapSocketHandler.this.isRunning()) {
+				/*
+				 * deferred frames go first, new messages stay in the outbound queue while
+				 * the socket is full
+				 */
+				boolean writable = this.deferredFrames.isEmpty() || flushDeferredFrames();
 
-			while (BasicCoapSocketHandler.this.getDatagramChannel() != null) {
 				/* send all messages in the send buffer */
-				sendBufferedMessages();
+				sendBufferedMessages(writable);
 
-				waitFor = handleTimeouts();
+				waitFor = Math.min(handleTimeouts(), sendProbes());
+
+				/* the wait below is at most POLLING_INTERVALL */
+				if (now() >= nextEviction) {
+					evictIdleEndpoints();
+					nextEviction = now() + POLLING_INTERVALL;
+				}
 				/*
 				 * When sendBuffer is empty, wait until 1. selector.wakeup() is called by
-				 * sendMessage() 2. timeout
+				 * sendMessage() 2. timeout. The parked flag is raised before the queues are
+				 * checked, so a message queued after the check always wakes the selector.
 				 */
-				if (this.workerSendBuffer.isEmpty()) {
+				this.parked.set(true);
+				if ((!writable || BasicCoapSocketHandler.this.getOutboundQueue().isEmpty())
+						&& this.workerReplayBuffer.isEmpty() && this.workerReleasedBuffer.isEmpty()) {
 					try {
 						this.selector.select(waitFor);
+						this.selector.selectedKeys().clear();
 					} catch (IOException e) {
 					}
 				}
+				this.parked.set(false);
 			}
 		}
 
-		synchronized void addMessageToSendBuffer(CoapMessage msg) {
-			this.workerSendBuffer.add(msg);
-			/* send immediately */
-			this.selector.wakeup();
+		void addMessageToSendBuffer(CoapMessage msg) {
+			/* the worker thread must not wait for itself */
+			boolean mayBlock = Thread.currentThread() != this;
+			if (BasicCoapSocketHandler.this.getOutboundQueue().offer(msg, mayBlock)) {
+				wakeup();
+			}
+		}
+
+		void addEncodedMessageToSendBuffer(EncodedMessage msg) {
+			this.workerReplayBuffer.add(msg);
+			wakeup();
+		}
+
+		/**
+		 * Sends a CON message that was queued by its endpoint and now got a free
+		 * exchange slot. It bypasses the outbound queue, it was already accepted.
+		 */
+		void addReleasedMessageToSendBuffer(CoapMessage msg) {
+			this.workerReleasedBuffer.add(msg);
+			wakeup();
+		}
+
+		/**
+		 * Sends queued messages immediately. Only the first sender after the worker
+		 * thread parked wakes up the selector, all others are elided.
+		 */
+		private void wakeup() {
+			if (this.parked.compareAndSet(true, false)) {
+				this.wakeups.incrementAndGet();
+				this.selector.wakeup();
+			}
+		}
+
+		long getWakeups() {
+			return this.wakeups.get();
 		}
 
-		private void sendBufferedMessages() {
-			CoapMessage msg = this.workerSendBuffer.poll();
+		/**
+		 * @param writable
+		 *            - false while frames are deferred, the outbound queue is
+		 *            not drained then
+		 */
+		private void sendBufferedMessages(boolean writable) {
+			OutboundQueue queue = BasicCoapSocketHandler.this.getOutboundQueue();
+			CoapMessage msg = writable ? queue.poll() : null;
 			while (msg != null) {
-				sendUdpMsg(msg);
-				msg = this.workerSendBuffer.poll();
+				if (sendUdpMsg(msg)) {
+					queue.release();
+				}
+				msg = queue.poll();
+			}
+
+			EncodedMessage encoded = this.workerReplayBuffer.poll();
+			while (encoded != null) {
+				sendFrame(encoded.getFrame(), encoded.getRemote());
+				encoded = this.workerReplayBuffer.poll();
+			}
+
+			msg = this.workerReleasedBuffer.poll();
+			while (msg != null) {
+				sendConMsg(msg);
+				msg = this.workerReleasedBuffer.poll();
 			}
 		}
 
-		private void sendUdpMsg(CoapMessage msg) {
-			if (msg == null) {
+		/**
+		 * Sends the NON messages whose endpoints allow it again.
+		 * 
+		 * @return Milliseconds until the next NON message may be sent.
+		 *         POLLING_INTERVALL if there is none waiting.
+		 */
+		private long sendProbes() {
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			Iterator<RemoteEndpoint> it = this.probingEndpoints.iterator();
+			while (it.hasNext()) {
+				RemoteEndpoint endpoint = it.next();
+				CoapMessage msg = endpoint.nextProbe(now);
+				while (msg != null) {
+					sendNonMsg(msg, endpoint);
+					msg = endpoint.nextProbe(now);
+				}
+				long probeTime = endpoint.getNextProbeTime();
+				if (probeTime == Long.MAX_VALUE) {
+					it.remove();
+				} else {
+					next = Math.min(next, probeTime);
+				}
+			}
+			if (next == Long.MAX_VALUE) {
+				return POLLING_INTERVALL;
+			}
+			return Math.max(next - now, 1);
+		}
+
+		/**
+		 * Retransmits a CON message from its cached encoding or reports a lost
+		 * connection if the maximal number of retransmissions is reached.
+		 * 
+		 * @param msg
+		 *            - the unconfirmed message
+		 */
+		void retransmit(EncodedMessage msg) {
+			if (msg.getRetransmissions() >= BasicCoapSocketHandler.this.getNetworkConfig().getMaxRetransmit()) {
+				/* the connection is broken */
+				if (msg.complete()) {
+					msg.getEndpoint().removeUnconfirmed(msg.getMessageId());
+					msg.getEndpoint().setResponsive(false);
+					lostRemote(msg.getRemote());
+					completeExchange(msg.getEndpoint());
+					final EncodedMessage lost = msg;
+					/*
+					 * only the VIRTUAL_THREAD mode keeps the callbacks off the
+					 * worker thread, they run right here otherwise
+					 */
+					runHandler(msg.getEndpoint(), new Runnable() {
+						@Override
+						public void run() {
+							if (lost.getChannel() instanceof CoapClientChannel) {
+								((CoapClientChannel) lost.getChannel()).lostExchange(lost.getToken(), true, false);
+							} else {
+								lost.getChannel().lostConnection(true, false);
+							}
+						}
+					});
+				}
 				return;
 			}
+			msg.incRetransCounterAndTimeout();
+			scheduleRetransmission(msg);
+			sendFrame(msg.getFrame(), msg.getRemote());
+		}
+
+		private void scheduleRetransmission(EncodedMessage msg) {
+			this.retransmissionTimers.schedule(msg, now() + msg.getTimeout());
+		}
+
+		/**
+		 * Cancels the retransmission timer of a confirmed message. The timer is
+		 * owned by the worker thread, other threads only queue the cancellation.
+		 */
+		void cancelRetransmission(EncodedMessage msg) {
+			if (Thread.currentThread() == this) {
+				this.retransmissionTimers.cancel(msg);
+			} else {
+				this.cancelledTimers.add(msg);
+			}
+		}
+
+		/**
+		 * Retransmits the CON messages whose timers expired.
+		 * 
+		 * @return Milliseconds until the next timeout expires. POLLING_INTERVALL if
+		 *         there is no timeout to wait for.
+		 */
+		long handleTimeouts() {
+			EncodedMessage msg = this.cancelledTimers.poll();
+			while (msg != null) {
+				this.retransmissionTimers.cancel(msg);
+				msg = this.cancelledTimers.poll();
+			}
+
+			long now = now();
+			msg = this.retransmissionTimers.poll(now);
+			while (msg != null) {
+				/* retransmit message after expired timeout, confirmed messages are skipped */
+				if (!msg.isCompleted()) {
+					retransmit(msg);
+				}
+				msg = this.retransmissionTimers.poll(now);
+			}
+
+			long delay = this.retransmissionTimers.getDelay(now);
+			if (delay < 0) {
+				return POLLING_INTERVALL;
+			}
+			/* select(0) would wait forever */
+			return Math.max(delay, 1);
+		}
+
+		/**
+		 * @return The current time of a monotonic clock in milliseconds.
+		 */
+		private long now() {
+			return System.nanoTime() / 1000000;
+		}
+
+		private void sendFrame(byte[] frame, InetSocketAddress remote) {
+			ByteBuffer buf = acquireSendBuffer(frame.length);
+			try {
+				buf.put(frame);
+				buf.flip();
+				transmit(buf, remote);
+			} catch (IOException e) {
+			} finally {
+				releaseSendBuffer(buf);
+			}
+		}
+
+		/**
+		 * Sends a datagram. If the send buffer of the socket is full or older
+		 * frames are still deferred, a copy of the datagram is deferred and
+		 * OP_WRITE is selected. The buffer can be reused afterwards.
+		 */
+		private void transmit(ByteBuffer buf, InetSocketAddress remote) throws IOException {
+			if (this.deferredFrames.isEmpty()) {
+				if (sendDatagram(buf, remote) > 0) {
+					return;
+				}
+				if (this.writeKey != null) {
+					this.writeKey.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+			ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+			copy.put(buf);
+			copy.flip();
+			this.deferredFrames.add(new DeferredFrame(copy, remote));
+			BasicCoapSocketHandler.this.deferredSends++;
+		}
+
+		/**
+		 * Sends the deferred frames in order until the socket is full again.
+		 * 
+		 * @return true, if all deferred frames were sent.
+		 */
+		private boolean flushDeferredFrames() {
+			DeferredFrame frame = this.deferredFrames.peek();
+			while (frame != null) {
+				try {
+					if (sendDatagram(frame.getBuffer(), frame.getRemote()) == 0) {
+						return false;
+					}
+				} catch (IOException e) {
+					/* e.g. unreachable, dropped like a frame sent directly */
+				}
+				this.deferredFrames.poll();
+				frame = this.deferredFrames.peek();
+			}
+			if (this.writeKey != null) {
+				this.writeKey.interestOps(0);
+			}
+			return true;
+		}
+
+		private ByteBuffer acquireSendBuffer(int length) {
+			if (length > SEND_BUFFER_SIZE) {
+				return ByteBuffer.allocate(length);
+			}
+			ByteBuffer buffer = this.sendBufferPool.pollFirst();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+			}
+			buffer.clear();
+			return buffer;
+		}
+
+		private void releaseSendBuffer(ByteBuffer buffer) {
+			if (buffer.isDirect() && this.sendBufferPool.size() < SEND_BUFFER_POOL_SIZE) {
+				this.sendBufferPool.addFirst(buffer);
+			}
+		}
+
+		/**
+		 * @return False if the message is a CON message that waits for a free
+		 *         exchange slot of its endpoint. It keeps its slot in the
+		 *         outbound queue until then.
+		 */
+		private boolean sendUdpMsg(CoapMessage msg) {
+			if (msg == null) {
+				return true;
+			}
 
 			CoapPacketType packetType = msg.getPacketType();
-			InetAddress inetAddr = msg.getChannel().getRemoteAddress();
-			int port = msg.getChannel().getRemotePort();
+			CoapChannel channel = msg.getChannel();
+			InetAddress inetAddr = channel.getRemoteAddress();
+			int port = channel.getRemotePort();
 			int msgId = msg.getMessageID();
 
 			if (packetType == CoapPacketType.CON) {
-				/*
-				 * in case of a CON this is a Request requests must be added to the timeout
-				 * queue except this was the last retransmission
-				 */
-				if (msg.maxRetransReached()) {
-					/* the connection is broken */
-					BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
-					msg.getChannel().lostConnection(true, false);
-					return;
+				/* at most NSTART exchanges per endpoint, further messages are queued */
+				RemoteEndpoint endpoint = getRemoteEndpoint(getRemote(channel));
+				if (endpoint.startExchange(msg, BasicCoapSocketHandler.this.getNstart())) {
+					sendConMsg(msg);
+					return true;
 				}
-				msg.incRetransCounterAndTimeout();
-				BasicCoapSocketHandler.this.getTimeoutConMsgMap().put(msgId, msg);
-				TimeoutObject<Integer> tObj = new TimeoutObject<Integer>(msgId,
-						msg.getTimeout() + System.currentTimeMillis());
-				BasicCoapSocketHandler.this.getTimeoutQueue().add(tObj);
+				return false;
 			}
 
 			if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST) {
-				/* save this type of messages for a possible retransmission */
-				BasicCoapSocketHandler.this.getRetransMsgMap().put(new MessageKey(msgId, inetAddr, port), msg);
+				/*
+				 * save the encoding of this type of messages for a possible retransmission,
+				 * it has to outlive the pooled send buffers
+				 */
+				EncodedMessage encoded = new EncodedMessage(msg.serialize(), getRemote(channel), msgId);
+				BasicCoapSocketHandler.this.getRetransMsgMap().put(new MessageKey(msgId, inetAddr, port), encoded);
+				sendFrame(encoded.getFrame(), encoded.getRemote());
+				return true;
+			}
+
+			/* NON messages to multicast groups are not paced */
+			if (inetAddr.isMulticastAddress()) {
+				sendNonMsg(msg, null);
+				return true;
+			}
+			RemoteEndpoint endpoint = getRemoteEndpoint(getRemote(channel));
+			if (endpoint.mayProbe(msg, System.currentTimeMillis())) {
+				sendNonMsg(msg, endpoint);
+			} else if (!this.probingEndpoints.contains(endpoint)) {
+				this.probingEndpoints.add(endpoint);
 			}
+			return true;
+		}
 
-			/* Nothing to do for NON */
+		/**
+		 * in case of a CON this is a Request requests must be added to the timeout
+		 * queue, the encoding is kept for the retransmissions. The timeout is
+		 * estimated per remote endpoint.
+		 */
+		private void sendConMsg(CoapMessage msg) {
+			CoapChannel channel = msg.getChannel();
+			int msgId = msg.getMessageID();
+			InetSocketAddress remote = getRemote(channel);
+			EncodedMessage encoded = new EncodedMessage(msg.serialize(), remote, msgId, channel,
+					getRemoteEndpoint(remote));
+			encoded.getEndpoint().addUnconfirmed(encoded);
+			scheduleRetransmission(encoded);
+			sendFrame(encoded.getFrame(), encoded.getRemote());
+		}
 
-			/* send message */
-			ByteBuffer buf = ByteBuffer.wrap(msg.serialize());
+		/**
+		 * Nothing to save for NON, send message
+		 */
+		private void sendNonMsg(CoapMessage msg, RemoteEndpoint endpoint) {
+			int length = msg.getSerializedLength();
+			ByteBuffer buf = acquireSendBuffer(length);
 			try {
-				BasicCoapSocketHandler.this.getDatagramChannel().send(buf, new InetSocketAddress(inetAddr, port));
+				msg.serializeTo(buf);
+				buf.flip();
+				transmit(buf, getRemote(msg.getChannel()));
 			} catch (IOException e) {
+			} finally {
+				releaseSendBuffer(buf);
+			}
+			if (endpoint != null) {
+				endpoint.probed(length, BasicCoapSocketHandler.this.getProbingRate(), System.currentTimeMillis());
+			}
+		}
+
+		private InetSocketAddress getRemote(CoapChannel channel) {
+			if (channel instanceof BasicCoapChannel) {
+				return ((BasicCoapChannel) channel).getRemoteSocketAddress();
 			}
+			return new InetSocketAddress(channel.getRemoteAddress(), channel.getRemotePort());
+		}
+	}
+
+	/**
+	 * A datagram waiting until the socket is writable again.
+	 */
+	private static class DeferredFrame {
+		private final ByteBuffer buffer;
+		private final InetSocketAddress remote;
+
+		DeferredFrame(ByteBuffer buffer, InetSocketAddress remote) {
+			this.buffer = buffer;
+			this.remote = remote;
+		}
+
+		ByteBuffer getBuffer() {
+			return this.buffer;
+		}
+
+		InetSocketAddress getRemote() {
+			return this.remote;
 		}
 	}
 
-	private class MessageKey {
+	private static class MessageKey {
 		private int msgID;
 		private InetAddress inetAddr;
 		private int port;
@@ -575,7 +1449,6 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 		public int hashCode() {
 			final int prime = 31;
 			int result = 1;
-			result = prime * result + getOuterType().hashCode();
 			result = prime * result + ((this.inetAddr == null) ? 0 : this.inetAddr.hashCode());
 			result = prime * result + this.msgID;
 			result = prime * result + this.port;
@@ -591,8 +1464,6 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 			if (getClass() != obj.getClass())
 				return false;
 			MessageKey other = (MessageKey) obj;
-			if (!getOuterType().equals(other.getOuterType()))
-				return false;
 			if (this.inetAddr == null) {
 				if (other.inetAddr != null)
 					return false;
@@ -604,79 +1475,163 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				return false;
 			return true;
 		}
+	}
 
-		private BasicCoapSocketHandler getOuterType() {
-			return BasicCoapSocketHandler.this;
-		}
+	private void addClientChannel(CoapClientChannel channel) {
+		this.clientChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
 	}
 
-	private class TimeoutObject<T> implements Comparable<TimeoutObject<?>> {
-		private long expires;
-		private T object;
+	void addServerChannel(CoapServerChannel channel) {
+		this.serverChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	}
 
-		public TimeoutObject(T object, long expires) {
-			this.expires = expires;
-			this.object = object;
-		}
+	/**
+	 * @return The maximal number of datagrams read per receive wakeup.
+	 */
+	public int getReceiveBatchBudget() {
+		return this.config.getReceiveBatchBudget();
+	}
 
-		public T getObject() {
-			return this.object;
-		}
+	/**
+	 * Sets the maximal number of datagrams read from the socket per wakeup of
+	 * the receive thread. A budget of 1 reads a single datagram per wakeup.
+	 * 
+	 * @param budget
+	 *            - the receive budget, must be at least 1
+	 */
+	public void setReceiveBatchBudget(int budget) {
+		this.config.setReceiveBatchBudget(budget);
+	}
+
+	/**
+	 * @return The number of times the receive thread woke up to read datagrams.
+	 */
+	public long getReceiveWakeups() {
+		return this.receiveWakeups;
+	}
+
+	/**
+	 * @return The number of datagrams read from the socket.
+	 */
+	public long getReceivedDatagrams() {
+		return this.receivedDatagrams;
+	}
+
+	/**
+	 * @return The number of datagrams read during the last wakeup.
+	 */
+	public int getLastReceiveBatch() {
+		return this.lastReceiveBatch;
+	}
+
+	/**
+	 * @return The largest number of datagrams read during a single wakeup.
+	 */
+	public int getMaxReceiveBatch() {
+		return this.maxReceiveBatch;
+	}
 
-		public long getExpire() {
-			return this.expires;
+	/**
+	 * @return The number of received datagrams waiting for dispatch.
+	 */
+	public int getDispatchQueueDepth() {
+		int depth = 0;
+		for (DispatchThread thread : this.dispatchThreads) {
+			depth += thread.getRing().getDepth();
 		}
+		return depth;
+	}
 
-		public int compareTo(TimeoutObject<?> o) {
-			return (int) (this.expires - o.expires);
+	/**
+	 * @return The highest number of datagrams that were waiting in a single
+	 *         dispatch queue.
+	 */
+	public int getMaxDispatchQueueDepth() {
+		int max = 0;
+		for (DispatchThread thread : this.dispatchThreads) {
+			max = Math.max(max, thread.getRing().getMaxDepth());
 		}
+		return max;
 	}
 
 	/**
-	 * @return Milliseconds until the next timeout expires. POLLING_INTERVALL if
-	 *         there is no timeout to wait for.
+	 * @return The number of datagrams dropped because their dispatch queue was
+	 *         full.
 	 */
-	long handleTimeouts() {
-		long nextTimeout = POLLING_INTERVALL;
+	public long getDroppedDatagrams() {
+		return this.droppedDatagrams;
+	}
 
-		while (true) {
-			TimeoutObject<Integer> tObj;
-			tObj = this.timeoutQueue.peek();
-			if (tObj == null) {
-				/* timeout queue is empty */
-				nextTimeout = POLLING_INTERVALL;
-				break;
-			}
+	/**
+	 * @return The number of received messages that were lost because their
+	 *         dispatch or a handler run by the dispatch thread failed with an
+	 *         exception.
+	 */
+	public long getFailedDispatches() {
+		return this.failedDispatches.get();
+	}
 
-			nextTimeout = tObj.getExpire() - System.currentTimeMillis();
-			if (nextTimeout > 0) {
-				/* timeout not expired */
-				break;
-			}
-			/*
-			 * timeout expired, sendMessage will send the message and create a new timeout
-			 * if the message was already confirmed, nonConfirmedMsgMap.get() will return
-			 * null
-			 */
-			this.timeoutQueue.poll();
-			Integer msgId = tObj.getObject();
+	/**
+	 * @return The number of datagrams that were deferred because the send
+	 *         buffer of the socket was full. They are sent once the socket is
+	 *         writable again.
+	 */
+	public long getDeferredSends() {
+		return this.deferredSends;
+	}
 
-			/* retransmit message after expired timeout */
+	@Override
+	public boolean isWritable() {
+		return this.outboundQueue.isWritable();
+	}
 
-			CoapMessage msg = null;
-			msg = this.timeoutConMsgMap.get(msgId);
-			if (msg != null)
-				sendMessage(msg);
-		}
-		return nextTimeout;
+	/**
+	 * @return The number of messages waiting to be sent, including the CON
+	 *         messages waiting for a free exchange slot of their endpoint.
+	 */
+	public int getOutboundQueueDepth() {
+		return this.outboundQueue.getDepth();
 	}
 
-	private void addClientChannel(CoapClientChannel channel) {
-		this.clientChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	public int getOutboundQueueCapacity() {
+		return this.outboundQueue.getCapacity();
 	}
 
-	void addServerChannel(CoapServerChannel channel) {
-		this.serverChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	/**
+	 * @param capacity
+	 *            - the maximal number of messages waiting to be sent, at least 1
+	 */
+	public void setOutboundQueueCapacity(int capacity) {
+		this.config.setOutboundQueueSize(capacity);
+		this.outboundQueue.setCapacity(capacity);
+	}
+
+	public OverloadPolicy getOverloadPolicy() {
+		return this.outboundQueue.getPolicy();
+	}
+
+	/**
+	 * @param policy
+	 *            - what happens to messages sent while the outbound queue is full
+	 */
+	public void setOverloadPolicy(OverloadPolicy policy) {
+		this.config.setOverloadPolicy(policy);
+		this.outboundQueue.setPolicy(policy);
+	}
+
+	/**
+	 * @return The number of NON messages dropped because the outbound queue was
+	 *         full.
+	 */
+	public long getDroppedOutboundMessages() {
+		return this.outboundQueue.getDroppedMessages();
+	}
+
+	/**
+	 * @return The number of times a sender had to wake up the worker thread.
+	 */
+	public long getSendWakeups() {
+		return this.workerThread.getWakeups();
 	}
 
 	@Override
@@ -686,6 +1641,17 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	@Override
 	public void removeClientChannel(CoapClientChannel channel) {
+		if (channel.getRemoteAddress().isMulticastAddress()) {
+			/* stop waiting for responses to the multicast requests of the channel */
+			Iterator<CoapClientChannel> it = this.multicastRequests.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() == channel) {
+					it.remove();
+				}
+			}
+			return;
+		}
+
 		this.clientChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
 	}
 
@@ -694,22 +1660,106 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 		this.serverChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
 	}
 
+	/**
+	 * Stops all threads of the socket handler and waits for them, then releases
+	 * the socket. The datagrams already received are still dispatched and the
+	 * queued messages are still sent. Pending requests of the client channels
+	 * fail. A closed socket handler can not be started again, a new one has to
+	 * be created.
+	 */
 	@Override
 	public void close() {
-		if (BasicCoapSocketHandler.this.clientChannels != null)
-			BasicCoapSocketHandler.this.clientChannels.clear();
-		if (BasicCoapSocketHandler.this.serverChannels != null)
-			BasicCoapSocketHandler.this.serverChannels.clear();
+		synchronized (this) {
+			if (!this.running) {
+				return;
+			}
+			this.running = false;
+		}
+
+		this.receiveThread.shutdown();
+		joinThread(this.receiveThread);
+
+		for (DispatchThread thread : this.dispatchThreads) {
+			thread.getRing().close();
+		}
+		for (DispatchThread thread : this.dispatchThreads) {
+			joinThread(thread);
+		}
+
+		this.outboundQueue.close();
+		this.workerThread.shutdown();
+		joinThread(this.workerThread);
+
+		/* a channel may be registered as client channel and for multicast requests */
+		Set<CoapClientChannel> channels = Collections
+				.newSetFromMap(new IdentityHashMap<CoapClientChannel, Boolean>());
+		channels.addAll(this.clientChannels.values());
+		channels.addAll(this.multicastRequests.values());
+		this.clientChannels.clear();
+		this.serverChannels.clear();
+		this.multicastRequests.clear();
+		for (CoapClientChannel channel : channels) {
+			if (channel instanceof BasicCoapClientChannel) {
+				((BasicCoapClientChannel) channel).abort();
+			}
+		}
+
+		/* stop the automatic expiry of the message state */
+		this.retransMsgMap.close();
+
+		synchronized (this) {
+			if (this.handlerExecutor != null) {
+				/* handlers already queued still run */
+				this.handlerExecutor.shutdown();
+				this.handlerExecutor = null;
+			}
+		}
+
+		this.transport.close();
+	}
+
+	/**
+	 * Waits for a thread of the socket handler to finish. A thread that is still
+	 * running after SHUTDOWN_TIMEOUT_MS, e.g. blocked in a message handler, is
+	 * interrupted.
+	 */
+	private static void joinThread(Thread thread) {
+		if (thread == Thread.currentThread()) {
+			/* closed by one of its own message handlers */
+			return;
+		}
+		try {
+			thread.join(CoapConstants.SHUTDOWN_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			thread.interrupt();
+		}
+	}
 
+	private static void closeSelector(Selector selector) {
+		if (selector == null) {
+			return;
+		}
 		try {
-			BasicCoapSocketHandler.this.dgramChannel.close();
+			selector.close();
 		} catch (IOException e) {
 		}
-		/* TODO: wake up threads (receive & worker) and kill them */
 	}
 
 	@Override
 	public void sendMessage(CoapMessage message) {
+		CoapChannel channel = message.getChannel();
+		if (message.isRequest() && channel instanceof CoapClientChannel
+				&& channel.getRemoteAddress().isMulticastAddress()) {
+			/*
+			 * responses to a multicast request come from other addresses, they are
+			 * matched by the token
+			 */
+			this.multicastRequests.put(new TokenKey(message.getToken()), (CoapClientChannel) channel);
+		}
+
 		if (this.workerThread != null) {
 			this.workerThread.addMessageToSendBuffer(message);
 		}
@@ -717,12 +1767,28 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	@Override
 	public CoapClientChannel connect(CoapClient client, InetAddress remoteAddress, int remotePort) {
-		if (client == null) {
+		if (client == null || !this.running) {
 			return null;
 		}
 
-		if (this.clientChannels.containsKey(new ChannelKey(remoteAddress, remotePort))) {
-			/* channel already exists */
+		if (remoteAddress.isMulticastAddress()) {
+			/*
+			 * responses to multicast requests are matched by their tokens, so each
+			 * client gets a channel of its own
+			 */
+			return new BasicCoapClientChannel(this, client, remoteAddress, remotePort);
+		}
+
+		CoapClientChannel existing = this.clientChannels.get(new ChannelKey(remoteAddress, remotePort));
+		if (existing != null) {
+			/*
+			 * channel already exists, requests of the same client share it and are
+			 * told apart by their tokens
+			 */
+			if (existing instanceof BasicCoapClientChannel
+					&& ((BasicCoapClientChannel) existing).getClient() == client) {
+				return existing;
+			}
 			return null;
 		}
 
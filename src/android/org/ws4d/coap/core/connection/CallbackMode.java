@@ -0,0 +1,43 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+/**
+ * Defines which threads run the message handlers of the channels, including
+ * the callbacks of clients and servers.
+ */
+public enum CallbackMode {
+	/**
+	 * the dispatch thread of the remote endpoint runs the handlers, a blocking
+	 * handler stalls all endpoints of that thread. The messages are not copied
+	 * out of the receive buffer: token, options and payload are read from a
+	 * buffer slot that is reused after the handler returned. A message must not
+	 * be passed to another thread by the handler.<br>
+	 * The callbacks of exchanges whose retransmissions gave up run on the
+	 * worker thread of the socket handler, a blocking callback delays all
+	 * messages sent by that handler.
+	 */
+	DISPATCH_THREAD,
+	/**
+	 * every remote endpoint gets a serial executor running on virtual threads,
+	 * so handlers may block. Only in this mode no callback runs on the dispatch
+	 * or worker threads. Falls back to a pool of platform threads on
+	 * runtimes without virtual threads. The messages are detached from the
+	 * receive buffer before the handler runs, so handlers may keep them and
+	 * pass them to other threads.
+	 */
+	VIRTUAL_THREAD;
+}
@@ -28,10 +28,18 @@ public class ChannelKey {
 
 	@Override
 	public int hashCode() {
+		return hashCode(this.inetAddr, this.port);
+	}
+
+	/**
+	 * @return The hash code of the channel key for this address and port
+	 *         without creating the key.
+	 */
+	static int hashCode(InetAddress inetAddr, int port) {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((this.inetAddr == null) ? 0 : this.inetAddr.hashCode());
-		result = prime * result + this.port;
+		result = prime * result + ((inetAddr == null) ? 0 : inetAddr.hashCode());
+		result = prime * result + port;
 		return result;
 	}
 
@@ -0,0 +1,177 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ws4d.coap.core.CoapConstants;
+
+/**
+ * A bounded ring of received datagrams between the receive thread (single
+ * producer) and one dispatch thread (single consumer). The slots are allocated
+ * once and reused, a datagram is copied into a slot and decoded from there.
+ */
+class DatagramRing {
+
+	/**
+	 * A received datagram. The data is valid until the slot is released.
+	 */
+	static class Slot {
+		private byte[] data = new byte[CoapConstants.COAP_MESSAGE_SIZE_MAX];
+		private ByteBuffer buffer = ByteBuffer.wrap(this.data);
+		private InetSocketAddress remote;
+
+		/**
+		 * @return The datagram, positioned at its first byte and limited to its
+		 *         length.
+		 */
+		ByteBuffer getBuffer() {
+			return this.buffer;
+		}
+
+		InetSocketAddress getRemote() {
+			return this.remote;
+		}
+
+		void set(ByteBuffer datagram, InetSocketAddress remote) {
+			int length = datagram.remaining();
+			if (length > this.data.length) {
+				/* datagrams larger than a CoAP message are rare, grow the slot */
+				this.data = new byte[length];
+				this.buffer = ByteBuffer.wrap(this.data);
+			}
+			datagram.get(this.data, 0, length);
+			this.buffer.clear();
+			this.buffer.limit(length);
+			this.remote = remote;
+		}
+	}
+
+	private final Slot[] slots;
+
+	/** next slot to write, only written by the producer */
+	private volatile long head = 0;
+	/** next slot to read, only written by the consumer */
+	private volatile long tail = 0;
+
+	/** the consumer thread and whether it is waiting for datagrams */
+	private volatile Thread consumer = null;
+	private volatile boolean waiting = false;
+	private volatile boolean closed = false;
+
+	/** highest number of queued datagrams */
+	private volatile int maxDepth = 0;
+
+	/**
+	 * @param capacity
+	 *            - the number of datagrams the ring can hold
+	 */
+	DatagramRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			this.slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Copies a datagram into the next free slot. Called by the producer only.
+	 * 
+	 * @param datagram
+	 *            - the received datagram, it is consumed by this call
+	 * @param remote
+	 *            - the sender of the datagram
+	 * @return False if the ring is full and the datagram was dropped.
+	 */
+	boolean offer(ByteBuffer datagram, InetSocketAddress remote) {
+		long h = this.head;
+		int depth = (int) (h - this.tail);
+		if (depth >= this.slots.length) {
+			return false;
+		}
+		this.slots[(int) (h % this.slots.length)].set(datagram, remote);
+		this.head = h + 1;
+		if (depth + 1 > this.maxDepth) {
+			this.maxDepth = depth + 1;
+		}
+		if (this.waiting) {
+			LockSupport.unpark(this.consumer);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until a datagram is available. Called by the consumer only, the slot
+	 * must be released after the datagram was handled.
+	 * 
+	 * @return The oldest queued datagram, null if the ring was closed.
+	 */
+	Slot take() {
+		while (this.tail == this.head) {
+			if (this.closed) {
+				return null;
+			}
+			this.consumer = Thread.currentThread();
+			this.waiting = true;
+			/* check again, the producer may have missed the waiting flag */
+			if (this.tail == this.head && !this.closed) {
+				LockSupport.park(this);
+			}
+			this.waiting = false;
+		}
+		return this.slots[(int) (this.tail % this.slots.length)];
+	}
+
+	/**
+	 * Wakes up the consumer, take() returns null once the ring is empty.
+	 */
+	void close() {
+		this.closed = true;
+		Thread thread = this.consumer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Frees the slot returned by the last call of take().
+	 */
+	void release() {
+		this.tail = this.tail + 1;
+	}
+
+	/**
+	 * @return The number of queued datagrams.
+	 */
+	int getDepth() {
+		return (int) (this.head - this.tail);
+	}
+
+	/**
+	 * @return The highest number of queued datagrams.
+	 */
+	int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	int getCapacity() {
+		return this.slots.length;
+	}
+}
@@ -0,0 +1,680 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.connection.api.CoapChannelManager;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.connection.api.DatagramTransport;
+
+/**
+ * Socket handler for CoAP over DTLS 1.2 (coaps), see rfc7252 - 9.1. Every
+ * remote endpoint gets a DTLS session protected by an SSLEngine of the given
+ * SSLContext, which also decides about the certificates and cipher suites.
+ * The messages are exchanged exactly like those of the plain socket handler,
+ * only the datagrams are encrypted before they are sent and decrypted when
+ * they are received.<br>
+ * Client sessions are created with the host name or address and the port of
+ * the remote endpoint, so the session cache of the SSLContext resumes an
+ * earlier session with an abbreviated handshake. The cache outlives the socket
+ * handler as long as the SSLContext is reused. The server certificate is only
+ * checked against the host name passed to
+ * {@link #connect(CoapClient, String, InetAddress, int)}, otherwise any
+ * certificate the trust manager accepts is taken.<br>
+ * DTLS has no multicast, messages to multicast groups are dropped.
+ */
+public class DtlsCoapSocketHandler extends BasicCoapSocketHandler {
+
+	/** the protocol of the SSLContext */
+	public static final String PROTOCOL = "DTLSv1.2";
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/* DTLS record header, see rfc6347 - 4.1 */
+	private static final int CONTENT_TYPE_CHANGE_CIPHER_SPEC = 20;
+	private static final int CONTENT_TYPE_HANDSHAKE = 22;
+	private static final int RECORD_EPOCH_OFFSET = 3;
+	private static final int RECORD_HEADER_LENGTH = 13;
+	private static final int HANDSHAKE_CLIENT_HELLO = 1;
+
+	private final SSLContext context;
+
+	/** true to accept handshakes of unknown remote endpoints */
+	private final boolean server;
+
+	/** DTLS sessions by remote endpoint */
+	private final ConcurrentHashMap<InetSocketAddress, DtlsSession> sessions = new ConcurrentHashMap<InetSocketAddress, DtlsSession>();
+
+	/**
+	 * new handshakes of clients that already have an established session, by
+	 * remote endpoint
+	 */
+	private final ConcurrentHashMap<InetSocketAddress, DtlsSession> replacements = new ConcurrentHashMap<InetSocketAddress, DtlsSession>();
+
+	/** the host names the certificates of servers are verified against */
+	private final ConcurrentHashMap<InetSocketAddress, String> hostNames = new ConcurrentHashMap<InetSocketAddress, String>();
+
+	/** retransmits the handshake flights */
+	private final ScheduledExecutorService handshakeTimer;
+
+	private final AtomicLong handshakes = new AtomicLong(0);
+	private final AtomicLong resumedHandshakes = new AtomicLong(0);
+	private final AtomicLong failedHandshakes = new AtomicLong(0);
+
+	/**
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param port
+	 *            - the local port, 0 for an ephemeral port
+	 * @param context
+	 *            - an initialized SSLContext for the protocol DTLSv1.2
+	 * @param server
+	 *            - true to accept handshakes of remote endpoints. Otherwise
+	 *            only the remote endpoints messages are sent to can connect.
+	 * @throws IOException
+	 *             if the port can not be bound
+	 */
+	public DtlsCoapSocketHandler(CoapChannelManager channelManager, int port, SSLContext context, boolean server)
+			throws IOException {
+		this(channelManager, openUdp(port, false, false, channelManager.getNetworkConfig()), context, server);
+	}
+
+	/**
+	 * Creates a DTLS socket handler on top of a datagram transport.
+	 * 
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param transport
+	 *            - the bound transport, closed with the socket handler
+	 * @param context
+	 *            - an initialized SSLContext for the protocol DTLSv1.2
+	 * @param server
+	 *            - true to accept handshakes of remote endpoints
+	 */
+	public DtlsCoapSocketHandler(CoapChannelManager channelManager, DatagramTransport transport, SSLContext context,
+			boolean server) {
+		super(channelManager, transport, channelManager.getNetworkConfig(), false);
+		this.context = context;
+		this.server = server;
+		this.handshakeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DTLS handshake timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		startThreads();
+	}
+
+	@Override
+	public CoapClientChannel connect(CoapClient client, InetAddress remoteAddress, int remotePort) {
+		if (remoteAddress.isMulticastAddress()) {
+			return null;
+		}
+		return super.connect(client, remoteAddress, remotePort);
+	}
+
+	/**
+	 * Connects to a server and verifies that its certificate was issued for
+	 * the host name (endpoint identification "HTTPS", see rfc2818 - 3.1). A
+	 * session with the server that was not verified for the host name is
+	 * closed, the next message starts a new handshake.
+	 * 
+	 * @param hostName
+	 *            - the host name or IP address of the URI, null to accept any
+	 *            trusted certificate
+	 */
+	public CoapClientChannel connect(CoapClient client, String hostName, InetAddress remoteAddress,
+			int remotePort) {
+		CoapClientChannel channel = connect(client, remoteAddress, remotePort);
+		if (channel != null && hostName != null) {
+			InetSocketAddress remote = new InetSocketAddress(remoteAddress, remotePort);
+			if (!hostName.equals(this.hostNames.put(remote, hostName))) {
+				DtlsSession session = this.sessions.remove(remote);
+				if (session != null) {
+					session.close();
+				}
+			}
+		}
+		return channel;
+	}
+
+	@Override
+	public void removeClientChannel(CoapClientChannel channel) {
+		super.removeClientChannel(channel);
+		this.hostNames.remove(new InetSocketAddress(channel.getRemoteAddress(), channel.getRemotePort()));
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		this.handshakeTimer.shutdownNow();
+		try {
+			this.handshakeTimer.awaitTermination(CoapConstants.SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (DtlsSession session : this.sessions.values()) {
+			session.close();
+		}
+		this.sessions.clear();
+		for (DtlsSession session : this.replacements.values()) {
+			session.close();
+		}
+		this.replacements.clear();
+	}
+
+	/**
+	 * Also closes the sessions that were idle for EXCHANGE_LIFETIME and whose
+	 * remote endpoint was evicted or never exchanged a message.
+	 */
+	@Override
+	void evictIdleEndpoints() {
+		super.evictIdleEndpoints();
+		long now = System.currentTimeMillis();
+		long idleTime = getNetworkConfig().getExchangeLifetime();
+		for (DtlsSession session : this.sessions.values()) {
+			if (session.isIdle(now, idleTime) && findRemoteEndpoint(session.remote) == null) {
+				/* the remote endpoint learns that it has to start a new handshake */
+				session.closeNotify();
+				this.sessions.remove(session.remote, session);
+			}
+		}
+	}
+
+	/**
+	 * Drops the session of a remote endpoint that does not acknowledge
+	 * messages, it may have lost the session. The next message starts a new
+	 * handshake.
+	 */
+	@Override
+	void lostRemote(InetSocketAddress remote) {
+		DtlsSession session = this.sessions.remove(remote);
+		if (session != null) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Decrypts a received datagram. Handshake records are consumed by the
+	 * session of the remote endpoint, application data is dispatched like a
+	 * plain datagram.<br>
+	 * A ClientHello from a remote endpoint with an established session starts
+	 * a second session, the established one is kept until the new handshake
+	 * completes (see rfc6347 - 4.2.8). So a spoofed ClientHello does not tear
+	 * down the session of a client.
+	 */
+	@Override
+	void receiveDatagram(ByteBuffer datagram, InetSocketAddress remote) {
+		DtlsSession session = this.sessions.get(remote);
+		boolean clientHello = isClientHello(datagram);
+		if (this.server && (clientHello || isHandshake(datagram))) {
+			DtlsSession replacement = this.replacements.get(remote);
+			if (clientHello && session != null && session.isEstablished() && replacement == null) {
+				/* a client that lost its session state or a spoofed datagram */
+				replacement = newServerSession(remote);
+				if (replacement == null || this.replacements.putIfAbsent(remote, replacement) != null) {
+					return;
+				}
+			}
+			if (replacement != null) {
+				replacement.receive(datagram);
+				return;
+			}
+		}
+		if (session == null) {
+			/* a new client */
+			if (!this.server || !clientHello) {
+				return;
+			}
+			session = newServerSession(remote);
+			if (session == null || this.sessions.putIfAbsent(remote, session) != null) {
+				return;
+			}
+		}
+		session.receive(datagram);
+	}
+
+	/**
+	 * @return The session for the handshake of a remote endpoint, null if
+	 *         DTLS_MAX_SESSIONS are reached.
+	 */
+	private DtlsSession newServerSession(InetSocketAddress remote) {
+		if (this.sessions.size() + this.replacements.size() >= CoapConstants.DTLS_MAX_SESSIONS) {
+			this.failedHandshakes.incrementAndGet();
+			return null;
+		}
+		return new DtlsSession(remote, false);
+	}
+
+	/**
+	 * Encrypts a datagram. The first datagram to a remote endpoint starts the
+	 * handshake, the datagrams sent meanwhile are queued by its session.
+	 */
+	@Override
+	int sendDatagram(ByteBuffer datagram, InetSocketAddress remote) throws IOException {
+		if (remote.getAddress().isMulticastAddress()) {
+			/* dropped */
+			return datagram.remaining();
+		}
+		DtlsSession session = this.sessions.get(remote);
+		if (session == null) {
+			DtlsSession created = new DtlsSession(remote, true);
+			session = this.sessions.putIfAbsent(remote, created);
+			if (session == null) {
+				session = created;
+				session.start();
+			}
+		}
+		return session.send(datagram);
+	}
+
+	/**
+	 * @return True if the first record of the datagram belongs to a handshake:
+	 *         a handshake message, a ChangeCipherSpec or any record of epoch 0.
+	 */
+	private static boolean isHandshake(ByteBuffer datagram) {
+		int pos = datagram.position();
+		if (datagram.remaining() < RECORD_HEADER_LENGTH) {
+			return false;
+		}
+		int type = datagram.get(pos);
+		return type == CONTENT_TYPE_HANDSHAKE || type == CONTENT_TYPE_CHANGE_CIPHER_SPEC
+				|| datagram.getShort(pos + RECORD_EPOCH_OFFSET) == 0;
+	}
+
+	private static boolean isClientHello(ByteBuffer datagram) {
+		int pos = datagram.position();
+		return datagram.remaining() > RECORD_HEADER_LENGTH && datagram.get(pos) == CONTENT_TYPE_HANDSHAKE
+				&& datagram.get(pos + RECORD_HEADER_LENGTH) == HANDSHAKE_CLIENT_HELLO;
+	}
+
+	/**
+	 * @return The number of completed handshakes.
+	 */
+	public long getHandshakes() {
+		return this.handshakes.get();
+	}
+
+	/**
+	 * @return The number of completed handshakes that resumed a cached session.
+	 */
+	public long getResumedHandshakes() {
+		return this.resumedHandshakes.get();
+	}
+
+	/**
+	 * @return The number of handshakes that failed or timed out, including the
+	 *         ClientHellos dropped because DTLS_MAX_SESSIONS were reached.
+	 */
+	public long getFailedHandshakes() {
+		return this.failedHandshakes.get();
+	}
+
+	/**
+	 * @return The number of remote endpoints with a DTLS session, including the
+	 *         sessions still in their handshake.
+	 */
+	public int getSessionCount() {
+		return this.sessions.size();
+	}
+
+	/**
+	 * The DTLS state of a remote endpoint. The engine is used by the receive
+	 * thread, the worker thread and the handshake timer, all access is
+	 * synchronized on the session.
+	 */
+	private class DtlsSession implements Runnable {
+		private final InetSocketAddress remote;
+		private final SSLEngine engine;
+
+		/** datagrams waiting for the handshake to complete */
+		private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+
+		private ByteBuffer appBuffer;
+		private ByteBuffer netBuffer;
+
+		private boolean established = false;
+		private boolean closed = false;
+		private long handshakeStarted = System.currentTimeMillis();
+		private long lastUse = this.handshakeStarted;
+		private int retransmissions = 0;
+		private int timeout = CoapConstants.DTLS_HANDSHAKE_TIMEOUT_MS;
+		private ScheduledFuture<?> timer = null;
+
+		DtlsSession(InetSocketAddress remote, boolean clientMode) {
+			this.remote = remote;
+			String hostName = clientMode ? DtlsCoapSocketHandler.this.hostNames.get(remote) : null;
+			if (hostName != null) {
+				/* the peer identifies the cached session and is checked against the certificate */
+				this.engine = DtlsCoapSocketHandler.this.context.createSSLEngine(hostName, remote.getPort());
+			} else if (clientMode) {
+				this.engine = DtlsCoapSocketHandler.this.context.createSSLEngine(remote.getAddress().getHostAddress(),
+						remote.getPort());
+			} else {
+				this.engine = DtlsCoapSocketHandler.this.context.createSSLEngine();
+			}
+			this.engine.setUseClientMode(clientMode);
+			SSLParameters parameters = this.engine.getSSLParameters();
+			if (hostName != null) {
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			}
+			parameters.setMaximumPacketSize(getNetworkConfig().getMaxDatagramSize());
+			this.engine.setSSLParameters(parameters);
+			this.appBuffer = ByteBuffer.allocate(this.engine.getSession().getApplicationBufferSize());
+			this.netBuffer = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize());
+			if (!clientMode) {
+				scheduleRetransmission();
+			}
+		}
+
+		synchronized boolean isEstablished() {
+			return this.established;
+		}
+
+		/**
+		 * @return True if the session is established and did not send or
+		 *         receive a datagram for idleTime.
+		 */
+		synchronized boolean isIdle(long now, long idleTime) {
+			return this.established && now - this.lastUse >= idleTime;
+		}
+
+		/**
+		 * Sends the first flight of a client handshake.
+		 */
+		synchronized void start() throws IOException {
+			this.engine.beginHandshake();
+			handshake(this.engine.getHandshakeStatus());
+			scheduleRetransmission();
+		}
+
+		/**
+		 * @return The number of bytes sent, 0 if the socket is full.
+		 */
+		synchronized int send(ByteBuffer datagram) throws IOException {
+			if (this.closed) {
+				/* dropped, the next message starts a new session */
+				return datagram.remaining();
+			}
+			this.lastUse = System.currentTimeMillis();
+			if (!this.established) {
+				if (this.pending.size() >= CoapConstants.DTLS_PENDING_MESSAGES) {
+					/* CON messages are retransmitted anyway */
+					this.pending.poll();
+				}
+				ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+				copy.put(datagram.duplicate());
+				copy.flip();
+				this.pending.add(copy);
+				return copy.remaining();
+			}
+			return wrap(datagram);
+		}
+
+		private int wrap(ByteBuffer datagram) throws IOException {
+			int position = datagram.position();
+			this.netBuffer.clear();
+			SSLEngineResult result = this.engine.wrap(datagram, this.netBuffer);
+			while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				enlargeNetBuffer();
+				result = this.engine.wrap(datagram, this.netBuffer);
+			}
+			if (result.getStatus() != SSLEngineResult.Status.OK) {
+				fail();
+				return result.bytesConsumed();
+			}
+			this.netBuffer.flip();
+			if (getTransport().send(this.netBuffer, this.remote) == 0) {
+				/* the record is discarded, the datagram is encrypted again later */
+				datagram.position(position);
+				return 0;
+			}
+			return result.bytesConsumed();
+		}
+
+		synchronized void receive(ByteBuffer datagram) {
+			if (this.closed) {
+				return;
+			}
+			this.lastUse = System.currentTimeMillis();
+			try {
+				while (datagram.hasRemaining()) {
+					this.appBuffer.clear();
+					SSLEngineResult result = this.engine.unwrap(datagram, this.appBuffer);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						fail();
+						return;
+					}
+					if (result.getStatus() != SSLEngineResult.Status.OK) {
+						/* truncated or oversized record, dropped */
+						return;
+					}
+					deliver();
+					handshake(result.getHandshakeStatus());
+					if (result.bytesConsumed() == 0) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				/* fatal alert or handshake failure */
+				fail();
+			}
+		}
+
+		private void deliver() {
+			if (this.appBuffer.position() > 0) {
+				this.appBuffer.flip();
+				DtlsCoapSocketHandler.super.receiveDatagram(this.appBuffer, this.remote);
+			}
+		}
+
+		/**
+		 * Runs the handshake until it needs a message of the remote endpoint.
+		 */
+		private void handshake(HandshakeStatus status) throws IOException {
+			while (!this.closed) {
+				switch (status) {
+				case NEED_TASK:
+					Runnable task = this.engine.getDelegatedTask();
+					while (task != null) {
+						task.run();
+						task = this.engine.getDelegatedTask();
+					}
+					status = this.engine.getHandshakeStatus();
+					break;
+				case NEED_WRAP:
+					status = wrapHandshake();
+					break;
+				case FINISHED:
+					established();
+					return;
+				case NEED_UNWRAP:
+				case NOT_HANDSHAKING:
+					return;
+				default:
+					/*
+					 * NEED_UNWRAP_AGAIN (DTLS only, not known to older runtimes): records
+					 * buffered by the engine are processed without new data
+					 */
+					this.appBuffer.clear();
+					SSLEngineResult result = this.engine.unwrap(EMPTY, this.appBuffer);
+					deliver();
+					status = result.getHandshakeStatus();
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Sends the next handshake record. Called while the engine waits for the
+		 * remote endpoint, it retransmits the last flight.
+		 */
+		private HandshakeStatus wrapHandshake() throws IOException {
+			this.netBuffer.clear();
+			SSLEngineResult result = this.engine.wrap(EMPTY, this.netBuffer);
+			while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				/* handshake messages like the session ticket may exceed the datagram size */
+				enlargeNetBuffer();
+				result = this.engine.wrap(EMPTY, this.netBuffer);
+			}
+			if (result.getStatus() != SSLEngineResult.Status.OK) {
+				fail();
+				return HandshakeStatus.NOT_HANDSHAKING;
+			}
+			this.netBuffer.flip();
+			if (this.netBuffer.hasRemaining()) {
+				/* a lost record is retransmitted with its flight */
+				getTransport().send(this.netBuffer, this.remote);
+			}
+			return result.getHandshakeStatus();
+		}
+
+		private void enlargeNetBuffer() {
+			int size = Math.max(this.engine.getSession().getPacketBufferSize(), this.netBuffer.capacity() * 2);
+			this.netBuffer = ByteBuffer.allocate(size);
+		}
+
+		private void established() throws IOException {
+			this.established = true;
+			cancelRetransmission();
+			if (DtlsCoapSocketHandler.this.replacements.remove(this.remote, this)) {
+				/* the client completed a new handshake, its old session is closed */
+				DtlsSession old = DtlsCoapSocketHandler.this.sessions.put(this.remote, this);
+				if (old != null) {
+					old.close();
+				}
+			}
+			DtlsCoapSocketHandler.this.handshakes.incrementAndGet();
+			if (this.engine.getSession().getCreationTime() < this.handshakeStarted) {
+				DtlsCoapSocketHandler.this.resumedHandshakes.incrementAndGet();
+			}
+			ByteBuffer datagram = this.pending.poll();
+			while (datagram != null && !this.closed) {
+				/* a datagram that does not fit into the socket is lost, CON messages are retransmitted */
+				wrap(datagram);
+				datagram = this.pending.poll();
+			}
+		}
+
+		private void scheduleRetransmission() {
+			try {
+				this.timer = DtlsCoapSocketHandler.this.handshakeTimer.schedule(this, this.timeout,
+						TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				/* the socket handler is closed */
+			}
+		}
+
+		private void cancelRetransmission() {
+			if (this.timer != null) {
+				this.timer.cancel(false);
+				this.timer = null;
+			}
+		}
+
+		/**
+		 * Handshake timeout, retransmits the last flight or gives up.
+		 */
+		@Override
+		public synchronized void run() {
+			if (this.established || this.closed) {
+				return;
+			}
+			if (this.retransmissions >= CoapConstants.DTLS_MAX_HANDSHAKE_RETRANSMIT) {
+				fail();
+				return;
+			}
+			this.retransmissions++;
+			this.timeout *= 2;
+			try {
+				HandshakeStatus status = this.engine.getHandshakeStatus();
+				if (status != HandshakeStatus.NOT_HANDSHAKING) {
+					handshake(wrapHandshake());
+				}
+			} catch (IOException e) {
+				fail();
+				return;
+			}
+			if (!this.established && !this.closed) {
+				scheduleRetransmission();
+			}
+		}
+
+		/**
+		 * Drops the session, the next message to the remote endpoint starts a
+		 * new handshake.
+		 */
+		private void fail() {
+			if (!this.established && !this.closed) {
+				DtlsCoapSocketHandler.this.failedHandshakes.incrementAndGet();
+			}
+			close();
+			DtlsCoapSocketHandler.this.sessions.remove(this.remote, this);
+			DtlsCoapSocketHandler.this.replacements.remove(this.remote, this);
+		}
+
+		/**
+		 * Closes the session and sends a close_notify alert to the remote
+		 * endpoint.
+		 */
+		synchronized void closeNotify() {
+			if (!this.closed && this.established) {
+				this.engine.closeOutbound();
+				try {
+					this.netBuffer.clear();
+					this.engine.wrap(EMPTY, this.netBuffer);
+					this.netBuffer.flip();
+					if (this.netBuffer.hasRemaining()) {
+						getTransport().send(this.netBuffer, this.remote);
+					}
+				} catch (IOException e) {
+					/* the alert is lost, the remote endpoint times out */
+				}
+			}
+			close();
+		}
+
+		synchronized void close() {
+			this.closed = true;
+			cancelRetransmission();
+			this.pending.clear();
+			this.engine.closeOutbound();
+		}
+	}
+}
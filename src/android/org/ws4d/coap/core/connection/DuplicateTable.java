@@ -0,0 +1,173 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+/**
+ * Detects duplicate messages of remote endpoints. The table is keyed by a long
+ * that packs the id of the remote endpoint and the message id (see
+ * {@link RemoteEndpoint#getMessageKey(int)}). It uses open addressing with
+ * linear probing over primitive arrays and never allocates after construction.
+ * <br>
+ * The table holds at most capacity keys. A key is forgotten after the lifetime
+ * has passed or, if the table is full, when it is the oldest key and a new one
+ * is added. The table is not thread safe, each dispatch thread owns one.
+ */
+class DuplicateTable {
+	/** marks a free slot, packed keys are never 0 */
+	private static final long FREE = 0;
+
+	/* hash table, at most half full */
+	private final long[] keys;
+	private final long[] added;
+	private final int mask;
+
+	/* the keys in the order they were added, for the oldest first eviction */
+	private final long[] order;
+	private final long[] orderAdded;
+	private int orderHead = 0;
+	private int orderSize = 0;
+
+	private final long lifetime;
+	private long evicted = 0;
+
+	/**
+	 * @param capacity
+	 *            - the maximal number of keys
+	 * @param lifetime
+	 *            - milliseconds a key is remembered
+	 */
+	DuplicateTable(int capacity, long lifetime) {
+		if (capacity < 1 || capacity > (1 << 28)) {
+			throw new IllegalArgumentException("invalid capacity");
+		}
+		int length = 2;
+		while (length < 2 * capacity) {
+			length <<= 1;
+		}
+		this.keys = new long[length];
+		this.added = new long[length];
+		this.mask = length - 1;
+		this.order = new long[capacity];
+		this.orderAdded = new long[capacity];
+		this.lifetime = lifetime;
+	}
+
+	/**
+	 * Checks if a message was received before and remembers it otherwise.
+	 * 
+	 * @param key
+	 *            - the packed key of the message, must not be 0
+	 * @param now
+	 *            - the current time in milliseconds
+	 * @return True if the message is a duplicate.
+	 */
+	boolean isDuplicate(long key, long now) {
+		expire(now);
+
+		int slot = find(key);
+		if (this.keys[slot] == key) {
+			return true;
+		}
+
+		if (this.orderSize == this.order.length) {
+			/* full, forget the oldest key */
+			removeOldest();
+			this.evicted++;
+			slot = find(key);
+		}
+		this.keys[slot] = key;
+		this.added[slot] = now;
+
+		int tail = (this.orderHead + this.orderSize) % this.order.length;
+		this.order[tail] = key;
+		this.orderAdded[tail] = now;
+		this.orderSize++;
+		return false;
+	}
+
+	/**
+	 * @return The number of remembered keys.
+	 */
+	int size() {
+		return this.orderSize;
+	}
+
+	/**
+	 * @return The number of keys that were forgotten before their lifetime
+	 *         passed because the table was full.
+	 */
+	long getEvicted() {
+		return this.evicted;
+	}
+
+	/**
+	 * Forgets all keys whose lifetime has passed.
+	 */
+	private void expire(long now) {
+		while (this.orderSize > 0 && now - this.orderAdded[this.orderHead] >= this.lifetime) {
+			removeOldest();
+		}
+	}
+
+	private void removeOldest() {
+		long key = this.order[this.orderHead];
+		long time = this.orderAdded[this.orderHead];
+		this.orderHead = (this.orderHead + 1) % this.order.length;
+		this.orderSize--;
+
+		int slot = find(key);
+		if (this.keys[slot] == key && this.added[slot] == time) {
+			remove(slot);
+		}
+	}
+
+	/**
+	 * @return The slot of the key or the free slot where it would be added.
+	 */
+	private int find(long key) {
+		int slot = hash(key) & this.mask;
+		while (this.keys[slot] != FREE && this.keys[slot] != key) {
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Frees a slot and moves following keys of the probe sequence back, so no
+	 * tombstones are needed.
+	 */
+	private void remove(int slot) {
+		int free = slot;
+		int next = (free + 1) & this.mask;
+		while (this.keys[next] != FREE) {
+			int home = hash(this.keys[next]) & this.mask;
+			/* move the key if its home slot is not between the free and its slot */
+			if (((next - home) & this.mask) >= ((next - free) & this.mask)) {
+				this.keys[free] = this.keys[next];
+				this.added[free] = this.added[next];
+				free = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys[free] = FREE;
+		this.added[free] = 0;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,163 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetSocketAddress;
+
+import org.ws4d.coap.core.connection.api.CoapChannel;
+import org.ws4d.coap.core.tools.TimingWheel;
+
+/**
+ * The wire encoding of a sent message that may have to be sent again. ACK and
+ * RST messages are replayed when a duplicate request arrives, CON messages are
+ * retransmitted until they are confirmed. Only the encoded frame is kept, not
+ * the message object. A CON message is its own retransmission timer.<br>
+ * Keeping the encoding allocates the frame array and this object for every
+ * CON, ACK and RST message, ACK and RST messages also a key of the replay
+ * map. Only NON messages are sent from the pooled send buffers without any
+ * allocation.
+ */
+class EncodedMessage extends TimingWheel.Timeout {
+	private final byte[] frame;
+	private final InetSocketAddress remote;
+	private final int messageId;
+
+	/* retransmission state, only used for CON messages */
+	private final CoapChannel channel;
+	private final RemoteEndpoint endpoint;
+	private int retransmissions = 0;
+	private int timeout = 0;
+	private double backoff = 2;
+	private long sentAt = 0;
+	private boolean completed = false;
+
+	/**
+	 * Creates the encoding of an ACK or RST message.
+	 * 
+	 * @param frame
+	 *            - the serialized message
+	 * @param remote
+	 *            - the destination of the message
+	 * @param messageId
+	 *            - the message id of the message
+	 */
+	EncodedMessage(byte[] frame, InetSocketAddress remote, int messageId) {
+		this(frame, remote, messageId, null, null);
+	}
+
+	/**
+	 * Creates the encoding of a CON message. The initial timeout and the back
+	 * off factor are taken from the RTO estimated for the remote endpoint.
+	 * 
+	 * @param frame
+	 *            - the serialized message
+	 * @param remote
+	 *            - the destination of the message
+	 * @param messageId
+	 *            - the message id of the message
+	 * @param channel
+	 *            - the channel to notify when the message is not confirmed
+	 * @param endpoint
+	 *            - the remote endpoint the message is sent to
+	 */
+	EncodedMessage(byte[] frame, InetSocketAddress remote, int messageId, CoapChannel channel,
+			RemoteEndpoint endpoint) {
+		this.frame = frame;
+		this.remote = remote;
+		this.messageId = messageId;
+		this.channel = channel;
+		this.endpoint = endpoint;
+		if (endpoint != null) {
+			this.timeout = endpoint.getInitialTimeout();
+			this.backoff = endpoint.getBackoffFactor();
+			this.sentAt = System.nanoTime();
+		}
+	}
+
+	byte[] getFrame() {
+		return this.frame;
+	}
+
+	InetSocketAddress getRemote() {
+		return this.remote;
+	}
+
+	int getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * @return The token of the message, read from its encoding.
+	 */
+	byte[] getToken() {
+		int length = this.frame[0] & 0x0F;
+		byte[] token = new byte[length];
+		System.arraycopy(this.frame, 4, token, 0, length);
+		return token;
+	}
+
+	CoapChannel getChannel() {
+		return this.channel;
+	}
+
+	RemoteEndpoint getEndpoint() {
+		return this.endpoint;
+	}
+
+	/**
+	 * @return Milliseconds since the first transmission of the message.
+	 */
+	double getElapsed() {
+		return (System.nanoTime() - this.sentAt) / 1000000.0;
+	}
+
+	int getRetransmissions() {
+		return this.retransmissions;
+	}
+
+	/**
+	 * @return The timeout in milliseconds until the next retransmission.
+	 */
+	int getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * Marks the exchange of a CON message as completed, i.e. confirmed or given
+	 * up.
+	 * 
+	 * @return True for the first call, false if it was already completed.
+	 */
+	synchronized boolean complete() {
+		if (this.completed) {
+			return false;
+		}
+		this.completed = true;
+		return true;
+	}
+
+	synchronized boolean isCompleted() {
+		return this.completed;
+	}
+
+	/**
+	 * increments the retransmission counter and backs off the timeout
+	 */
+	void incRetransCounterAndTimeout() {
+		this.retransmissions++;
+		this.timeout = (int) (this.timeout * this.backoff);
+	}
+}
@@ -0,0 +1,263 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+
+package org.ws4d.coap.core.connection;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.api.DatagramTransport;
+import org.ws4d.coap.core.connection.api.DatagramTransportFactory;
+
+/**
+ * An in-memory datagram network within one JVM. Channel managers created with
+ * the same network exchange their datagrams through bounded queues instead of
+ * sockets, e.g. a client and a CoapResourceServer of a benchmark. The network
+ * is a single host: datagrams are routed by port, the sender address is
+ * always the loopback address. Like UDP, datagrams to a port nobody is bound
+ * to and datagrams that do not fit into the receive queue are lost.
+ */
+public class LoopbackNetwork implements DatagramTransportFactory {
+
+	/** the ports handed out for port 0 */
+	private static final int EPHEMERAL_PORT_MIN = 49152;
+	private static final int EPHEMERAL_PORT_MAX = 65535;
+
+	/** receive queue size in bytes if the network config keeps the default */
+	private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final InetAddress address = InetAddress.getLoopbackAddress();
+
+	/** the bound transports by port */
+	private final Map<Integer, Endpoint> endpoints = new ConcurrentHashMap<Integer, Endpoint>();
+
+	private int nextEphemeralPort = EPHEMERAL_PORT_MIN;
+
+	private final AtomicLong sentDatagrams = new AtomicLong(0);
+	private final AtomicLong lostDatagrams = new AtomicLong(0);
+
+	@Override
+	public synchronized DatagramTransport open(int port, boolean reusePort, boolean joinMulticast,
+			NetworkConfig config) throws IOException {
+		if (reusePort) {
+			throw new IOException("ports of a loopback network can not be shared");
+		}
+		if (port < 0 || port > EPHEMERAL_PORT_MAX) {
+			throw new IllegalArgumentException("invalid port " + port);
+		}
+		if (port == 0) {
+			port = nextEphemeralPort();
+		} else if (this.endpoints.containsKey(port)) {
+			throw new BindException("address already in use");
+		}
+		Endpoint endpoint = new Endpoint(port, joinMulticast, config);
+		this.endpoints.put(port, endpoint);
+		return endpoint;
+	}
+
+	private int nextEphemeralPort() throws IOException {
+		for (int i = EPHEMERAL_PORT_MIN; i <= EPHEMERAL_PORT_MAX; i++) {
+			int port = this.nextEphemeralPort;
+			this.nextEphemeralPort = port < EPHEMERAL_PORT_MAX ? port + 1 : EPHEMERAL_PORT_MIN;
+			if (!this.endpoints.containsKey(port)) {
+				return port;
+			}
+		}
+		throw new BindException("no ephemeral port available");
+	}
+
+	@Override
+	public boolean isReusePortSupported() {
+		return false;
+	}
+
+	/**
+	 * @return The address the ports of the network are reached at.
+	 */
+	public InetAddress getAddress() {
+		return this.address;
+	}
+
+	/**
+	 * @return The number of datagrams sent on the network.
+	 */
+	public long getSentDatagrams() {
+		return this.sentDatagrams.get();
+	}
+
+	/**
+	 * @return The number of datagrams lost, because nobody was bound to their
+	 *         port or the receive queue was full.
+	 */
+	public long getLostDatagrams() {
+		return this.lostDatagrams.get();
+	}
+
+	/**
+	 * Hands a datagram to the transport bound to its port. Multicast datagrams
+	 * only reach a transport that joined the multicast groups.
+	 */
+	private void route(Endpoint sender, byte[] data, InetSocketAddress remote) {
+		this.sentDatagrams.incrementAndGet();
+		Endpoint endpoint = this.endpoints.get(remote.getPort());
+		if (endpoint == null || (remote.getAddress().isMulticastAddress() && !endpoint.isMulticast())) {
+			this.lostDatagrams.incrementAndGet();
+			return;
+		}
+		endpoint.deliver(data, sender.getSocketAddress());
+	}
+
+	/**
+	 * A datagram waiting in a receive queue.
+	 */
+	private static class Datagram {
+		private final byte[] data;
+		private final InetSocketAddress sender;
+
+		public Datagram(byte[] data, InetSocketAddress sender) {
+			this.data = data;
+			this.sender = sender;
+		}
+	}
+
+	/**
+	 * A port bound on the network. Datagrams are queued by the sending threads
+	 * and taken by the receive thread of the socket handler.
+	 */
+	private class Endpoint implements DatagramTransport {
+		private final int port;
+		private final InetSocketAddress socketAddress;
+		private final boolean multicast;
+
+		/* guarded by this */
+		private ArrayDeque<Datagram> queue = new ArrayDeque<Datagram>();
+		private int queuedBytes = 0;
+		private int capacity;
+		private boolean woken = false;
+		private boolean closed = false;
+
+		public Endpoint(int port, boolean multicast, NetworkConfig config) {
+			this.port = port;
+			this.socketAddress = new InetSocketAddress(LoopbackNetwork.this.getAddress(), port);
+			this.multicast = multicast;
+			applyNetworkConfig(config);
+		}
+
+		InetSocketAddress getSocketAddress() {
+			return this.socketAddress;
+		}
+
+		boolean isMulticast() {
+			return this.multicast;
+		}
+
+		@Override
+		public int getLocalPort() {
+			return this.port;
+		}
+
+		synchronized void deliver(byte[] data, InetSocketAddress sender) {
+			if (this.closed || this.queuedBytes + data.length > this.capacity) {
+				LoopbackNetwork.this.lostDatagrams.incrementAndGet();
+				return;
+			}
+			this.queue.add(new Datagram(data, sender));
+			this.queuedBytes += data.length;
+			if (this.queue.size() == 1) {
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+			if (this.closed) {
+				throw new ClosedChannelException();
+			}
+			Datagram datagram = this.queue.poll();
+			if (datagram == null) {
+				return null;
+			}
+			this.queuedBytes -= datagram.data.length;
+			buffer.put(datagram.data, 0, Math.min(datagram.data.length, buffer.remaining()));
+			return datagram.sender;
+		}
+
+		@Override
+		public synchronized void awaitDatagrams() throws IOException {
+			while (this.queue.isEmpty() && !this.woken && !this.closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			this.woken = false;
+		}
+
+		@Override
+		public synchronized void wakeup() {
+			this.woken = true;
+			notifyAll();
+		}
+
+		@Override
+		public int send(ByteBuffer datagram, InetSocketAddress remote) throws IOException {
+			synchronized (this) {
+				if (this.closed) {
+					throw new ClosedChannelException();
+				}
+			}
+			byte[] data = new byte[datagram.remaining()];
+			datagram.get(data);
+			route(this, data, remote);
+			return data.length;
+		}
+
+		@Override
+		public SelectionKey registerWritable(Selector selector) {
+			/* the queues of the receivers never block a sender */
+			return null;
+		}
+
+		@Override
+		public synchronized void applyNetworkConfig(NetworkConfig config) {
+			this.capacity = config.getReceiveBufferSize() > 0 ? config.getReceiveBufferSize() : DEFAULT_BUFFER_SIZE;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				this.closed = true;
+				this.queue.clear();
+				this.queuedBytes = 0;
+				notifyAll();
+			}
+			LoopbackNetwork.this.endpoints.remove(this.port, this);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.messages.api.CoapMessage;
+
+/**
+ * The bounded queue of messages waiting to be sent by the worker thread of a
+ * socket handler. Any thread may add messages, only the worker thread removes
+ * them. The queue is not writable once it is full and becomes writable again
+ * when it is drained to half of its capacity.<br>
+ * A polled message keeps its slot until the worker thread releases it. CON
+ * messages that wait for a free exchange slot of their endpoint (NSTART) thus
+ * still count against the capacity and the overload policy.
+ */
+class OutboundQueue {
+	private final ConcurrentLinkedQueue<CoapMessage> queue = new ConcurrentLinkedQueue<CoapMessage>();
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	private volatile int capacity;
+	private volatile OverloadPolicy policy;
+	private volatile boolean writable = true;
+	private volatile boolean closed = false;
+
+	/** senders waiting for space (BLOCK policy) */
+	private final Object notFull = new Object();
+	private volatile int waitingSenders = 0;
+
+	private volatile long droppedMessages = 0;
+
+	/**
+	 * @param capacity
+	 *            - the maximal number of queued messages
+	 * @param policy
+	 *            - what to do with messages sent to a full queue
+	 */
+	OutboundQueue(int capacity, OverloadPolicy policy) {
+		setCapacity(capacity);
+		setPolicy(policy);
+	}
+
+	/**
+	 * Adds a message to the queue.
+	 * 
+	 * @param msg
+	 *            - the message to send
+	 * @param mayBlock
+	 *            - false if the caller must not wait for space (the worker
+	 *            thread itself). The message is queued beyond the capacity
+	 *            instead.
+	 * @return True if the message was queued, false if it was dropped.
+	 * @throws IllegalStateException
+	 *             if the queue is full and the message was rejected or the
+	 *             queue is closed
+	 */
+	boolean offer(CoapMessage msg, boolean mayBlock) {
+		while (true) {
+			if (this.closed) {
+				throw new IllegalStateException("socket handler is closed");
+			}
+			int current = this.size.get();
+			if (current < this.capacity) {
+				if (this.size.compareAndSet(current, current + 1)) {
+					this.queue.add(msg);
+					if (current + 1 >= this.capacity) {
+						this.writable = false;
+					}
+					return true;
+				}
+				continue;
+			}
+
+			this.writable = false;
+			switch (this.policy) {
+			case BLOCK:
+				if (!mayBlock) {
+					this.size.incrementAndGet();
+					this.queue.add(msg);
+					return true;
+				}
+				awaitSpace();
+				break;
+			case DROP_OLDEST_NON:
+				if (dropOldestNon()) {
+					break;
+				}
+				if (msg.getPacketType() == CoapPacketType.NON) {
+					/* no older NON message is queued, drop this one */
+					this.droppedMessages++;
+					return false;
+				}
+				throw new IllegalStateException("outbound queue is full");
+			case REJECT:
+			default:
+				throw new IllegalStateException("outbound queue is full");
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest queued message. Called by the worker thread only. The
+	 * message keeps its slot until {@link #release()} is called.
+	 * 
+	 * @return The oldest message or null if the queue is empty.
+	 */
+	CoapMessage poll() {
+		return this.queue.poll();
+	}
+
+	/**
+	 * Frees the slot of a polled message once it was sent.
+	 */
+	void release() {
+		released(this.size.decrementAndGet());
+	}
+
+	boolean isEmpty() {
+		return this.queue.isEmpty();
+	}
+
+	private boolean dropOldestNon() {
+		Iterator<CoapMessage> it = this.queue.iterator();
+		while (it.hasNext()) {
+			CoapMessage queued = it.next();
+			if (queued.getPacketType() == CoapPacketType.NON && this.queue.remove(queued)) {
+				this.droppedMessages++;
+				released(this.size.decrementAndGet());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void awaitSpace() {
+		synchronized (this.notFull) {
+			this.waitingSenders++;
+			try {
+				while (this.size.get() >= this.capacity && !this.closed) {
+					this.notFull.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for the outbound queue");
+			} finally {
+				this.waitingSenders--;
+			}
+		}
+	}
+
+	/**
+	 * Rejects all further messages and releases the blocked senders. Messages
+	 * that are already queued can still be polled.
+	 */
+	void close() {
+		this.closed = true;
+		synchronized (this.notFull) {
+			this.notFull.notifyAll();
+		}
+	}
+
+	private void released(int newSize) {
+		if (newSize <= this.capacity / 2) {
+			this.writable = true;
+		}
+		if (this.waitingSenders > 0 && newSize < this.capacity) {
+			synchronized (this.notFull) {
+				this.notFull.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return False while the queue is full and has not yet been drained to half
+	 *         of its capacity.
+	 */
+	boolean isWritable() {
+		return this.writable;
+	}
+
+	/**
+	 * @return The number of queued messages and of polled messages whose slot
+	 *         was not yet released.
+	 */
+	int getDepth() {
+		return this.size.get();
+	}
+
+	int getCapacity() {
+		return this.capacity;
+	}
+
+	void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.capacity = capacity;
+	}
+
+	OverloadPolicy getPolicy() {
+		return this.policy;
+	}
+
+	void setPolicy(OverloadPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		this.policy = policy;
+	}
+
+	/**
+	 * @return The number of NON messages dropped by the DROP_OLDEST_NON policy.
+	 */
+	long getDroppedMessages() {
+		return this.droppedMessages;
+	}
+}
@@ -0,0 +1,32 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+/**
+ * Defines what happens to a message that is sent while the outbound queue of a
+ * socket handler is full.
+ */
+public enum OverloadPolicy {
+	/** the sender waits until there is space in the queue */
+	BLOCK,
+	/**
+	 * the oldest queued NON message is dropped, other messages are rejected if
+	 * no NON message is queued
+	 */
+	DROP_OLDEST_NON,
+	/** the message is rejected with an IllegalStateException */
+	REJECT;
+}
@@ -0,0 +1,407 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.messages.api.CoapMessage;
+
+/**
+ * The state a socket handler keeps per remote endpoint (address and port).
+ * <br>
+ * Estimates the retransmission timeout (RTO) of the endpoint from measured
+ * round trip times in the style of CoCoA (draft-ietf-core-cocoa). A strong
+ * estimator is fed by exchanges without retransmission, a weak estimator by
+ * exchanges that needed one or two retransmissions. Each new estimate is
+ * blended into the overall RTO which is used for new CON messages.
+ * <br>
+ * Limits the traffic to the endpoint (see rfc7252 - 4.7. "Congestion
+ * Control"): at most NSTART CON messages are outstanding, further CON messages
+ * wait until an outstanding one is confirmed or given up. NON messages to an
+ * endpoint that did not respond yet are paced to PROBING_RATE.
+ * <br>
+ * Message ids are generated per endpoint, so unconfirmed CON messages are only
+ * confirmed by an ACK or RST of the endpoint they were sent to.
+ */
+class RemoteEndpoint {
+	/* estimator gains, see RFC 6298 */
+	private static final double ALPHA = 0.125;
+	private static final double BETA = 0.25;
+	private static final int K_STRONG = 4;
+	private static final int K_WEAK = 1;
+
+	/** weight of a new strong / weak estimate in the overall RTO */
+	private static final double WEIGHT_STRONG = 0.5;
+	private static final double WEIGHT_WEAK = 0.25;
+
+	private final int id;
+	private final InetAddress address;
+	private final int port;
+	private final NetworkConfig config;
+	private final Random random = new Random();
+
+	private double strongSrtt = 0;
+	private double strongRttvar = 0;
+	private boolean strongValid = false;
+	private double weakSrtt = 0;
+	private double weakRttvar = 0;
+	private boolean weakValid = false;
+
+	/** the overall RTO in milliseconds */
+	private double rto;
+	private long lastUpdate = System.currentTimeMillis();
+
+	/* outstanding CON messages and the ones waiting for a free slot */
+	private int outstanding = 0;
+	private ArrayDeque<CoapMessage> pendingExchanges = new ArrayDeque<CoapMessage>();
+
+	/* the last message id generated for the endpoint */
+	private int messageId = this.random.nextInt(CoapConstants.MESSAGE_ID_MAX + 1);
+
+	/* CON messages waiting for their acknowledgement by message id */
+	private HashMap<Integer, EncodedMessage> unconfirmed = new HashMap<Integer, EncodedMessage>();
+
+	/** true once a message was received from the endpoint */
+	private volatile boolean responsive = false;
+
+	/* probing state, only used by the worker thread */
+	private long probeAllowedAt = 0;
+	private ArrayDeque<CoapMessage> pendingProbes = new ArrayDeque<CoapMessage>();
+
+	/** runs the message handlers of the endpoint in order, created on demand */
+	private SerialExecutor handlers = null;
+
+	/* the last time the endpoint was looked up, see evictIfIdle */
+	private long lastUse = System.currentTimeMillis();
+	private boolean evicted = false;
+
+	RemoteEndpoint(int id, InetAddress address, int port, NetworkConfig config) {
+		this.id = id;
+		this.address = address;
+		this.port = port;
+		this.config = config;
+		this.rto = config.getAckTimeout();
+	}
+
+	/**
+	 * @return The id of the endpoint, unique within its socket handler and never
+	 *         0.
+	 */
+	int getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return The message id of the endpoint packed with its id into a key that
+	 *         is never 0.
+	 */
+	long getMessageKey(int msgId) {
+		return ((long) this.id << 16) | (msgId & 0xFFFF);
+	}
+
+	InetAddress getAddress() {
+		return this.address;
+	}
+
+	int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Adds a round trip time measurement.
+	 * 
+	 * @param rtt
+	 *            - milliseconds between the first transmission of a CON message
+	 *            and its acknowledgement
+	 * @param retransmissions
+	 *            - number of retransmissions of the message. Measurements of
+	 *            messages retransmitted more than twice are ignored.
+	 */
+	synchronized void updateRtt(double rtt, int retransmissions) {
+		double estimate;
+		if (retransmissions == 0) {
+			if (!this.strongValid) {
+				this.strongSrtt = rtt;
+				this.strongRttvar = rtt / 2;
+				this.strongValid = true;
+			} else {
+				this.strongRttvar = (1 - BETA) * this.strongRttvar + BETA * Math.abs(this.strongSrtt - rtt);
+				this.strongSrtt = (1 - ALPHA) * this.strongSrtt + ALPHA * rtt;
+			}
+			estimate = this.strongSrtt + K_STRONG * this.strongRttvar;
+			this.rto = WEIGHT_STRONG * estimate + (1 - WEIGHT_STRONG) * this.rto;
+		} else if (retransmissions <= 2) {
+			if (!this.weakValid) {
+				this.weakSrtt = rtt;
+				this.weakRttvar = rtt / 2;
+				this.weakValid = true;
+			} else {
+				this.weakRttvar = (1 - BETA) * this.weakRttvar + BETA * Math.abs(this.weakSrtt - rtt);
+				this.weakSrtt = (1 - ALPHA) * this.weakSrtt + ALPHA * rtt;
+			}
+			estimate = this.weakSrtt + K_WEAK * this.weakRttvar;
+			this.rto = WEIGHT_WEAK * estimate + (1 - WEIGHT_WEAK) * this.rto;
+		} else {
+			return;
+		}
+		this.rto = Math.min(Math.max(this.rto, this.config.getMinRto()), this.config.getMaxRto());
+		this.lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The current RTO in milliseconds.
+	 */
+	synchronized double getRto() {
+		age();
+		return this.rto;
+	}
+
+	/**
+	 * @return The timeout of a new CON message in milliseconds, a random duration
+	 *         between RTO and RTO * ACK_RANDOM_FACTOR.
+	 */
+	synchronized int getInitialTimeout() {
+		age();
+		return (int) (this.rto * (1 + this.random.nextDouble() * (this.config.getAckRandomFactor() - 1)));
+	}
+
+	/**
+	 * Small RTOs back off faster, large RTOs slower than the default factor 2.
+	 * 
+	 * @return The factor the timeout of a CON message is multiplied with on each
+	 *         retransmission.
+	 */
+	synchronized double getBackoffFactor() {
+		if (this.rto < 1000) {
+			return 3;
+		} else if (this.rto > 3000) {
+			return 1.5;
+		}
+		return 2;
+	}
+
+	/**
+	 * An RTO that was not updated for a while moves back towards the default.
+	 */
+	private void age() {
+		long idle = System.currentTimeMillis() - this.lastUpdate;
+		if ((this.rto < 1000 && idle > 16 * this.rto) || (this.rto > 3000 && idle > 4 * this.rto)) {
+			this.rto = 1000 + 0.5 * this.rto;
+			this.lastUpdate = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Starts a CON exchange if less than NSTART exchanges are outstanding,
+	 * otherwise the message is queued.
+	 * 
+	 * @param msg
+	 *            - the CON message
+	 * @param nstart
+	 *            - the maximal number of outstanding exchanges
+	 * @return True if the message may be sent now, false if it was queued.
+	 */
+	synchronized boolean startExchange(CoapMessage msg, int nstart) {
+		if (this.outstanding < nstart) {
+			this.outstanding++;
+			return true;
+		}
+		this.pendingExchanges.add(msg);
+		return false;
+	}
+
+	/**
+	 * Ends an outstanding CON exchange (confirmed or given up).
+	 * 
+	 * @param nstart
+	 *            - the maximal number of outstanding exchanges
+	 * @return The next queued CON message which now counts as outstanding and
+	 *         must be sent, null if there is none or no slot is free.
+	 */
+	synchronized CoapMessage completeExchange(int nstart) {
+		if (this.outstanding > 0) {
+			this.outstanding--;
+		}
+		if (this.outstanding < nstart && !this.pendingExchanges.isEmpty()) {
+			this.outstanding++;
+			return this.pendingExchanges.poll();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of CON messages waiting for a free exchange slot.
+	 */
+	synchronized int getPendingExchanges() {
+		return this.pendingExchanges.size();
+	}
+
+	synchronized int getOutstandingExchanges() {
+		return this.outstanding;
+	}
+
+	/**
+	 * @return A new message id for a message to the endpoint.
+	 */
+	synchronized int getNewMessageID() {
+		if (this.messageId < CoapConstants.MESSAGE_ID_MAX) {
+			++this.messageId;
+		} else {
+			this.messageId = CoapConstants.MESSAGE_ID_MIN;
+		}
+		return this.messageId;
+	}
+
+	/**
+	 * Registers a CON message that waits for its acknowledgement.
+	 */
+	synchronized void addUnconfirmed(EncodedMessage msg) {
+		this.unconfirmed.put(msg.getMessageId(), msg);
+	}
+
+	/**
+	 * @return The unconfirmed CON message with the message id or null if there
+	 *         is none.
+	 */
+	synchronized EncodedMessage removeUnconfirmed(int msgId) {
+		return this.unconfirmed.remove(msgId);
+	}
+
+	synchronized int getUnconfirmed() {
+		return this.unconfirmed.size();
+	}
+
+	boolean isResponsive() {
+		return this.responsive;
+	}
+
+	void setResponsive(boolean responsive) {
+		this.responsive = responsive;
+	}
+
+	/**
+	 * Checks if a NON message may be sent to the endpoint, otherwise queues it.
+	 * Called by the worker thread only.
+	 * 
+	 * @param msg
+	 *            - the NON message
+	 * @param now
+	 *            - the current time in milliseconds
+	 * @return True if the message may be sent now.
+	 */
+	boolean mayProbe(CoapMessage msg, long now) {
+		if (this.responsive || (this.pendingProbes.isEmpty() && now >= this.probeAllowedAt)) {
+			return true;
+		}
+		this.pendingProbes.add(msg);
+		return false;
+	}
+
+	/**
+	 * Accounts a NON message sent to the endpoint. Called by the worker thread
+	 * only.
+	 * 
+	 * @param length
+	 *            - the size of the message in bytes
+	 * @param probingRate
+	 *            - the allowed average data rate in bytes per second
+	 * @param now
+	 *            - the current time in milliseconds
+	 */
+	void probed(int length, double probingRate, long now) {
+		if (!this.responsive) {
+			this.probeAllowedAt = now + (long) (length * 1000 / probingRate);
+		}
+	}
+
+	/**
+	 * Called by the worker thread only.
+	 * 
+	 * @param now
+	 *            - the current time in milliseconds
+	 * @return The next queued NON message that may be sent now, null if none.
+	 */
+	CoapMessage nextProbe(long now) {
+		if (this.pendingProbes.isEmpty() || (!this.responsive && now < this.probeAllowedAt)) {
+			return null;
+		}
+		return this.pendingProbes.poll();
+	}
+
+	/**
+	 * Called by the worker thread only.
+	 * 
+	 * @return The time in milliseconds when the next queued NON message may be
+	 *         sent, Long.MAX_VALUE if none is queued.
+	 */
+	long getNextProbeTime() {
+		if (this.pendingProbes.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		return this.responsive ? 0 : this.probeAllowedAt;
+	}
+
+	/**
+	 * Marks the endpoint as used.
+	 * 
+	 * @return False if the endpoint was evicted and must not be used any more.
+	 */
+	synchronized boolean touch(long now) {
+		if (this.evicted) {
+			return false;
+		}
+		this.lastUse = now;
+		return true;
+	}
+
+	/**
+	 * Evicts the endpoint if it was not used for idleTime and has no
+	 * outstanding, queued or unconfirmed messages and no running handlers. The
+	 * duplicate detection entries of its id expire after EXCHANGE_LIFETIME, so
+	 * a new endpoint for the same remote does not miss duplicates. Called by
+	 * the worker thread only.
+	 * 
+	 * @return True if the endpoint was evicted.
+	 */
+	synchronized boolean evictIfIdle(long now, long idleTime) {
+		if (now - this.lastUse < idleTime || this.outstanding > 0 || !this.pendingExchanges.isEmpty()
+				|| !this.unconfirmed.isEmpty() || !this.pendingProbes.isEmpty()
+				|| (this.handlers != null && !this.handlers.isIdle())) {
+			return false;
+		}
+		this.evicted = true;
+		return true;
+	}
+
+	/**
+	 * @param executor
+	 *            - the shared executor of the socket handler
+	 * @return The executor running the message handlers of this endpoint one
+	 *         after another.
+	 */
+	synchronized Executor getHandlerExecutor(Executor executor) {
+		if (this.handlers == null) {
+			this.handlers = new SerialExecutor(executor);
+		}
+		return this.handlers;
+	}
+}
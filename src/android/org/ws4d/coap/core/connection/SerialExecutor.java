@@ -0,0 +1,125 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Runs the tasks of one remote endpoint one after another in submission order
+ * on a shared executor. At most one task of an endpoint is running or queued
+ * on the shared executor, so a blocking handler only delays the messages of
+ * its own endpoint.
+ */
+class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running = false;
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		synchronized (this) {
+			this.tasks.add(task);
+			if (this.running) {
+				return;
+			}
+			this.running = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * @return True if no task is queued or running.
+	 */
+	synchronized boolean isIdle() {
+		return !this.running;
+	}
+
+	private void schedule() {
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		} catch (RuntimeException e) {
+			/* the shared executor was shut down */
+			synchronized (this) {
+				this.tasks.clear();
+				this.running = false;
+			}
+		}
+	}
+
+	private void drain() {
+		Runnable task;
+		synchronized (this) {
+			task = this.tasks.poll();
+			if (task == null) {
+				this.running = false;
+				return;
+			}
+		}
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			/* a failing handler must not stall the endpoint */
+			Log.e("CCoap", "A message handler failed", e);
+		} finally {
+			/* the next task runs in a new task of the shared executor */
+			schedule();
+		}
+	}
+
+	/**
+	 * Creates the shared executor for message handlers. Uses a virtual thread
+	 * per task if the runtime supports it (Java 21+), otherwise a cached pool
+	 * of daemon threads. Reflection keeps the code compilable for older
+	 * runtimes and Android.
+	 * 
+	 * @return The executor, to be shut down by its owner.
+	 */
+	static ExecutorService newHandlerExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			/* no virtual threads available */
+		}
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "CoAP handler " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
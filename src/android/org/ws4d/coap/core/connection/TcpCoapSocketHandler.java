@@ -0,0 +1,1240 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.api.CoapChannel;
+import org.ws4d.coap.core.connection.api.CoapChannelManager;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.connection.api.CoapServerChannel;
+import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.AbstractCoapMessage;
+import org.ws4d.coap.core.messages.api.CoapMessage;
+
+/**
+ * Socket handler for CoAP over TCP, see rfc8323. The messages of a remote
+ * endpoint are exchanged over a single connection that is opened with the
+ * first message and reused by all later messages in both directions. TCP
+ * delivers the messages reliably and in order, so there are no message IDs,
+ * acknowledgements, retransmissions or duplicates. Large payloads are sent
+ * in a single message instead of blocks, the channels of this handler have no
+ * block sizes. A server accepts at most TCP_MAX_CONNECTIONS connections at
+ * once.<br>
+ * A single thread accepts, connects, reads and writes all connections. The
+ * message handlers are run according to the callback mode of the network
+ * config, in the mode DISPATCH_THREAD a blocking handler stalls all
+ * connections.
+ */
+public class TcpCoapSocketHandler implements CoapSocketHandler {
+
+	/* signaling codes 7.xx, see rfc8323 - 5 */
+	private static final int CODE_CSM = 225;
+	private static final int CODE_PING = 226;
+	private static final int CODE_PONG = 227;
+	private static final int CODE_RELEASE = 228;
+	private static final int CODE_ABORT = 229;
+	private static final int CODE_SIGNAL_MIN = 224;
+
+	/* signaling options, see rfc8323 - 5.3 */
+	private static final int OPTION_MAX_MESSAGE_SIZE = 2;
+
+	/* length nibbles of the message header, see rfc8323 - 3.2 */
+	private static final int LENGTH_8BIT = 13;
+	private static final int LENGTH_16BIT = 14;
+	private static final int LENGTH_32BIT = 15;
+	private static final int OFFSET_8BIT = 13;
+	private static final int OFFSET_16BIT = 269;
+	private static final int OFFSET_32BIT = 65805;
+
+	/** the longest header: length, 32 bit extended length and code */
+	private static final int MAX_HEADER_LENGTH = 6;
+
+	/** initial size of the read buffers, grown for larger messages */
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private static final int POLLING_INTERVALL = 10000;
+
+	private final CoapChannelManager channelManager;
+	private final NetworkConfig config;
+
+	/** accepts the connections of remote clients, null for a client handler */
+	private ServerSocketChannel serverChannel = null;
+	private int localPort = 0;
+
+	private IoThread ioThread;
+
+	/** false once the socket handler was closed, it can not be started again */
+	private volatile boolean running = true;
+
+	/* the channels are looked up by the I/O thread and the message handlers */
+	private Map<ChannelKey, CoapClientChannel> clientChannels = new ConcurrentHashMap<ChannelKey, CoapClientChannel>();
+	private Map<ChannelKey, CoapServerChannel> serverChannels = new ConcurrentHashMap<ChannelKey, CoapServerChannel>();
+
+	/** messages waiting to be sent by the I/O thread */
+	private OutboundQueue outboundQueue;
+
+	/** runs the message handlers in CallbackMode.VIRTUAL_THREAD, created on demand */
+	private ExecutorService handlerExecutor = null;
+
+	/* statistics, only written by the I/O thread */
+	private volatile int connectionCount = 0;
+	private volatile long openedConnections = 0;
+	private volatile long rejectedConnections = 0;
+
+	/**
+	 * @param channelManager
+	 *            - the channel manager
+	 * @param port
+	 *            - the local port to accept connections on, 0 for an ephemeral
+	 *            port
+	 * @param server
+	 *            - true to accept connections. Otherwise the handler only
+	 *            connects to remote endpoints.
+	 * @throws IOException
+	 *             if the port can not be bound
+	 */
+	public TcpCoapSocketHandler(CoapChannelManager channelManager, int port, boolean server) throws IOException {
+		this.channelManager = channelManager;
+		this.config = channelManager.getNetworkConfig();
+		this.outboundQueue = new OutboundQueue(this.config.getOutboundQueueSize(), this.config.getOverloadPolicy());
+		if (server) {
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			this.serverChannel.bind(new InetSocketAddress(port));
+			this.serverChannel.configureBlocking(false);
+			this.localPort = this.serverChannel.socket().getLocalPort();
+		}
+		this.ioThread = new IoThread();
+		this.ioThread.start();
+	}
+
+	boolean isRunning() {
+		return this.running;
+	}
+
+	@Override
+	public CoapClientChannel connect(CoapClient client, InetAddress remoteAddress, int remotePort) {
+		if (client == null || !this.running || remoteAddress.isMulticastAddress()) {
+			/* TCP has no multicast */
+			return null;
+		}
+
+		ChannelKey key = new ChannelKey(remoteAddress, remotePort);
+		CoapClientChannel existing = this.clientChannels.get(key);
+		if (existing != null) {
+			/* requests of the same client share the channel and its connection */
+			if (existing instanceof BasicCoapClientChannel
+					&& ((BasicCoapClientChannel) existing).getClient() == client) {
+				return existing;
+			}
+			return null;
+		}
+
+		/* the connection is opened with the first request */
+		CoapClientChannel channel = new BasicCoapClientChannel(this, client, remoteAddress, remotePort);
+		noBlockwise(channel);
+		this.clientChannels.put(key, channel);
+		return channel;
+	}
+
+	/**
+	 * Large payloads are sent in a single message, see rfc8323 - 3.
+	 */
+	private static void noBlockwise(CoapChannel channel) {
+		channel.setMaxReceiveBlocksize(null);
+		channel.setMaxSendBlocksize(null);
+	}
+
+	@Override
+	public void sendMessage(CoapMessage msg) {
+		if (this.ioThread != null) {
+			this.ioThread.addMessageToSendBuffer(msg);
+		}
+	}
+
+	@Override
+	public boolean isWritable() {
+		return this.outboundQueue.isWritable();
+	}
+
+	@Override
+	public CoapChannelManager getChannelManager() {
+		return this.channelManager;
+	}
+
+	@Override
+	public NetworkConfig getNetworkConfig() {
+		return this.config;
+	}
+
+	/**
+	 * Applies the outbound queue size and the overload policy of the network
+	 * config after it was changed.
+	 */
+	@Override
+	public void applyNetworkConfig() {
+		this.outboundQueue.setCapacity(this.config.getOutboundQueueSize());
+		this.outboundQueue.setPolicy(this.config.getOverloadPolicy());
+	}
+
+	/**
+	 * TCP has no message IDs, see rfc8323 - 3.2.
+	 *
+	 * @return 0
+	 */
+	@Override
+	public int getNewMessageID(InetAddress remoteAddress, int remotePort) {
+		return 0;
+	}
+
+	/**
+	 * @return The port connections are accepted on, 0 for a client handler.
+	 */
+	@Override
+	public int getLocalPort() {
+		return this.localPort;
+	}
+
+	@Override
+	public void removeClientChannel(CoapClientChannel channel) {
+		/* the connection stays open for the next channel until it is idle */
+		this.clientChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+	}
+
+	@Override
+	public void removeServerChannel(CoapServerChannel channel) {
+		this.serverChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+	}
+
+	/**
+	 * @return The number of open connections.
+	 */
+	public int getConnectionCount() {
+		return this.connectionCount;
+	}
+
+	/**
+	 * @return The number of connections opened or accepted so far.
+	 */
+	public long getOpenedConnections() {
+		return this.openedConnections;
+	}
+
+	/**
+	 * @return The number of connections closed right after they were accepted,
+	 *         because the server had TCP_MAX_CONNECTIONS open.
+	 */
+	public long getRejectedConnections() {
+		return this.rejectedConnections;
+	}
+
+	/**
+	 * @return The number of messages waiting to be sent.
+	 */
+	public int getOutboundQueueDepth() {
+		return this.outboundQueue.getDepth();
+	}
+
+	/**
+	 * Releases all connections (see rfc8323 - 5.5) and stops the I/O thread.
+	 * The queued messages are still sent. Pending requests of the client
+	 * channels fail. A closed socket handler can not be started again.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (!this.running) {
+				return;
+			}
+			this.running = false;
+		}
+
+		this.outboundQueue.close();
+		this.ioThread.shutdown();
+		if (this.ioThread != Thread.currentThread()) {
+			try {
+				this.ioThread.join(CoapConstants.SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.ioThread.isAlive()) {
+				this.ioThread.interrupt();
+			}
+		}
+
+		List<CoapClientChannel> channels = new ArrayList<CoapClientChannel>(this.clientChannels.values());
+		this.clientChannels.clear();
+		this.serverChannels.clear();
+		for (CoapClientChannel channel : channels) {
+			if (channel instanceof BasicCoapClientChannel) {
+				((BasicCoapClientChannel) channel).abort();
+			}
+		}
+
+		synchronized (this) {
+			if (this.handlerExecutor != null) {
+				/* handlers already queued still run */
+				this.handlerExecutor.shutdown();
+				this.handlerExecutor = null;
+			}
+		}
+
+		if (this.serverChannel != null) {
+			try {
+				this.serverChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private synchronized ExecutorService getHandlerExecutor() {
+		if (this.handlerExecutor == null) {
+			this.handlerExecutor = SerialExecutor.newHandlerExecutor();
+		}
+		return this.handlerExecutor;
+	}
+
+	/**
+	 * Encodes a message with the header of rfc8323 - 3.2. The message is
+	 * serialized behind room for the longest header, then its UDP header is
+	 * replaced by the TCP header right in front of the token.
+	 *
+	 * @return The frame between position and limit.
+	 */
+	static ByteBuffer encode(CoapMessage msg) {
+		int udpLength = msg.getSerializedLength();
+		ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_LENGTH - 4 + udpLength);
+		frame.position(MAX_HEADER_LENGTH - 4);
+		msg.serializeTo(frame);
+		int tokenLength = frame.get(MAX_HEADER_LENGTH - 4) & 0x0F;
+		int code = frame.get(MAX_HEADER_LENGTH - 3) & 0xFF;
+		int start = putHeader(frame, MAX_HEADER_LENGTH, udpLength - 4 - tokenLength, tokenLength, code);
+		frame.position(start);
+		return frame;
+	}
+
+	/**
+	 * Writes a message header that ends in front of the token.
+	 *
+	 * @param end
+	 *            - the index of the first token byte
+	 * @param length
+	 *            - the length of options and payload
+	 * @return The index of the first header byte.
+	 */
+	private static int putHeader(ByteBuffer frame, int end, int length, int tokenLength, int code) {
+		frame.put(end - 1, (byte) code);
+		int extended;
+		int nibble;
+		if (length < OFFSET_8BIT) {
+			nibble = length;
+			extended = 0;
+		} else if (length < OFFSET_16BIT) {
+			nibble = LENGTH_8BIT;
+			extended = 1;
+			frame.put(end - 2, (byte) (length - OFFSET_8BIT));
+		} else if (length < OFFSET_32BIT) {
+			nibble = LENGTH_16BIT;
+			extended = 2;
+			frame.putShort(end - 3, (short) (length - OFFSET_16BIT));
+		} else {
+			nibble = LENGTH_32BIT;
+			extended = 4;
+			frame.putInt(end - 5, length - OFFSET_32BIT);
+		}
+		int start = end - 2 - extended;
+		frame.put(start, (byte) ((nibble << 4) | tokenLength));
+		return start;
+	}
+
+	/**
+	 * Encodes a signaling message with at most one option.
+	 *
+	 * @param option
+	 *            - the option number, 0 for none
+	 * @param value
+	 *            - the option value
+	 */
+	private static ByteBuffer encodeSignal(int code, byte[] token, int option, byte[] value) {
+		int length = option == 0 ? 0 : 1 + value.length;
+		ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_LENGTH + token.length + length);
+		int start = putHeader(frame, MAX_HEADER_LENGTH, length, token.length, code);
+		frame.position(MAX_HEADER_LENGTH);
+		frame.put(token);
+		if (option != 0) {
+			/* small option numbers and values only, no extended delta or length */
+			frame.put((byte) ((option << 4) | value.length));
+			frame.put(value);
+		}
+		frame.flip();
+		frame.position(start);
+		return frame;
+	}
+
+	private static byte[] uint(int value) {
+		int length = value == 0 ? 0 : value < 0x100 ? 1 : value < 0x10000 ? 2 : value < 0x1000000 ? 3 : 4;
+		byte[] bytes = new byte[length];
+		for (int i = length - 1; i >= 0; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * The connection event loop. Owns all connections, other threads only
+	 * queue messages.
+	 */
+	private class IoThread extends Thread {
+		private Selector selector = null;
+
+		/** connections by remote endpoint */
+		private HashMap<InetSocketAddress, Connection> connections = new HashMap<InetSocketAddress, Connection>();
+
+		/** released connections that still write their last frames */
+		private ArrayList<Connection> releasing = new ArrayList<Connection>();
+
+		/** accepted connections, counted against TCP_MAX_CONNECTIONS */
+		private int acceptedConnections = 0;
+
+		/** true while the thread waits in select(), see BasicCoapSocketHandler */
+		private AtomicBoolean parked = new AtomicBoolean(false);
+
+		public IoThread() {
+			super("CoAP TCP");
+			try {
+				this.selector = Selector.open();
+				if (TcpCoapSocketHandler.this.serverChannel != null) {
+					TcpCoapSocketHandler.this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+				}
+			} catch (IOException e) {
+			}
+		}
+
+		void shutdown() {
+			this.selector.wakeup();
+		}
+
+		void addMessageToSendBuffer(CoapMessage msg) {
+			/* the I/O thread must not wait for itself */
+			boolean mayBlock = Thread.currentThread() != this;
+			if (TcpCoapSocketHandler.this.outboundQueue.offer(msg, mayBlock)) {
+				if (this.parked.compareAndSet(true, false)) {
+					this.selector.wakeup();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				work();
+				/* the last responses of the handlers, then a graceful release */
+				sendBufferedMessages();
+				for (Connection connection : new ArrayList<Connection>(this.connections.values())) {
+					connection.release();
+				}
+				flush();
+			} finally {
+				try {
+					this.selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		private void work() {
+			while (TcpCoapSocketHandler.this.isRunning()) {
+				sendBufferedMessages();
+				long waitFor = checkConnections(System.currentTimeMillis());
+
+				this.parked.set(true);
+				if (TcpCoapSocketHandler.this.outboundQueue.isEmpty()) {
+					try {
+						this.selector.select(waitFor);
+					} catch (IOException e) {
+					}
+				}
+				this.parked.set(false);
+
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							connection.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (RuntimeException e) {
+						/* a failure of one connection must not stop the thread of all others */
+						connection.close(false, false);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes the last frames of the released connections until all are
+		 * closed, each within TCP_RELEASE_TIMEOUT_MS.
+		 */
+		private void flush() {
+			while (true) {
+				long waitFor = checkConnections(System.currentTimeMillis());
+				if (this.releasing.isEmpty()) {
+					return;
+				}
+				if (Thread.interrupted()) {
+					/* the socket handler does not wait any longer */
+					for (Connection connection : new ArrayList<Connection>(this.releasing)) {
+						connection.close(false, false);
+					}
+					return;
+				}
+				try {
+					this.selector.select(waitFor);
+				} catch (IOException e) {
+				}
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isWritable()) {
+						((Connection) key.attachment()).write();
+					}
+				}
+			}
+		}
+
+		private void accept() {
+			SocketChannel socket;
+			try {
+				socket = TcpCoapSocketHandler.this.serverChannel.accept();
+			} catch (IOException e) {
+				return;
+			}
+			if (socket == null) {
+				return;
+			}
+			if (this.acceptedConnections >= CoapConstants.TCP_MAX_CONNECTIONS) {
+				TcpCoapSocketHandler.this.rejectedConnections++;
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				return;
+			}
+			try {
+				socket.configureBlocking(false);
+				socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				InetSocketAddress remote = (InetSocketAddress) socket.getRemoteAddress();
+				Connection connection = new Connection(socket, remote, false);
+				connection.connected();
+			} catch (IOException e) {
+				try {
+					socket.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
+
+		private void sendBufferedMessages() {
+			CoapMessage msg = TcpCoapSocketHandler.this.outboundQueue.poll();
+			while (msg != null) {
+				send(msg);
+				msg = TcpCoapSocketHandler.this.outboundQueue.poll();
+			}
+		}
+
+		private void send(final CoapMessage msg) {
+			if (msg.isEmpty()) {
+				/* ACK and RST of the channels have no meaning on TCP */
+				return;
+			}
+			CoapChannel channel = msg.getChannel();
+			InetSocketAddress remote = new InetSocketAddress(channel.getRemoteAddress(), channel.getRemotePort());
+			Connection connection = this.connections.get(remote);
+			if (connection == null) {
+				if (!(channel instanceof CoapClientChannel)) {
+					/* the client of a server channel is gone */
+					return;
+				}
+				connection = open(remote);
+				if (connection == null) {
+					failRequest(null, msg, true);
+					return;
+				}
+			}
+			connection.send(msg, encode(msg));
+		}
+
+		private void failRequest(Connection connection, final CoapMessage msg, final boolean notReachable) {
+			if (!msg.isRequest() || !(msg.getChannel() instanceof CoapClientChannel)) {
+				return;
+			}
+			final CoapClientChannel channel = (CoapClientChannel) msg.getChannel();
+			runHandler(connection, new Runnable() {
+				@Override
+				public void run() {
+					channel.lostExchange(msg.getToken(), notReachable, false);
+				}
+			});
+		}
+
+		private Connection open(InetSocketAddress remote) {
+			SocketChannel socket = null;
+			try {
+				socket = SocketChannel.open();
+				socket.configureBlocking(false);
+				socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Connection connection = new Connection(socket, remote, true);
+				if (socket.connect(remote)) {
+					connection.connected();
+				}
+				return connection;
+			} catch (IOException e) {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e1) {
+					}
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * Pings idle connections and closes connections that did not answer, did
+		 * not connect in time or are no longer used.
+		 *
+		 * @return Milliseconds until the next connection has to be checked.
+		 */
+		private long checkConnections(long now) {
+			long next = POLLING_INTERVALL;
+			for (Connection connection : new ArrayList<Connection>(this.connections.values())) {
+				next = Math.min(next, connection.check(now));
+			}
+			for (Connection connection : new ArrayList<Connection>(this.releasing)) {
+				next = Math.min(next, connection.check(now));
+			}
+			return Math.max(next, 1);
+		}
+
+		/**
+		 * Runs a handler according to the callback mode, either directly or on
+		 * the serial executor of the connection.
+		 */
+		private void runHandler(Connection connection, Runnable handler) {
+			if (TcpCoapSocketHandler.this.config.getCallbackMode() == CallbackMode.DISPATCH_THREAD
+					|| connection == null) {
+				handler.run();
+				return;
+			}
+			connection.getHandlers().execute(handler);
+		}
+
+		/**
+		 * The state of a single connection, only used by the I/O thread.
+		 */
+		private class Connection {
+			private final SocketChannel socket;
+			private final InetSocketAddress remote;
+			private final SelectionKey key;
+
+			/** true if this side opened the connection */
+			private final boolean client;
+			private boolean connected = false;
+			private boolean closed = false;
+			/** true after a Release or Abort signal was queued, nothing is read or sent anymore */
+			private boolean released = false;
+			/** time the last frames of a released connection have to be written by */
+			private long releaseDeadline = 0;
+
+			private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+			private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+			/** largest message the remote accepts, see rfc8323 - 5.3.1 */
+			private int peerMaxMessageSize = CoapConstants.TCP_DEFAULT_MAX_MESSAGE_SIZE;
+			private boolean csmReceived = false;
+
+			/** messages exceeding the default size, they wait for the CSM of the remote */
+			private ArrayDeque<CoapMessage> awaitingCsm = new ArrayDeque<CoapMessage>();
+
+			private final long opened = System.currentTimeMillis();
+			/** last data received or ping sent, for the liveness check */
+			private long lastActivity = this.opened;
+			/** last message sent or received, signals do not count */
+			private long lastUse = this.opened;
+			private boolean pingSent = false;
+
+			private SerialExecutor handlers = null;
+
+			Connection(SocketChannel socket, InetSocketAddress remote, boolean client) throws IOException {
+				this.socket = socket;
+				this.remote = remote;
+				this.client = client;
+				this.key = socket.register(IoThread.this.selector, client ? SelectionKey.OP_CONNECT : 0, this);
+				Connection replaced = IoThread.this.connections.put(remote, this);
+				if (replaced != null) {
+					replaced.close(false, false);
+				}
+				/* the capabilities of this endpoint are the first message */
+				this.writeQueue.add(encodeSignal(CODE_CSM, new byte[0], OPTION_MAX_MESSAGE_SIZE,
+						uint(CoapConstants.TCP_MAX_MESSAGE_SIZE)));
+				if (!client) {
+					IoThread.this.acceptedConnections++;
+				}
+				TcpCoapSocketHandler.this.connectionCount = IoThread.this.connections.size()
+						+ IoThread.this.releasing.size();
+				TcpCoapSocketHandler.this.openedConnections++;
+			}
+
+			SerialExecutor getHandlers() {
+				if (this.handlers == null) {
+					this.handlers = new SerialExecutor(getHandlerExecutor());
+				}
+				return this.handlers;
+			}
+
+			void finishConnect() {
+				try {
+					if (this.socket.finishConnect()) {
+						connected();
+					}
+				} catch (IOException e) {
+					close(true, false);
+				}
+			}
+
+			void connected() {
+				this.connected = true;
+				this.lastActivity = System.currentTimeMillis();
+				this.key.interestOps(SelectionKey.OP_READ);
+				write();
+			}
+
+			void send(CoapMessage msg, ByteBuffer frame) {
+				this.lastUse = System.currentTimeMillis();
+				if (frame.remaining() <= this.peerMaxMessageSize) {
+					queue(frame);
+				} else if (!this.csmReceived) {
+					this.awaitingCsm.add(msg);
+				} else {
+					/* the remote endpoint would abort the connection */
+					failRequest(this, msg, false);
+				}
+			}
+
+			void queue(ByteBuffer frame) {
+				this.writeQueue.add(frame);
+				if (this.connected) {
+					write();
+				}
+			}
+
+			/**
+			 * Writes the queued frames until the socket is full, OP_WRITE is selected
+			 * while frames are left. A released connection is closed once all its
+			 * frames are written.
+			 */
+			void write() {
+				if (this.closed) {
+					return;
+				}
+				int readOps = this.released ? 0 : SelectionKey.OP_READ;
+				try {
+					ByteBuffer frame = this.writeQueue.peek();
+					while (frame != null) {
+						this.socket.write(frame);
+						if (frame.hasRemaining()) {
+							this.key.interestOps(readOps | SelectionKey.OP_WRITE);
+							return;
+						}
+						this.writeQueue.poll();
+						frame = this.writeQueue.peek();
+					}
+					if (this.released) {
+						close(false, false);
+						return;
+					}
+					this.key.interestOps(readOps);
+				} catch (IOException e) {
+					close(false, true);
+				}
+			}
+
+			void read() {
+				if (this.released) {
+					return;
+				}
+				int count;
+				try {
+					count = this.socket.read(this.readBuffer);
+				} catch (IOException e) {
+					close(false, true);
+					return;
+				}
+				if (count < 0) {
+					/* closed by the remote endpoint */
+					close(false, true);
+					return;
+				}
+				this.lastActivity = System.currentTimeMillis();
+				this.pingSent = false;
+
+				this.readBuffer.flip();
+				while (!this.closed && !this.released) {
+					int frameLength = frameLength(this.readBuffer);
+					if (frameLength < 0 || frameLength > this.readBuffer.remaining()) {
+						break;
+					}
+					int limit = this.readBuffer.limit();
+					this.readBuffer.limit(this.readBuffer.position() + frameLength);
+					receive(this.readBuffer);
+					this.readBuffer.position(this.readBuffer.limit());
+					this.readBuffer.limit(limit);
+				}
+				if (this.closed || this.released) {
+					return;
+				}
+				prepareRead();
+			}
+
+			/**
+			 * Keeps the start of an incomplete frame for the next read and grows the
+			 * buffer if the frame does not fit.
+			 */
+			private void prepareRead() {
+				int frameLength = frameLength(this.readBuffer);
+				if (frameLength > MAX_HEADER_LENGTH + 8 + CoapConstants.TCP_MAX_MESSAGE_SIZE) {
+					abort("message too large");
+					return;
+				}
+				if (frameLength > this.readBuffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(frameLength);
+					larger.put(this.readBuffer);
+					this.readBuffer = larger;
+				} else if (!this.readBuffer.hasRemaining() && this.readBuffer.capacity() > READ_BUFFER_SIZE) {
+					/* a large message was received, release its buffer */
+					this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				} else {
+					this.readBuffer.compact();
+				}
+			}
+
+			/**
+			 * @return The length of the frame starting at the position of the
+			 *         buffer, -1 if its header is incomplete.
+			 */
+			private int frameLength(ByteBuffer buffer) {
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				int pos = buffer.position();
+				int first = buffer.get(pos) & 0xFF;
+				int nibble = first >> 4;
+				int tokenLength = first & 0x0F;
+				int extended = nibble == LENGTH_8BIT ? 1 : nibble == LENGTH_16BIT ? 2 : nibble == LENGTH_32BIT ? 4 : 0;
+				if (buffer.remaining() < 2 + extended) {
+					return -1;
+				}
+				long length;
+				switch (nibble) {
+				case LENGTH_8BIT:
+					length = (buffer.get(pos + 1) & 0xFF) + OFFSET_8BIT;
+					break;
+				case LENGTH_16BIT:
+					length = (buffer.getShort(pos + 1) & 0xFFFF) + OFFSET_16BIT;
+					break;
+				case LENGTH_32BIT:
+					length = (buffer.getInt(pos + 1) & 0xFFFFFFFFL) + OFFSET_32BIT;
+					break;
+				default:
+					length = nibble;
+				}
+				return (int) Math.min(Integer.MAX_VALUE, 2 + extended + tokenLength + length);
+			}
+
+			/**
+			 * Handles one complete frame between position and limit of the buffer.
+			 */
+			private void receive(ByteBuffer frame) {
+				int pos = frame.position();
+				int first = frame.get(pos) & 0xFF;
+				int nibble = first >> 4;
+				int tokenLength = first & 0x0F;
+				int extended = nibble == LENGTH_8BIT ? 1 : nibble == LENGTH_16BIT ? 2 : nibble == LENGTH_32BIT ? 4 : 0;
+				int code = frame.get(pos + 1 + extended) & 0xFF;
+				int tokenStart = pos + 2 + extended;
+				if (tokenLength > 8) {
+					abort("invalid token length");
+					return;
+				}
+
+				if (code >= CODE_SIGNAL_MIN) {
+					signal(code, frame, tokenStart, tokenLength);
+					return;
+				}
+				if (code == 0) {
+					/* empty messages are ignored, see rfc8323 - 3.4 */
+					return;
+				}
+
+				/*
+				 * the message is rebuilt with a UDP header, so the message classes parse
+				 * it. Requests are marked confirmable, so they are answered with a
+				 * piggybacked response.
+				 */
+				int bodyLength = frame.limit() - tokenStart;
+				byte[] udp = new byte[4 + bodyLength];
+				CoapPacketType type = code < 32 ? CoapPacketType.CON : CoapPacketType.ACK;
+				udp[0] = (byte) (0x40 | (type.getValue() << 4) | tokenLength);
+				udp[1] = (byte) code;
+				ByteBuffer body = frame.duplicate();
+				body.position(tokenStart);
+				body.get(udp, 4, bodyLength);
+
+				AbstractCoapMessage msg;
+				try {
+					msg = (AbstractCoapMessage) AbstractCoapMessage.parseMessage(ByteBuffer.wrap(udp));
+				} catch (Exception e) {
+					abort("invalid message");
+					return;
+				}
+				dispatch(msg);
+			}
+
+			private void dispatch(final CoapMessage msg) {
+				this.lastUse = this.lastActivity;
+				ChannelKey channelKey = new ChannelKey(this.remote.getAddress(), this.remote.getPort());
+				if (msg.isRequest()) {
+					CoapServerChannel channel = TcpCoapSocketHandler.this.serverChannels.get(channelKey);
+					if (channel == null) {
+						channel = TcpCoapSocketHandler.this.channelManager.createServerChannel(
+								TcpCoapSocketHandler.this, msg, this.remote.getAddress(), this.remote.getPort());
+						if (channel == null) {
+							/* there is no RST on TCP, the request is rejected by a response */
+							BasicCoapServerChannel fakeChannel = new BasicCoapServerChannel(TcpCoapSocketHandler.this,
+									null, this.remote.getAddress(), this.remote.getPort());
+							IoThread.this.send(fakeChannel.createResponse(msg, CoapResponseCode.Service_Unavailable_503));
+							return;
+						}
+						noBlockwise(channel);
+						TcpCoapSocketHandler.this.serverChannels.put(channelKey, channel);
+					}
+					deliver(channel, msg);
+				} else if (msg.isResponse()) {
+					CoapClientChannel channel = TcpCoapSocketHandler.this.clientChannels.get(channelKey);
+					if (channel != null) {
+						deliver(channel, msg);
+					}
+				}
+			}
+
+			private void deliver(final CoapChannel channel, final CoapMessage msg) {
+				msg.setChannel(channel);
+				runHandler(this, new Runnable() {
+					@Override
+					public void run() {
+						channel.handleMessage(msg);
+					}
+				});
+			}
+
+			/**
+			 * Handles a signaling message, see rfc8323 - 5.
+			 */
+			private void signal(int code, ByteBuffer frame, int tokenStart, int tokenLength) {
+				switch (code) {
+				case CODE_CSM:
+					long maxMessageSize;
+					try {
+						maxMessageSize = getUintOption(frame, tokenStart + tokenLength, OPTION_MAX_MESSAGE_SIZE);
+					} catch (IllegalArgumentException e) {
+						abort("invalid option");
+						return;
+					}
+					if (maxMessageSize >= 0) {
+						this.peerMaxMessageSize = (int) Math.min(Integer.MAX_VALUE, maxMessageSize);
+					}
+					this.csmReceived = true;
+					CoapMessage msg = this.awaitingCsm.poll();
+					while (msg != null && !this.closed && !this.released) {
+						send(msg, encode(msg));
+						msg = this.awaitingCsm.poll();
+					}
+					break;
+				case CODE_PING:
+					byte[] token = new byte[tokenLength];
+					ByteBuffer view = frame.duplicate();
+					view.position(tokenStart);
+					view.get(token);
+					queue(encodeSignal(CODE_PONG, token, 0, null));
+					break;
+				case CODE_PONG:
+					/* any received data shows the connection is alive */
+					break;
+				case CODE_RELEASE:
+				case CODE_ABORT:
+					/* the remote endpoint closes the connection */
+					close(false, true);
+					break;
+				default:
+					/* unknown signals are ignored */
+				}
+			}
+
+			/**
+			 * @return The value of an unsigned integer option of a signaling message,
+			 *         -1 if the option is missing.
+			 * @throws IllegalArgumentException
+			 *             if the options are malformed
+			 */
+			private long getUintOption(ByteBuffer frame, int offset, int number) {
+				int optionNumber = 0;
+				int pos = offset;
+				int end = frame.limit();
+				while (pos < end) {
+					int header = frame.get(pos++) & 0xFF;
+					if (header == 0xFF) {
+						/* payload marker */
+						break;
+					}
+					int delta = header >> 4;
+					int length = header & 0x0F;
+					if (delta == 15 || length == 15) {
+						/* reserved, see rfc7252 - 3.1 */
+						throw new IllegalArgumentException("reserved option nibble");
+					}
+					if (delta == 13) {
+						checkRemaining(pos, 1, end);
+						delta = (frame.get(pos++) & 0xFF) + 13;
+					} else if (delta == 14) {
+						checkRemaining(pos, 2, end);
+						delta = (frame.getShort(pos) & 0xFFFF) + 269;
+						pos += 2;
+					}
+					if (length == 13) {
+						checkRemaining(pos, 1, end);
+						length = (frame.get(pos++) & 0xFF) + 13;
+					} else if (length == 14) {
+						checkRemaining(pos, 2, end);
+						length = (frame.getShort(pos) & 0xFFFF) + 269;
+						pos += 2;
+					}
+					optionNumber += delta;
+					checkRemaining(pos, length, end);
+					if (optionNumber == number && length <= 4) {
+						long value = 0;
+						for (int i = 0; i < length; i++) {
+							value = (value << 8) | (frame.get(pos + i) & 0xFF);
+						}
+						return value;
+					}
+					pos += length;
+				}
+				return -1;
+			}
+
+			private void checkRemaining(int pos, int length, int end) {
+				if (pos + length > end) {
+					throw new IllegalArgumentException("truncated option");
+				}
+			}
+
+			/**
+			 * Checks the connection for a timeout.
+			 *
+			 * @return Milliseconds until the connection has to be checked again.
+			 */
+			long check(long now) {
+				if (this.released) {
+					if (now >= this.releaseDeadline) {
+						/* the remote endpoint does not read, the last frames are dropped */
+						close(false, false);
+						return POLLING_INTERVALL;
+					}
+					return this.releaseDeadline - now;
+				}
+				if (!this.connected) {
+					long connectTime = now - this.opened;
+					if (connectTime >= CoapConstants.TCP_CONNECT_TIMEOUT_MS) {
+						close(true, false);
+						return POLLING_INTERVALL;
+					}
+					return CoapConstants.TCP_CONNECT_TIMEOUT_MS - connectTime;
+				}
+				long unused = now - this.lastUse;
+				if (this.client && unused >= CoapConstants.TCP_IDLE_TIMEOUT_MS && !TcpCoapSocketHandler.this
+						.clientChannels.containsKey(new ChannelKey(this.remote.getAddress(), this.remote.getPort()))) {
+					/* no channel uses the connection anymore, pings of the remote do not count */
+					release();
+					return POLLING_INTERVALL;
+				}
+				long next = this.client ? Math.max(CoapConstants.TCP_IDLE_TIMEOUT_MS - unused, 1) : POLLING_INTERVALL;
+
+				long idle = now - this.lastActivity;
+				if (idle < CoapConstants.TCP_IDLE_TIMEOUT_MS) {
+					return Math.min(next, CoapConstants.TCP_IDLE_TIMEOUT_MS - idle);
+				}
+				if (this.pingSent) {
+					/* no answer to the ping */
+					close(true, false);
+					return POLLING_INTERVALL;
+				}
+				this.pingSent = true;
+				this.lastActivity = now;
+				queue(encodeSignal(CODE_PING, new byte[0], 0, null));
+				return Math.min(next, CoapConstants.TCP_IDLE_TIMEOUT_MS);
+			}
+
+			/**
+			 * Closes the connection gracefully, see rfc8323 - 5.5.
+			 */
+			void release() {
+				if (this.connected) {
+					queue(encodeSignal(CODE_RELEASE, new byte[0], 0, null));
+				}
+				closeAfterWrite();
+			}
+
+			/**
+			 * Closes the connection after a protocol error, see rfc8323 - 5.6.
+			 */
+			private void abort(String diagnostic) {
+				byte[] payload = diagnostic.getBytes();
+				ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_LENGTH + 1 + payload.length);
+				int start = putHeader(frame, MAX_HEADER_LENGTH, 1 + payload.length, 0, CODE_ABORT);
+				frame.position(MAX_HEADER_LENGTH);
+				frame.put((byte) 0xFF);
+				frame.put(payload);
+				frame.flip();
+				frame.position(start);
+				queue(frame);
+				closeAfterWrite();
+			}
+
+			/**
+			 * Closes the connection once the queued frames are written, at the latest
+			 * after TCP_RELEASE_TIMEOUT_MS. The connection is detached from its
+			 * channels right away, a later message to the remote endpoint opens a
+			 * new connection.
+			 */
+			private void closeAfterWrite() {
+				if (this.closed || this.released) {
+					return;
+				}
+				if (!this.connected || this.writeQueue.isEmpty()) {
+					close(false, false);
+					return;
+				}
+				this.released = true;
+				this.releaseDeadline = System.currentTimeMillis() + CoapConstants.TCP_RELEASE_TIMEOUT_MS;
+				this.key.interestOps(SelectionKey.OP_WRITE);
+				IoThread.this.connections.remove(this.remote, this);
+				IoThread.this.releasing.add(this);
+				detach(false, false);
+			}
+
+			/**
+			 * Closes the socket. The pending requests sent on the connection fail,
+			 * a later request opens a new connection.
+			 */
+			void close(boolean notReachable, boolean resetByServer) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				this.key.cancel();
+				try {
+					this.socket.close();
+				} catch (IOException e) {
+				}
+				if (!this.client) {
+					IoThread.this.acceptedConnections--;
+				}
+				if (this.released) {
+					/* already detached from its channels */
+					IoThread.this.releasing.remove(this);
+					TcpCoapSocketHandler.this.connectionCount = IoThread.this.connections.size()
+							+ IoThread.this.releasing.size();
+					return;
+				}
+				detach(notReachable, resetByServer);
+			}
+
+			/**
+			 * Removes the connection and its channels. The pending requests sent on
+			 * the connection fail.
+			 */
+			private void detach(boolean notReachable, boolean resetByServer) {
+				IoThread.this.connections.remove(this.remote, this);
+				TcpCoapSocketHandler.this.connectionCount = IoThread.this.connections.size()
+						+ IoThread.this.releasing.size();
+
+				ChannelKey channelKey = new ChannelKey(this.remote.getAddress(), this.remote.getPort());
+				TcpCoapSocketHandler.this.serverChannels.remove(channelKey);
+				final CoapClientChannel channel = TcpCoapSocketHandler.this.clientChannels.get(channelKey);
+				if (channel instanceof BasicCoapClientChannel) {
+					final boolean unreachable = notReachable;
+					final boolean reset = resetByServer;
+					runHandler(this, new Runnable() {
+						@Override
+						public void run() {
+							((BasicCoapClientChannel) channel).failExchanges(unreachable, reset);
+						}
+					});
+				}
+			}
+		}
+	}
+}
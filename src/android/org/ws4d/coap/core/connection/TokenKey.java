@@ -0,0 +1,53 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.util.Arrays;
+
+/**
+ * Identifies an exchange by the token of its request. A missing token is
+ * treated like an empty one.
+ */
+public class TokenKey {
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte[] token;
+
+	public TokenKey(byte[] token) {
+		this.token = (token == null) ? EMPTY : token;
+	}
+
+	public byte[] getToken() {
+		return this.token;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.token);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TokenKey other = (TokenKey) obj;
+		return Arrays.equals(this.token, other.token);
+	}
+}
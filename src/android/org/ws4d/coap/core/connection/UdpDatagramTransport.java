@@ -0,0 +1,260 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.api.DatagramTransport;
+import org.ws4d.coap.core.connection.api.DatagramTransportFactory;
+
+/**
+ * A non-blocking UDP socket. One channel receives unicast and multicast
+ * traffic, there is no need for a second (blocking) multicast socket bound to
+ * the same port.
+ */
+public class UdpDatagramTransport implements DatagramTransport {
+
+	/** opens UDP sockets, the default transport of the channel manager */
+	public static final DatagramTransportFactory FACTORY = new DatagramTransportFactory() {
+		@Override
+		public DatagramTransport open(int port, boolean reusePort, boolean joinMulticast, NetworkConfig config)
+				throws IOException {
+			return new UdpDatagramTransport(port, reusePort, joinMulticast, config);
+		}
+
+		@Override
+		public boolean isReusePortSupported() {
+			return UdpDatagramTransport.isReusePortSupported();
+		}
+	};
+
+	private DatagramChannel dgramChannel = null;
+	private int localPort;
+
+	/** the receive thread waits here for OP_READ */
+	private Selector selector = null;
+
+	/**
+	 * multicast group memberships of the datagram channel (CoAP all nodes
+	 * addresses)
+	 */
+	private List<MembershipKey> memberships = new ArrayList<MembershipKey>();
+
+	/**
+	 * @param port
+	 *            - the local port, 0 for an ephemeral port
+	 * @param reusePort
+	 *            - true to bind the port with SO_REUSEPORT
+	 * @param joinMulticast
+	 *            - true to join the CoAP all nodes multicast groups. Only one
+	 *            socket of a shared port should join the groups.
+	 * @param config
+	 *            - the network config with the socket buffer sizes
+	 * @throws IOException
+	 *             if the port can not be bound or SO_REUSEPORT is not supported
+	 */
+	public UdpDatagramTransport(int port, boolean reusePort, boolean joinMulticast, NetworkConfig config)
+			throws IOException {
+		Enumeration<NetworkInterface> Interfaces = NetworkInterface.getNetworkInterfaces();
+		NetworkInterface NetworkAdapter = null;
+
+		while (Interfaces.hasMoreElements()) {
+			NetworkAdapter = Interfaces.nextElement();
+			if (NetworkAdapter.isUp() && !NetworkAdapter.isLoopback()) {
+				break;
+			}
+		}
+
+		this.dgramChannel = DatagramChannel.open();
+		try {
+			this.dgramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			if (reusePort) {
+				SocketOption<Boolean> option = getReusePortOption();
+				if (option == null || !this.dgramChannel.supportedOptions().contains(option)) {
+					throw new IOException("SO_REUSEPORT is not supported");
+				}
+				this.dgramChannel.setOption(option, true);
+			}
+			applySocketBuffers(config);
+			this.dgramChannel.bind(new InetSocketAddress(port));
+
+			this.localPort = this.dgramChannel.socket().getLocalPort();
+			this.dgramChannel.configureBlocking(false);
+			this.selector = Selector.open();
+			this.dgramChannel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		if (NetworkAdapter != null) {
+			try {
+				this.dgramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkAdapter);
+			} catch (Exception e1) {
+			}
+		}
+
+		if (NetworkAdapter != null && joinMulticast) {
+			joinGroup(CoapConstants.COAP_ALL_NODES_IPV6_LL_MC_ADDR, NetworkAdapter);
+			joinGroup(CoapConstants.COAP_ALL_NODES_IPV6_SL_MC_ADDR, NetworkAdapter);
+			joinGroup(CoapConstants.COAP_ALL_NODES_IPV4_MC_ADDR, NetworkAdapter);
+		}
+	}
+
+	/**
+	 * Sets the socket buffer sizes of the network config, 0 keeps the system
+	 * default.
+	 */
+	private void applySocketBuffers(NetworkConfig config) throws IOException {
+		if (config.getReceiveBufferSize() > 0) {
+			this.dgramChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+		}
+		if (config.getSendBufferSize() > 0) {
+			this.dgramChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+		}
+	}
+
+	@Override
+	public void applyNetworkConfig(NetworkConfig config) {
+		try {
+			applySocketBuffers(config);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * SO_REUSEPORT is looked up at runtime, it is available since Java 9 but not
+	 * on Android.
+	 * 
+	 * @return The SO_REUSEPORT socket option or null if it is not available.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+			return (SocketOption<Boolean>) field.get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return True if datagram channels can share a port using SO_REUSEPORT.
+	 */
+	public static boolean isReusePortSupported() {
+		SocketOption<Boolean> option = getReusePortOption();
+		if (option == null) {
+			return false;
+		}
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			return channel.supportedOptions().contains(option);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins a multicast group on the datagram channel. Groups that are not
+	 * supported by the interface (e.g. IPv6 on an IPv4 only network) are
+	 * silently skipped.
+	 * 
+	 * @param group
+	 *            - the multicast group address
+	 * @param networkInterface
+	 *            - the interface to join the group on
+	 */
+	private void joinGroup(String group, NetworkInterface networkInterface) {
+		try {
+			this.memberships.add(this.dgramChannel.join(InetAddress.getByName(group), networkInterface));
+		} catch (Exception e1) {
+		}
+	}
+
+	@Override
+	public int getLocalPort() {
+		return this.localPort;
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+		return (InetSocketAddress) this.dgramChannel.receive(buffer);
+	}
+
+	@Override
+	public void awaitDatagrams() throws IOException {
+		this.selector.select(0);
+		this.selector.selectedKeys().clear();
+	}
+
+	@Override
+	public void wakeup() {
+		this.selector.wakeup();
+	}
+
+	@Override
+	public int send(ByteBuffer datagram, InetSocketAddress remote) throws IOException {
+		return this.dgramChannel.send(datagram, remote);
+	}
+
+	@Override
+	public SelectionKey registerWritable(Selector selector) throws IOException {
+		return this.dgramChannel.register(selector, 0);
+	}
+
+	@Override
+	public void close() {
+		for (MembershipKey membership : this.memberships) {
+			membership.drop();
+		}
+		this.memberships.clear();
+
+		if (this.selector != null) {
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+			}
+		}
+		try {
+			this.dgramChannel.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -31,6 +31,15 @@ public interface CoapChannel {
 	 */
 	public void sendMessage(CoapMessage msg);
 
+	/**
+	 * Backpressure signal of the socket handler this channel sends over.
+	 * 
+	 * @return False while the outbound queue is full. Depending on the overload
+	 *         policy, sendMessage() then blocks, drops NON messages or throws an
+	 *         IllegalStateException.
+	 */
+	public boolean isWritable();
+
 	/**
 	 * 
 	 */
@@ -15,10 +15,14 @@
 
 package org.ws4d.coap.core.connection.api;
 
+import java.io.IOException;
 import java.net.InetAddress;
 
+import javax.net.ssl.SSLContext;
+
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.CoapServer;
+import org.ws4d.coap.core.NetworkConfig;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 
 /**
@@ -52,9 +56,53 @@ public interface CoapChannelManager {
 	 * 
 	 * @param serverListener
 	 * @param localPort
+	 * @throws IllegalStateException
+	 *             if the port is already used or can not be opened
 	 */
 	public void createServerListener(CoapServer serverListener, int localPort);
 
+	/**
+	 * creates a server socket listener for incoming connections that is served
+	 * by several socket handlers sharing the same port (SO_REUSEPORT). Each
+	 * socket handler has its own threads, channels and retransmission state.
+	 * Falls back to a single socket handler if the port can not be shared.
+	 * 
+	 * @param serverListener
+	 * @param localPort
+	 * @param shards
+	 *            - number of socket handlers, e.g. the number of cores
+	 * @throws IllegalStateException
+	 *             if the port is already used or can not be opened
+	 */
+	public void createServerListener(CoapServer serverListener, int localPort, int shards);
+
+	/**
+	 * Creates a server listener for coaps requests, see rfc7252 - 9.1. The
+	 * DTLS context has to provide the server certificate.
+	 * 
+	 * @param serverListener
+	 *            - the server
+	 * @param localPort
+	 *            - the local port, usually COAPS_DEFAULT_PORT
+	 * @throws IllegalStateException
+	 *             if no DTLS context was set or the port is already used or
+	 *             can not be opened
+	 */
+	public void createSecureServerListener(CoapServer serverListener, int localPort);
+
+	/**
+	 * Creates a server listener for CoAP over TCP, see rfc8323. A TCP listener
+	 * may use the same port number as a UDP listener.
+	 * 
+	 * @param serverListener
+	 *            - the server
+	 * @param localPort
+	 *            - the local port, usually COAP_DEFAULT_PORT
+	 * @throws IllegalStateException
+	 *             if the port is already used or can not be opened
+	 */
+	public void createTcpServerListener(CoapServer serverListener, int localPort);
+
 	/**
 	 * removes a server socket listener for incoming connections
 	 * 
@@ -73,6 +121,117 @@ public interface CoapChannelManager {
 	 */
 	public CoapClientChannel connect(CoapClient client, InetAddress addr, int port);
 
+	/**
+	 * Connects to a coaps server, the messages are secured by DTLS. Without a
+	 * DTLS context the certificate of the server is checked against the
+	 * default trust store.<br>
+	 * The identity of the server is not verified: any trusted certificate is
+	 * accepted, whichever host it was issued for. Use
+	 * {@link #connectSecure(CoapClient, String, InetAddress, int)} to verify
+	 * it.
+	 * 
+	 * @param client
+	 * @param addr
+	 * @param port
+	 * @return The channel or null if it can not be created, e.g. the runtime
+	 *         does not support DTLS.
+	 */
+	public CoapClientChannel connectSecure(CoapClient client, InetAddress addr, int port);
+
+	/**
+	 * Connects to a coaps server like
+	 * {@link #connectSecure(CoapClient, InetAddress, int)} and verifies that
+	 * the certificate of the server was issued for the host name, see rfc7252
+	 * - 9.1.3.3. The handshake fails otherwise.
+	 * 
+	 * @param client
+	 * @param hostName
+	 *            - the host of the URI, the name or IP address the server
+	 *            certificate must match
+	 * @param addr
+	 *            - the address the host name resolved to
+	 * @param port
+	 * @return The channel or null if it can not be created, e.g. the runtime
+	 *         does not support DTLS.
+	 */
+	public CoapClientChannel connectSecure(CoapClient client, String hostName, InetAddress addr, int port);
+
+	/**
+	 * Connects to a server using CoAP over TCP, see rfc8323. All channels to
+	 * the server share one connection, large payloads are sent without
+	 * blockwise transfer.
+	 * 
+	 * @param client
+	 * @param addr
+	 * @param port
+	 * @return The channel or null if it can not be created.
+	 */
+	public CoapClientChannel connectTcp(CoapClient client, InetAddress addr, int port);
+
+	/**
+	 * Sets the SSLContext (protocol DTLSv1.2) securing coaps connections. It
+	 * provides the certificates and caches the sessions, so reconnecting to a
+	 * server resumes the session, also after the channel manager was
+	 * restarted. Existing client connections are closed, secure server
+	 * listeners use the new context once they are restarted.
+	 * 
+	 * @param context
+	 */
+	public void setDtlsContext(SSLContext context);
+
+	/**
+	 * @return The SSLContext securing coaps connections, null if none was set
+	 *         or created yet.
+	 */
+	public SSLContext getDtlsContext();
+
+	/**
+	 * Opens the client socket and the sockets of all server listeners again
+	 * after the channel manager was stopped. Does nothing if it is running.
+	 * 
+	 * @throws IOException
+	 *             if a socket can not be opened, the channel manager stays
+	 *             stopped
+	 */
+	public void start() throws IOException;
+
+	/**
+	 * Closes all sockets and stops their threads. Pending requests fail and no
+	 * channels can be connected until the channel manager is started again.
+	 * The server listeners stay registered.
+	 */
+	public void stop();
+
+	/**
+	 * @return false, while the channel manager is stopped.
+	 */
+	public boolean isRunning();
+
+	/**
+	 * Backpressure signal of the client socket.
+	 * 
+	 * @return False while the outbound queue of the client socket is full.
+	 */
+	public boolean isWritable();
+
+	/**
+	 * The network config is shared by all socket handlers of the channel
+	 * manager.
+	 * 
+	 * @return The network config of the channel manager.
+	 */
+	public NetworkConfig getNetworkConfig();
+
+	/**
+	 * Takes over the values of a network config and applies them to all socket
+	 * handlers. Socket buffer and queue sizes are applied immediately,
+	 * transmission parameters are used for the next messages. Thread counts
+	 * and the datagram size are used by socket handlers created afterwards.
+	 * 
+	 * @param config
+	 */
+	public void setNetworkConfig(NetworkConfig config);
+
 	/**
 	 * This function is for testing purposes only, to have a determined message
 	 * id
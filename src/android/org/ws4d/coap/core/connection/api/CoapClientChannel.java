@@ -64,4 +64,23 @@ public interface CoapClientChannel extends CoapChannel {
 	 * @return
 	 */
 	public byte[] getLastToken();
+
+	/**
+	 * Called by the socket handler if a request of the channel was not
+	 * confirmed or was reset by the server.
+	 * 
+	 * @param token
+	 *            - the token of the failed request
+	 * @param notReachable
+	 * @param resetByServer
+	 */
+	public void lostExchange(byte[] token, boolean notReachable, boolean resetByServer);
+
+	/**
+	 * Requests sent on a channel are matched with their responses by the token.
+	 * Several requests may be sent at once, each should have its own token.
+	 * 
+	 * @return The number of requests waiting for their response.
+	 */
+	public int getExchangeCount();
 }
@@ -18,6 +18,7 @@ package org.ws4d.coap.core.connection.api;
 import java.net.InetAddress;
 
 import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.NetworkConfig;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 
 /**
@@ -35,7 +36,8 @@ public interface CoapSocketHandler {
 	public CoapClientChannel connect(CoapClient client, InetAddress remoteAddress, int remotePort);
 
 	/**
-	 * 
+	 * Stops the threads of the socket handler, waits for them and releases the
+	 * socket. Pending requests fail.
 	 */
 	public void close();
 
@@ -45,12 +47,42 @@ public interface CoapSocketHandler {
 	 */
 	public void sendMessage(CoapMessage msg);
 
+	/**
+	 * Backpressure signal of the outbound queue.
+	 * 
+	 * @return False while the outbound queue is full. Messages sent meanwhile
+	 *         are handled according to the overload policy.
+	 */
+	public boolean isWritable();
+
 	/**
 	 * 
 	 * @return
 	 */
 	public CoapChannelManager getChannelManager();
 
+	/**
+	 * 
+	 * @return The network config used by the socket handler.
+	 */
+	public NetworkConfig getNetworkConfig();
+
+	/**
+	 * Applies the socket buffer and queue sizes of the network config after it
+	 * was changed.
+	 */
+	public void applyNetworkConfig();
+
+	/**
+	 * Creates a new message ID for a CoAP message to a remote endpoint. Each
+	 * remote endpoint has its own message ID space.
+	 * 
+	 * @param remoteAddress
+	 * @param remotePort
+	 * @return Message ID
+	 */
+	public int getNewMessageID(InetAddress remoteAddress, int remotePort);
+
 	/**
 	 * 
 	 * @return
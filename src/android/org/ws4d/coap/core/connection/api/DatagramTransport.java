@@ -0,0 +1,93 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.ws4d.coap.core.NetworkConfig;
+
+/**
+ * The datagram transport below a socket handler, e.g. a UDP socket or an
+ * in-memory network. Datagrams are received by the receive thread of the
+ * socket handler only (receive, awaitDatagrams). Send, wakeup and close may
+ * be called by any thread, e.g. DTLS handshake records are sent by the
+ * dispatch threads.
+ */
+public interface DatagramTransport {
+
+	/**
+	 * @return The local port the transport is bound to.
+	 */
+	public int getLocalPort();
+
+	/**
+	 * Reads a datagram without blocking. A datagram larger than the remaining
+	 * space of the buffer is truncated.
+	 * 
+	 * @param buffer
+	 *            - the buffer the datagram is written to
+	 * @return The sender of the datagram or null if no datagram is waiting.
+	 * @throws IOException
+	 *             if the transport is closed
+	 */
+	public InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Blocks until datagrams may be waiting, wakeup() was called or the
+	 * transport was closed.
+	 */
+	public void awaitDatagrams() throws IOException;
+
+	/**
+	 * Wakes up the thread waiting in awaitDatagrams().
+	 */
+	public void wakeup();
+
+	/**
+	 * Sends a datagram without blocking. Datagrams to unknown remotes are lost
+	 * silently like UDP datagrams.
+	 * 
+	 * @param datagram
+	 *            - the datagram, its position is advanced if it was sent
+	 * @param remote
+	 *            - the receiver, may be a multicast address
+	 * @return The number of bytes sent, 0 if the transport can not accept the
+	 *         datagram now.
+	 */
+	public int send(ByteBuffer datagram, InetSocketAddress remote) throws IOException;
+
+	/**
+	 * Registers the transport with a selector, OP_WRITE is selected by the
+	 * worker thread while the transport does not accept datagrams.
+	 * 
+	 * @return The selection key or null if send() never returns 0.
+	 */
+	public SelectionKey registerWritable(Selector selector) throws IOException;
+
+	/**
+	 * Applies the buffer sizes of a changed network config.
+	 */
+	public void applyNetworkConfig(NetworkConfig config);
+
+	/**
+	 * Leaves the multicast groups and releases the transport.
+	 */
+	public void close();
+}
@@ -0,0 +1,48 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection.api;
+
+import java.io.IOException;
+
+import org.ws4d.coap.core.NetworkConfig;
+
+/**
+ * Opens the datagram transports of the socket handlers of a channel manager.
+ */
+public interface DatagramTransportFactory {
+
+	/**
+	 * @param port
+	 *            - the local port, 0 for an ephemeral port
+	 * @param reusePort
+	 *            - true to share the port with other transports
+	 * @param joinMulticast
+	 *            - true to receive datagrams sent to the CoAP all nodes
+	 *            multicast groups
+	 * @param config
+	 *            - the network config, e.g. for the buffer sizes
+	 * @return The transport bound to the port.
+	 * @throws IOException
+	 *             if the port can not be bound or can not be shared
+	 */
+	public DatagramTransport open(int port, boolean reusePort, boolean joinMulticast, NetworkConfig config)
+			throws IOException;
+
+	/**
+	 * @return True if transports of this factory can share a port.
+	 */
+	public boolean isReusePortSupported();
+}
@@ -34,6 +34,9 @@ public enum CoapHeaderOptionType {
 	// draft-ietf-core-block-20 - 4. The Size2 and Size1 Options
 	Size2(28,false,false,true,false);
 	
+	/* values() creates a new array on every call */
+	private static final CoapHeaderOptionType[] VALUES = values();
+
 	private int number;
 	private boolean critical;
 	private boolean unsafe;
@@ -53,7 +56,7 @@ public enum CoapHeaderOptionType {
 	 * @return the corresponding CoAP header option enum element
 	 */
 	public static CoapHeaderOptionType parse(int optionTypeValue) {
-		for(CoapHeaderOptionType t : CoapHeaderOptionType.values()){
+		for(CoapHeaderOptionType t : VALUES){
 			if(t.getValue() == optionTypeValue)	return t;
 		}
 		return null;
@@ -24,6 +24,9 @@ package org.ws4d.coap.core.enumerations;
 public enum CoapRequestCode {
 	GET(1, "get"), POST(2, "post"), PUT(3, "put"), DELETE(4, "delete");
 
+	/* values() creates a new array on every call */
+	private static final CoapRequestCode[] VALUES = values();
+
 	private int code;
 	private String method;
 
@@ -49,7 +52,7 @@ public enum CoapRequestCode {
 	 * @throws IllegalArgumentException, if codeValue is out of range.
 	 */
 	public static CoapRequestCode parse(int codeValue) {
-		for (CoapRequestCode t : CoapRequestCode.values()) {
+		for (CoapRequestCode t : VALUES) {
 			if (t.getValue() == codeValue)
 				return t;
 		}
@@ -62,7 +65,7 @@ public enum CoapRequestCode {
 	 * @throws IllegalArgumentException, if method is out of range.
 	 */
 	public static CoapRequestCode parse(String method) {
-		for (CoapRequestCode t : CoapRequestCode.values()) {
+		for (CoapRequestCode t : VALUES) {
 			if (t.getMethod().equals(method))
 				return t;
 		}
@@ -16,9 +16,7 @@
 package org.ws4d.coap.core.messages;
 
 import java.nio.ByteBuffer;
-import java.util.Random;
 
-import org.ws4d.coap.core.CoapConstants;
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
@@ -35,6 +33,9 @@ import android.util.Log;
 public abstract class AbstractCoapMessage implements CoapMessage {
 	protected static final int HEADER_LENGTH = 4;
 
+	/* shared by all deserialized messages without a token */
+	private static final byte[] EMPTY_TOKEN = new byte[0];
+
 	/* Header */
 	private int version;
 	private CoapPacketType packetType;
@@ -51,13 +52,16 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	private byte[] payload = null;
 	private int payloadLength = 0;
 
+	/*
+	 * A deserialized message keeps a view of the received frame. Token, option
+	 * values and payload are copied out of it only when they are requested.
+	 */
+	private ByteBuffer frame = null;
+	private int payloadOffset;
+
 	/* corresponding channel */
 	private CoapChannel channel = null;
 
-	/* Retransmission State */
-	private int timeout = 0;
-	private int retransmissionCounter = 0;
-
 	public AbstractCoapMessage() {
 		// intended to be empty
 	}
@@ -77,36 +81,100 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	protected void deserialize(byte[] bytes, int length, int offset) {
+		deserialize(ByteBuffer.wrap(bytes, offset, length));
+		/* the caller owns the array, do not keep a reference to it */
+		detach();
+	}
+
+	/**
+	 * Deserializes the message from the remaining bytes of the buffer without
+	 * copying token, option values or payload. The message refers to the
+	 * buffer content until {@link #detach()} is called.
+	 * 
+	 * @param buffer
+	 *            - the buffer holding exactly one message between position and
+	 *            limit
+	 */
+	protected void deserialize(ByteBuffer buffer) {
+		ByteBuffer bytes = buffer.slice();
+		int length = bytes.limit();
+
 		/* check length to avoid buffer overflow exceptions */
+		if (length < HEADER_LENGTH) {
+			throw new IllegalArgumentException("Invalid CoAP Message (too short)");
+		}
 		this.version = 1;
-		this.packetType = (CoapPacketType.parse((bytes[offset + 0] & 0x30) >> 4));
-		this.tokenLength = bytes[offset + 0] & 0x0F;
+		this.packetType = (CoapPacketType.parse((bytes.get(0) & 0x30) >> 4));
+		this.tokenLength = bytes.get(0) & 0x0F;
 
-		this.messageCodeValue = (bytes[offset + 1] & 0xFF);
-		this.messageId = ((bytes[offset + 2] << 8) & 0xFF00) + (bytes[offset + 3] & 0xFF);
+		this.messageCodeValue = (bytes.get(1) & 0xFF);
+		this.messageId = ((bytes.get(2) << 8) & 0xFF00) + (bytes.get(3) & 0xFF);
 
-		this.token = new byte[this.tokenLength];
-		for (int i = 0; i < this.tokenLength; i++) {
-			this.token[i] = bytes[offset + HEADER_LENGTH + i];
+		if (this.tokenLength > 8 || HEADER_LENGTH + this.tokenLength > length) {
+			throw new IllegalArgumentException("Invalid CoAP Message (token length)");
 		}
+		this.frame = bytes;
+		this.token = this.tokenLength == 0 ? EMPTY_TOKEN : null;
 
-		/* serialize options */
-		this.options = new CoapHeaderOptions(bytes, offset + HEADER_LENGTH + this.tokenLength, length);
+		/* parse options */
+		this.options = new CoapHeaderOptions(bytes, HEADER_LENGTH + this.tokenLength, length);
 		/* get and check payload length */
+		this.payload = null;
 		this.payloadLength = length - HEADER_LENGTH - this.options.getDeserializedLength() - this.tokenLength;
 		if (this.payloadLength < 0) {
 			throw new IllegalStateException("Invaldid CoAP Message (payload length negative)");
 		} else if (this.payloadLength > 0) {
-			/* copy payload */
+			/* skip payload marker */
 			this.payloadLength--;
-			int payloadOffset = offset + HEADER_LENGTH + this.options.getDeserializedLength() + this.tokenLength + 1;
-			this.payload = new byte[this.payloadLength];
-			for (int i = 0; i < this.payloadLength; i++) {
-				this.payload[i] = bytes[i + payloadOffset];
-			}
+			this.payloadOffset = HEADER_LENGTH + this.options.getDeserializedLength() + this.tokenLength + 1;
 		}
 	}
 
+	/**
+	 * Copies everything that still refers to the buffer the message was parsed
+	 * from into memory owned by the message. Has to be called before that
+	 * buffer is reused if the message is kept any longer. The remaining data is
+	 * copied with a single bulk copy of the frame.
+	 */
+	public void detach() {
+		if (this.frame == null) {
+			return;
+		}
+		boolean tokenBuffered = this.token == null && this.tokenLength > 0;
+		boolean payloadBuffered = this.payload == null && this.payloadLength > 0;
+		if (tokenBuffered || payloadBuffered || this.options.isBuffered()) {
+			ByteBuffer copy = ByteBuffer.wrap(copyBytes(this.frame, 0, this.frame.limit()));
+			this.options.rebase(copy);
+			this.frame = copy;
+		} else {
+			this.frame = null;
+		}
+	}
+
+	/**
+	 * Copies a range of a buffer into a new array without modifying the
+	 * position of the buffer.
+	 * 
+	 * @param buffer
+	 *            - the source buffer
+	 * @param offset
+	 *            - absolute index of the first byte
+	 * @param length
+	 *            - number of bytes to copy
+	 * @return The copied bytes.
+	 */
+	static byte[] copyBytes(ByteBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length];
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, data, 0, length);
+		} else {
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset);
+			view.get(data);
+		}
+		return data;
+	}
+
 	public static CoapMessage parseMessage(byte[] bytes, int length) {
 		return parseMessage(bytes, length, 0);
 	}
@@ -128,6 +196,35 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 		}
 	}
 
+	/**
+	 * Parses the message between position and limit of the buffer without
+	 * copying its content. The returned message refers to the buffer until
+	 * {@link #detach()} is called on it.
+	 * 
+	 * @param buffer
+	 *            - a heap or direct buffer holding one message
+	 * @return The parsed message.
+	 */
+	public static CoapMessage parseMessage(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_LENGTH) {
+			throw new IllegalArgumentException("Invalid CoAP Message (too short)");
+		}
+		/*
+		 * we "peek" the header to determine the kind of message
+		 */
+		int messageCodeValue = (buffer.get(buffer.position() + 1) & 0xFF);
+
+		if (messageCodeValue == 0) {
+			return new CoapEmptyMessage(buffer);
+		} else if (messageCodeValue >= 0 && messageCodeValue <= 31) {
+			return new BasicCoapRequest(buffer);
+		} else if (messageCodeValue >= 64 && messageCodeValue <= 191) {
+			return new BasicCoapResponse(buffer);
+		} else {
+			throw new IllegalArgumentException("unknown CoAP message");
+		}
+	}
+
 	public int getVersion() {
 		return this.version;
 	}
@@ -151,6 +248,9 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	public byte[] getPayload() {
+		if (this.payload == null && this.payloadLength > 0 && this.frame != null) {
+			this.payload = copyBytes(this.frame, this.payloadOffset, this.payloadLength);
+		}
 		return this.payload;
 	}
 
@@ -169,54 +269,43 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	public byte[] serialize() {
-		/* serialize header options first to get the length */
-		int optionsLength = 0;
-		byte[] optionsArray = null;
-		if (this.options != null) {
-			optionsArray = this.options.serialize();
-			optionsLength = this.options.getSerializedLength();
-		}
+		byte[] serializedPacket = new byte[getSerializedLength()];
+		serializeTo(ByteBuffer.wrap(serializedPacket));
+		return serializedPacket;
+	}
 
-		/* allocate memory for the complete packet */
-		int length = HEADER_LENGTH + this.tokenLength + optionsLength + this.payloadLength;
-		if (this.payloadLength > 0)
+	@Override
+	public int getSerializedLength() {
+		int length = HEADER_LENGTH + this.tokenLength + this.options.getSerializedLength() + this.payloadLength;
+		if (this.payloadLength > 0) {
+			/* payload marker */
 			length++;
+		}
+		return length;
+	}
 
-		byte[] serializedPacket = new byte[length];
-
+	@Override
+	public void serializeTo(ByteBuffer buffer) {
 		/* serialize header */
-		serializedPacket[0] = (byte) ((this.version & 0x03) << 6);
-		serializedPacket[0] |= (byte) ((this.packetType.getValue() & 0x03) << 4);
-		serializedPacket[0] |= (byte) (this.tokenLength & 0x0F);
-		serializedPacket[1] = (byte) (this.getMessageCodeValue() & 0xFF);
-		serializedPacket[2] = (byte) ((this.messageId >> 8) & 0xFF);
-		serializedPacket[3] = (byte) (this.messageId & 0xFF);
+		buffer.put((byte) (((this.version & 0x03) << 6) | ((this.packetType.getValue() & 0x03) << 4)
+				| (this.tokenLength & 0x0F)));
+		buffer.put((byte) (this.getMessageCodeValue() & 0xFF));
+		buffer.put((byte) ((this.messageId >> 8) & 0xFF));
+		buffer.put((byte) (this.messageId & 0xFF));
 
 		/* insert token into packet */
-		for (int i = 0; i < this.tokenLength; i++) {
-			serializedPacket[HEADER_LENGTH + i] = this.token[i];
+		if (this.tokenLength > 0) {
+			buffer.put(getToken(), 0, this.tokenLength);
 		}
 
-		/* copy serialized options to the final array */
-		int offset = HEADER_LENGTH + this.tokenLength;
-		for (int i = 0; i < optionsLength; i++)
-			if (optionsArray != null) {
-				serializedPacket[i + offset] = optionsArray[i];
-			}
+		/* serialize options directly into the buffer */
+		this.options.serializeTo(buffer);
 
-		/* insert payload marker */
-		offset = HEADER_LENGTH + this.tokenLength + optionsLength;
+		/* insert payload marker and payload */
 		if (this.payloadLength > 0) {
-			serializedPacket[offset] = (byte) 0xFF;
-			offset += 1;
+			buffer.put((byte) 0xFF);
+			buffer.put(getPayload(), 0, this.payloadLength);
 		}
-
-		/* copy payload to the final array */
-		for (int i = 0; i < this.payloadLength; i++) {
-			serializedPacket[i + offset] = this.payload[i];
-		}
-
-		return serializedPacket;
 	}
 
 	public void setPayload(byte[] payload) {
@@ -282,6 +371,9 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
 	@Override
 	public byte[] getToken() {
+		if (this.token == null && this.frame != null) {
+			this.token = copyBytes(this.frame, HEADER_LENGTH, this.tokenLength);
+		}
 		return this.token;
 	}
 
@@ -390,31 +482,6 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 		this.channel = channel;
 	}
 
-	@Override
-	public int getTimeout() {
-		if (this.timeout == 0) {
-			Random random = new Random();
-			this.timeout = CoapConstants.RESPONSE_TIMEOUT_MS
-					+ random.nextInt((int) (CoapConstants.RESPONSE_TIMEOUT_MS * CoapConstants.RESPONSE_RANDOM_FACTOR)
-							- CoapConstants.RESPONSE_TIMEOUT_MS);
-		}
-		return this.timeout;
-	}
-
-	@Override
-	public boolean maxRetransReached() {
-		if (this.retransmissionCounter < CoapConstants.MAX_RETRANSMIT) {
-			return false;
-		}
-		return true;
-	}
-
-	@Override
-	public void incRetransCounterAndTimeout() {
-		this.retransmissionCounter += 1;
-		this.timeout *= 2;
-	}
-
 	@Override
 	public boolean isReliable() {
 		if (this.packetType == CoapPacketType.NON) {
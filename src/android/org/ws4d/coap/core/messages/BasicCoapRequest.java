@@ -17,6 +17,7 @@ package org.ws4d.coap.core.messages;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Vector;
 
@@ -48,6 +49,18 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		this.requestCode = CoapRequestCode.parse(this.getMessageCodeValue());
 	}
 
+	/**
+	 * Parses a request without copying its content, see
+	 * {@link AbstractCoapMessage#parseMessage(ByteBuffer)}.
+	 * 
+	 * @param buffer
+	 *            - the buffer holding the request between position and limit
+	 */
+	public BasicCoapRequest(ByteBuffer buffer) {
+		deserialize(buffer);
+		this.requestCode = CoapRequestCode.parse(this.getMessageCodeValue());
+	}
+
 	public BasicCoapRequest(CoapPacketType packetType, CoapRequestCode requestCode, int messageId) {
 		super(packetType, messageId, requestCode.getValue());
 		this.requestCode = requestCode;
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.core.messages;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
 import org.ws4d.coap.core.enumerations.CoapResponseCode;
@@ -39,6 +41,18 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 		this.responseCode = CoapResponseCode.parse(this.getMessageCodeValue());
 	}
 
+	/**
+	 * Parses a response without copying its content, see
+	 * {@link AbstractCoapMessage#parseMessage(ByteBuffer)}.
+	 * 
+	 * @param buffer
+	 *            - the buffer holding the response between position and limit
+	 */
+	public BasicCoapResponse(ByteBuffer buffer) {
+		deserialize(buffer);
+		this.responseCode = CoapResponseCode.parse(this.getMessageCodeValue());
+	}
+
 	/* token can be null */
 	public BasicCoapResponse(CoapPacketType packetType, CoapResponseCode responseCode, int messageId,
 			byte[] requestToken) {
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.core.messages;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.enumerations.CoapPacketType;
 
 /**
@@ -41,6 +43,22 @@ public class CoapEmptyMessage extends AbstractCoapMessage {
 		}
 	}
 
+	/**
+	 * Parses an empty message from the remaining bytes of the buffer.
+	 * 
+	 * @param buffer
+	 *            - the buffer holding the message between position and limit
+	 */
+	public CoapEmptyMessage(ByteBuffer buffer) {
+		if (buffer.remaining() != HEADER_LENGTH) {
+			throw new IllegalArgumentException("Invalid length of an empty message");
+		}
+		deserialize(buffer);
+		if (this.getMessageCodeValue() != 0) {
+			throw new IllegalArgumentException("Not an empty CoAP message.");
+		}
+	}
+
 	public CoapEmptyMessage(CoapPacketType packetType, int messageId) {
 		super(packetType, messageId);
 	}
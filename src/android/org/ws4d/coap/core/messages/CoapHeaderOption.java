@@ -1,5 +1,7 @@
 package org.ws4d.coap.core.messages;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 
 public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
@@ -7,10 +9,18 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 	private CoapHeaderOptionType optionType;
 	private int optionTypeValue; /* integer representation of optionType */
 	private byte[] optionData;
+	private int valueLength;
 	private int shortLength;
 	private int longLength;
 	private int deserializedLength;
 
+	/*
+	 * A deserialized option keeps a reference to the buffer it was parsed from
+	 * and copies its value only when it is requested.
+	 */
+	private ByteBuffer source = null;
+	private int valueOffset;
+
 	public int getDeserializedLength() {
 		return this.deserializedLength;
 	}
@@ -23,6 +33,7 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 		this.optionType = optionType;
 		this.optionTypeValue = optionType.getValue();
 		this.optionData = value;
+		this.valueLength = value.length;
 		if (value.length < 13) {
 			this.shortLength = value.length;
 			this.longLength = 0;
@@ -36,21 +47,45 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 	}
 
 	public CoapHeaderOption(byte[] bytes, int offset, int lastOptionNumber) throws IllegalArgumentException {
+		this(ByteBuffer.wrap(bytes), offset, lastOptionNumber);
+		/* the caller owns the array, copy the value right away */
+		getOptionData();
+		this.source = null;
+	}
+
+	/**
+	 * Parses an option without copying its value. The value is read from the
+	 * buffer when {@link #getOptionData()} is called for the first time, so the
+	 * buffer content must not change until the option is detached.
+	 * 
+	 * @param buffer
+	 *            - the buffer containing the serialized option
+	 * @param offset
+	 *            - absolute index of the first byte of the option
+	 * @param lastOptionNumber
+	 *            - number of the preceding option (options are delta encoded)
+	 * @throws IllegalArgumentException
+	 *             if the option is malformed or an unknown critical option
+	 */
+	public CoapHeaderOption(ByteBuffer buffer, int offset, int lastOptionNumber) throws IllegalArgumentException {
+		int limit = buffer.limit();
 		int headerLength = 1;
+		int firstByte = buffer.get(offset) & 0xFF;
 
 		/* parse option type */
-		this.optionTypeValue = ((bytes[offset] & 0xF0) >> 4);
-		if (this.optionTypeValue == 13) {
-			this.optionTypeValue += bytes[offset + 1] + lastOptionNumber;
+		int optionDelta = (firstByte & 0xF0) >> 4;
+		if (optionDelta == 13) {
+			checkBounds(offset + 2, limit);
+			optionDelta = 13 + (buffer.get(offset + 1) & 0xFF);
 			headerLength++;
-		} else if (this.optionTypeValue == 14) {
-			int part1 = ((bytes[offset + 1] & 0xFF) << 8);
-			int part2 = bytes[offset + 2];
-			this.optionTypeValue += part1 + part2 + lastOptionNumber;
+		} else if (optionDelta == 14) {
+			checkBounds(offset + 3, limit);
+			optionDelta = 269 + (((buffer.get(offset + 1) & 0xFF) << 8) | (buffer.get(offset + 2) & 0xFF));
 			headerLength += 2;
-		} else {
-			this.optionTypeValue += lastOptionNumber;
+		} else if (optionDelta == 15) {
+			throw new IllegalArgumentException("Invalid option delta");
 		}
+		this.optionTypeValue = optionDelta + lastOptionNumber;
 
 		this.optionType = CoapHeaderOptionType.parse(this.optionTypeValue);
 		if (this.optionType == null) {
@@ -63,27 +98,59 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 			}
 		}
 		/* parse length */
-		this.shortLength = (bytes[offset] & 0x0F);
-		if ((bytes[offset] & 0x0F) == 13) {
-			this.longLength = (bytes[offset + headerLength] & 0xFF);
+		this.shortLength = firstByte & 0x0F;
+		if (this.shortLength == 13) {
+			checkBounds(offset + headerLength + 1, limit);
+			this.longLength = (buffer.get(offset + headerLength) & 0xFF);
+			this.valueLength = 13 + this.longLength;
 			headerLength++;
 		} else if (this.shortLength == 14) {
-			this.shortLength = 269;
-			int part1 = ((bytes[offset + headerLength] & 0xFF) << 8);
-			int part2 = (bytes[offset + headerLength + 1] & 0xFF);
+			checkBounds(offset + headerLength + 2, limit);
+			int part1 = ((buffer.get(offset + headerLength) & 0xFF) << 8);
+			int part2 = (buffer.get(offset + headerLength + 1) & 0xFF);
 			this.longLength = part1 + part2;
+			this.valueLength = 269 + this.longLength;
 			headerLength += 2;
+		} else if (this.shortLength == 15) {
+			throw new IllegalArgumentException("Invalid option length");
 		} else {
 			this.longLength = 0;
+			this.valueLength = this.shortLength;
 		}
 
-		/* copy value */
-		this.optionData = new byte[this.shortLength + this.longLength];
-		for (int i = 0; i < this.shortLength + this.longLength; i++) {
-			this.optionData[i] = bytes[i + headerLength + offset];
+		/* remember where the value is, it is copied on demand */
+		checkBounds(offset + headerLength + this.valueLength, limit);
+		this.source = buffer;
+		this.valueOffset = offset + headerLength;
+
+		this.deserializedLength += headerLength + this.valueLength;
+	}
+
+	private static void checkBounds(int end, int limit) {
+		if (end > limit) {
+			throw new IllegalArgumentException("Invalid CoAP option (exceeds message length)");
 		}
+	}
+
+	/**
+	 * @return true, if the value of this option still refers to the buffer it
+	 *         was parsed from.
+	 */
+	boolean isBuffered() {
+		return this.optionData == null && this.source != null;
+	}
 
-		this.deserializedLength += headerLength + this.shortLength + this.longLength;
+	/**
+	 * Points a buffered option to a new buffer holding the same content at the
+	 * same offsets, e.g. a private copy of a reused receive buffer.
+	 * 
+	 * @param buffer
+	 *            - the new source of the option value
+	 */
+	void rebase(ByteBuffer buffer) {
+		if (isBuffered()) {
+			this.source = buffer;
+		}
 	}
 
 	@Override
@@ -113,42 +180,84 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 	}
 
 	public byte[] getOptionData() {
+		if (this.optionData == null && this.source != null) {
+			this.optionData = AbstractCoapMessage.copyBytes(this.source, this.valueOffset, this.valueLength);
+			this.source = null;
+		}
 		return this.optionData;
 	}
 
+	/**
+	 * @return The length of the option value in bytes.
+	 */
+	public int getOptionLength() {
+		return this.valueLength;
+	}
+
+	/**
+	 * @return The serialized length of this option if it is the first option
+	 *         of a message.
+	 */
 	public int getSerializeLength() {
-		int serializedLength = this.optionData.length;
-		if (hasLongLength()) {
-			// If shortLength is 14, two extra length bytes follow the
-			// initial byte
-			if (this.shortLength == 14)
-				serializedLength += 3;
-			// If shortLength is 13, only one extra length byte follows the
-			// initial byte
-			else
-				serializedLength += 2;
-		} else {
-			// If shortLength < 13, only the initial byte, containing 4 bit
-			// optionDelta and 4 bit option value length is added
-			serializedLength++;
-		}
+		return getSerializeLength(0);
+	}
 
-		if (this.optionTypeValue > 13) {
-			serializedLength++;
+	/**
+	 * @param lastOptionNumber
+	 *            - number of the preceding option (options are delta encoded)
+	 * @return The serialized length of this option in bytes.
+	 */
+	public int getSerializeLength(int lastOptionNumber) {
+		// the initial byte contains the 4 bit option delta and 4 bit length
+		int serializedLength = 1 + this.valueLength;
+		serializedLength += extendedFieldLength(this.optionTypeValue - lastOptionNumber);
+		serializedLength += extendedFieldLength(this.valueLength);
+		return serializedLength;
+	}
+
+	/**
+	 * @return The number of extended bytes needed to encode an option delta or
+	 *         option length.
+	 */
+	private static int extendedFieldLength(int value) {
+		if (value < 13) {
+			return 0;
+		} else if (value < 269) {
+			return 1;
 		}
+		return 2;
+	}
 
-		if (this.optionTypeValue > 268) {
-			serializedLength++;
+	/**
+	 * @return The 4 bit nibble used to encode an option delta or option length.
+	 */
+	private static int nibble(int value) {
+		if (value < 13) {
+			return value;
+		} else if (value < 269) {
+			return 13;
 		}
+		return 14;
+	}
 
-		return serializedLength;
+	/**
+	 * Writes an extended option delta or option length field, if needed.
+	 */
+	private static void putExtendedField(ByteBuffer buffer, int value) {
+		if (value >= 269) {
+			buffer.put((byte) (((value - 269) >> 8) & 0xFF));
+			buffer.put((byte) ((value - 269) & 0xFF));
+		} else if (value >= 13) {
+			buffer.put((byte) ((value - 13) & 0xFF));
+		}
 	}
 
 	@Override
 	public String toString() {
-		char[] printableOptionValue = new char[this.optionData.length];
-		for (int i = 0; i < this.optionData.length; i++)
-			printableOptionValue[i] = (char) this.optionData[i];
+		byte[] data = getOptionData();
+		char[] printableOptionValue = new char[data.length];
+		for (int i = 0; i < data.length; i++)
+			printableOptionValue[i] = (char) data[i];
 		return "Option Number: " + " (" + this.optionTypeValue + ")" + ", Option Value: "
 				+ String.copyValueOf(printableOptionValue);
 	}
@@ -158,37 +267,35 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 	}
 
 	public byte[] serializeOption(int lastOptionNumber) {
+		byte[] data = new byte[this.getSerializeLength(lastOptionNumber)];
+		serializeTo(ByteBuffer.wrap(data), lastOptionNumber);
+		return data;
+	}
 
-		byte[] data = new byte[this.getSerializeLength()];
-		int arrayIndex = 0;
-
+	/**
+	 * Writes the serialized option into the buffer, starting at its current
+	 * position.
+	 * 
+	 * @param buffer
+	 *            - the buffer to write to
+	 * @param lastOptionNumber
+	 *            - number of the preceding option (options are delta encoded)
+	 */
+	public void serializeTo(ByteBuffer buffer, int lastOptionNumber) {
 		int optionDelta = this.getOptionTypeValue() - lastOptionNumber;
-		if (optionDelta > 12 && optionDelta < 269) {
-			data[arrayIndex++] = (byte) (((13 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-			data[arrayIndex++] = (byte) (((optionDelta - 13) & 0x0F));
-		} else if (optionDelta >= 269) {
-			data[arrayIndex++] = (byte) (((14 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-			data[arrayIndex++] = (byte) (((optionDelta - 269) & 0xFFFF >> 8));
-			data[arrayIndex++] = (byte) (((optionDelta - 269) & 0xFF));
-		} else {
-			data[arrayIndex++] = (byte) (((optionDelta & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-		}
 
-		if (this.hasLongLength()) {
-			if (this.getShortLength() == 13)
-				data[arrayIndex++] = (byte) (this.getLongLength() & 0xFF);
-			else if (this.getShortLength() == 14) {
-				data[arrayIndex++] = (byte) ((this.getLongLength() & 0xFF00) >> 8);
-				data[arrayIndex++] = (byte) (this.getLongLength() & 0x00FF);
-			}
-		}
+		buffer.put((byte) (((nibble(optionDelta) & 0x0F) << 4) | (nibble(this.valueLength) & 0x0F)));
+		putExtendedField(buffer, optionDelta);
+		putExtendedField(buffer, this.valueLength);
 
-		byte[] value = this.getOptionData();
-		for (int i = 0; i < value.length; i++) {
-			data[arrayIndex++] = value[i];
+		if (this.optionData != null) {
+			buffer.put(this.optionData, 0, this.valueLength);
+		} else if (this.source != null) {
+			ByteBuffer value = this.source.duplicate();
+			value.limit(this.valueOffset + this.valueLength);
+			value.position(this.valueOffset);
+			buffer.put(value);
 		}
-
-		return data;
 	}
 	
 	/**
@@ -1,16 +1,35 @@
 package org.ws4d.coap.core.messages;
 
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.NoSuchElementException;
 
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 
 public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 
-	private Vector<CoapHeaderOption> headerOptions = new Vector<CoapHeaderOption>();
+	/** most messages have fewer options, the array grows on demand */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** option numbers below this limit are indexed, this covers CoapHeaderOptionType */
+	private static final int INDEXED_OPTIONS = 64;
+
+	/**
+	 * The options sorted by their number, options with the same number in the
+	 * order they were added. A message is used by one thread at a time, so no
+	 * lock is needed.
+	 */
+	private CoapHeaderOption[] headerOptions = new CoapHeaderOption[INITIAL_CAPACITY];
+	private int optionCount = 0;
+
+	/**
+	 * position + 1 of the first option of each number below INDEXED_OPTIONS, 0
+	 * if there is no such option
+	 */
+	private int[] firstOption = new int[INDEXED_OPTIONS];
+
 	private int deserializedLength;
-	private int serializedLength = 0;
 
 	/*
 	 * public CoapHeaderOptions(byte[] bytes, int option_count){ this(bytes,
@@ -18,40 +37,85 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 	 */
 
 	public CoapHeaderOptions(byte[] bytes, int offset, int length) {
+		this(ByteBuffer.wrap(bytes, 0, length), offset, length);
+		/* the caller owns the array, copy the option values right away */
+		for (int i = 0; i < this.optionCount; i++) {
+			this.headerOptions[i].getOptionData();
+		}
+	}
+
+	/**
+	 * Parses the options of a message without copying their values.
+	 * 
+	 * @param buffer
+	 *            - the buffer containing the serialized message
+	 * @param offset
+	 *            - absolute index of the first option byte
+	 * @param end
+	 *            - absolute index after the last byte of the message
+	 */
+	public CoapHeaderOptions(ByteBuffer buffer, int offset, int end) {
 		/* note: we only receive deltas and never concrete numbers */
-		/* TODO: check integrity */
 		this.deserializedLength = 0;
 		int lastOptionNumber = 0;
 		int optionOffset = offset;
-		while (bytes[optionOffset] != -1 && optionOffset < length - 1) {
-			CoapHeaderOption option = new CoapHeaderOption(bytes, optionOffset, lastOptionNumber);
+		while (optionOffset < end && buffer.get(optionOffset) != (byte) 0xFF) {
+			CoapHeaderOption option = new CoapHeaderOption(buffer, optionOffset, lastOptionNumber);
 			lastOptionNumber = option.getOptionTypeValue();
 			this.deserializedLength += option.getDeserializedLength();
 			optionOffset += option.getDeserializedLength();
+			/* options are received in ascending order, each one is appended */
 			addOption(option);
 		}
 	}
 
+	/**
+	 * Points all options that still refer to a receive buffer to a copy of that
+	 * buffer with identical offsets.
+	 * 
+	 * @param buffer
+	 *            - the copy of the receive buffer
+	 */
+	void rebase(ByteBuffer buffer) {
+		for (int i = 0; i < this.optionCount; i++) {
+			this.headerOptions[i].rebase(buffer);
+		}
+	}
+
+	/**
+	 * @return true, if at least one option value still refers to a receive
+	 *         buffer.
+	 */
+	boolean isBuffered() {
+		for (int i = 0; i < this.optionCount; i++) {
+			if (this.headerOptions[i].isBuffered()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public CoapHeaderOptions() {
 		/* creates empty header options */
 	}
 
+	/**
+	 * @return The first option with the number or null if there is none.
+	 */
 	public CoapHeaderOption getOption(int optionNumber) {
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			if (headerOption.getOptionTypeValue() == optionNumber) {
-				return headerOption;
-			}
+		if (optionNumber >= 0 && optionNumber < INDEXED_OPTIONS) {
+			int position = this.firstOption[optionNumber];
+			return position == 0 ? null : this.headerOptions[position - 1];
+		}
+		int position = lowerBound(optionNumber);
+		if (position < this.optionCount && this.headerOptions[position].getOptionTypeValue() == optionNumber) {
+			return this.headerOptions[position];
 		}
 		return null;
 	}
 
 	public CoapHeaderOption getOption(CoapHeaderOptionType optionType) {
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			if (headerOption.getOptionTypeValue() == optionType.getValue()) {
-				return headerOption;
-			}
-		}
-		return null;
+		return getOption(optionType.getValue());
 	}
 
 	public boolean optionExists(CoapHeaderOptionType optionType) {
@@ -62,9 +126,34 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 		return true;
 	}
 
+	/**
+	 * Inserts an option after all options with a lower or the same number.
+	 * Options are usually added in ascending order, which is an append.
+	 */
 	public void addOption(CoapHeaderOption option) {
-		this.headerOptions.add(option);
-		Collections.sort(this.headerOptions);
+		int number = option.getOptionTypeValue();
+		int position = this.optionCount;
+		if (position > 0 && this.headerOptions[position - 1].getOptionTypeValue() > number) {
+			position = lowerBound(number + 1);
+		}
+		if (this.optionCount == this.headerOptions.length) {
+			this.headerOptions = Arrays.copyOf(this.headerOptions, this.optionCount * 2);
+		}
+		if (position < this.optionCount) {
+			System.arraycopy(this.headerOptions, position, this.headerOptions, position + 1,
+					this.optionCount - position);
+			/* the options with higher numbers moved */
+			for (int i = number + 1; i < INDEXED_OPTIONS; i++) {
+				if (this.firstOption[i] != 0) {
+					this.firstOption[i]++;
+				}
+			}
+		}
+		this.headerOptions[position] = option;
+		this.optionCount++;
+		if (number < INDEXED_OPTIONS && this.firstOption[number] == 0) {
+			this.firstOption[number] = position + 1;
+		}
 	}
 
 	public void addOption(CoapHeaderOptionType optionType, byte[] value) {
@@ -72,38 +161,71 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 	}
 
 	public void removeOption(CoapHeaderOptionType optionType) {
-		CoapHeaderOption headerOption;
-		// get elements of Vector
-
-		/*
-		 * note: iterating over and changing a vector at the same time is
-		 * not allowed
-		 */
-		int i = 0;
-		while (i < this.headerOptions.size()) {
-			headerOption = this.headerOptions.get(i);
-			if (headerOption.getOptionTypeValue() == optionType.getValue()) {
-				this.headerOptions.remove(i);
-			} else {
-				/* only increase when no element was removed */
-				i++;
-			}
+		int number = optionType.getValue();
+		int from = lowerBound(number);
+		int to = lowerBound(number + 1);
+		if (from == to) {
+			return;
 		}
-		Collections.sort(this.headerOptions);
+		System.arraycopy(this.headerOptions, to, this.headerOptions, from, this.optionCount - to);
+		Arrays.fill(this.headerOptions, this.optionCount - (to - from), this.optionCount, null);
+		this.optionCount -= to - from;
+		reindex();
+	}
+
+	/**
+	 * Removes the option at the position, the options behind it move up.
+	 */
+	private void removeAt(int position) {
+		System.arraycopy(this.headerOptions, position + 1, this.headerOptions, position,
+				this.optionCount - position - 1);
+		this.optionCount--;
+		this.headerOptions[this.optionCount] = null;
+		reindex();
 	}
 
 	public void removeAll() {
-		this.headerOptions.clear();
+		Arrays.fill(this.headerOptions, 0, this.optionCount, null);
+		this.optionCount = 0;
+		Arrays.fill(this.firstOption, 0);
 	}
 
 	public void copyFrom(CoapHeaderOptions origin) {
-		for (CoapHeaderOption option : origin) {
-			addOption(option);
+		for (int i = 0; i < origin.optionCount; i++) {
+			addOption(origin.headerOptions[i]);
+		}
+	}
+
+	/**
+	 * @return The position of the first option with a number of at least
+	 *         optionNumber, the option count if there is none.
+	 */
+	private int lowerBound(int optionNumber) {
+		int low = 0;
+		int high = this.optionCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.headerOptions[mid].getOptionTypeValue() < optionNumber) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void reindex() {
+		Arrays.fill(this.firstOption, 0);
+		for (int i = this.optionCount - 1; i >= 0; i--) {
+			int number = this.headerOptions[i].getOptionTypeValue();
+			if (number < INDEXED_OPTIONS) {
+				this.firstOption[number] = i + 1;
+			}
 		}
 	}
 
 	public int getOptionCount() {
-		return this.headerOptions.size();
+		return this.optionCount;
 	}
 
 	public byte[] serialize() {
@@ -111,47 +233,84 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 		 * options are serialized here to be more efficient (only one byte
 		 * array necessary)
 		 */
-		int length = 0;
-
-		/* calculate the overall length first */
-		for (CoapHeaderOption option : this.headerOptions) {
-			length += option.getSerializeLength();
-		}
-
-		byte[] data = new byte[length];
-		byte[] opt = null;
-		int arrayIndex = 0;
+		byte[] data = new byte[getSerializedLength()];
+		serializeTo(ByteBuffer.wrap(data));
+		return data;
+	}
 
+	/**
+	 * Writes all options into the buffer, starting at its current position.
+	 * 
+	 * @param buffer
+	 *            - the buffer to write to
+	 */
+	public void serializeTo(ByteBuffer buffer) {
 		int lastOptionNumber = 0; /* let's keep track of this */
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			opt = headerOption.serializeOption(lastOptionNumber);
-			for (int i = 0; i < opt.length; i++) {
-				data[arrayIndex++] = opt[i];
-			}
+		/* indexed access, an iterator would be allocated for every message */
+		for (int i = 0; i < this.optionCount; i++) {
+			CoapHeaderOption headerOption = this.headerOptions[i];
+			headerOption.serializeTo(buffer, lastOptionNumber);
 			lastOptionNumber = headerOption.getOptionTypeValue();
 		}
-		this.serializedLength = length;
-		return data;
 	}
 
 	public int getDeserializedLength() {
 		return this.deserializedLength;
 	}
 
+	/**
+	 * @return The length of all serialized options in bytes.
+	 */
 	public int getSerializedLength() {
-		return this.serializedLength;
+		int length = 0;
+		int lastOptionNumber = 0;
+		for (int i = 0; i < this.optionCount; i++) {
+			CoapHeaderOption headerOption = this.headerOptions[i];
+			length += headerOption.getSerializeLength(lastOptionNumber);
+			lastOptionNumber = headerOption.getOptionTypeValue();
+		}
+		return length;
 	}
 
 	@Override
 	public Iterator<CoapHeaderOption> iterator() {
-		return this.headerOptions.iterator();
+		return new Iterator<CoapHeaderOption>() {
+			private int position = 0;
+
+			/** position of the option returned by next(), -1 after remove() */
+			private int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return this.position < CoapHeaderOptions.this.optionCount;
+			}
+
+			@Override
+			public CoapHeaderOption next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				this.last = this.position;
+				return CoapHeaderOptions.this.headerOptions[this.position++];
+			}
+
+			@Override
+			public void remove() {
+				if (this.last < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(this.last);
+				this.position = this.last;
+				this.last = -1;
+			}
+		};
 	}
 
 	@Override
 	public String toString() {
 		String result = "\tOptions:\n";
-		for (CoapHeaderOption option : this.headerOptions) {
-			result += "\t\t" + option.toString() + "\n";
+		for (int i = 0; i < this.optionCount; i++) {
+			result += "\t\t" + this.headerOptions[i].toString() + "\n";
 		}
 		return result;
 	}
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.core.messages.api;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
@@ -55,9 +57,22 @@ public interface CoapMessage {
 	public byte[] serialize();
 
 	/**
-	 * increments the retransmission counter and doubles the timeout
+	 * Write the serialized form of the message into a buffer, starting at its
+	 * current position. Nothing is allocated for messages created locally.<br>
+	 * See rfc7252 - 3. "Message Format" for further details.
+	 * 
+	 * @param buffer
+	 *            - the buffer to write to, it needs at least
+	 *            {@link #getSerializedLength()} bytes remaining.
+	 * @throws java.nio.BufferOverflowException
+	 *             if the message does not fit into the buffer.
+	 */
+	public void serializeTo(ByteBuffer buffer);
+
+	/**
+	 * @return The length of the serialized message in bytes.
 	 */
-	public void incRetransCounterAndTimeout();
+	public int getSerializedLength();
 
 	/**
 	 * @return The packet type of the message (CON, NON, ACK, RST).
@@ -203,18 +218,6 @@ public interface CoapMessage {
 	 */
 	public void setChannel(CoapChannel channel);
 
-	/**
-	 * 
-	 * @return
-	 */
-	public int getTimeout();
-
-	/**
-	 * 
-	 * @return
-	 */
-	public boolean maxRetransReached();
-
 	/**
 	 * 
 	 * @return
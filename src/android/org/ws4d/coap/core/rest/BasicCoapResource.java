@@ -31,6 +31,8 @@ import org.ws4d.coap.core.rest.api.CoapResource;
 import org.ws4d.coap.core.rest.api.ResourceServer;
 import org.ws4d.coap.core.tools.Encoder;
 
+import android.util.Log;
+
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
  * @author Bjorn Butzin <bjoern.butzin@uni-rostock.de>
@@ -137,7 +139,8 @@ public class BasicCoapResource implements CoapResource {
 			this.observeSequenceNumber = 0;
 		}
 
-		// notify all observers
+		// notify all observers, a full outbound queue only skips this notification
+		int rejected = 0;
 		for (CoapRequest obsRequest : this.observer.values()) {
 			CoapServerChannel channel = (CoapServerChannel) obsRequest.getChannel();
 			CoapResponse response;
@@ -150,7 +153,15 @@ public class BasicCoapResource implements CoapResource {
 			}
 			CoapData data = this.get(obsRequest.getAccept());
 			response.setPayload(new CoapData(data.getPayload(), data.getMediaType()));
-			channel.sendNotification(response);
+			try {
+				channel.sendNotification(response);
+			} catch (IllegalStateException e) {
+				rejected++;
+			}
+		}
+		if (rejected > 0) {
+			Log.w("CCoap", rejected + " of " + this.observer.size() + " notifications of " + this.path
+					+ " rejected by the outbound queue");
 		}
 	}
 
@@ -29,6 +29,7 @@ import java.util.Vector;
 import org.ws4d.coap.core.CoapServer;
 import org.ws4d.coap.core.CoapConstants;
 import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
 import org.ws4d.coap.core.enumerations.CoapRequestCode;
@@ -38,6 +39,8 @@ import org.ws4d.coap.core.messages.api.CoapResponse;
 import org.ws4d.coap.core.rest.api.CoapResource;
 import org.ws4d.coap.core.rest.api.ResourceServer;
 
+import android.util.Log;
+
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
  * @author Bjorn Konieczek <bjoern.konieczek@uni-rostock.de>
@@ -50,6 +53,38 @@ public class CoapResourceServer implements ResourceServer {
 	private CoreResource coreResource = new CoreResource(this);
 	/** toggle if the creation of resources is allowed on this server **/
 	private boolean allowCreate = true;
+	/** the channel manager the server listens on, null for the global instance */
+	private CoapChannelManager channelManager = null;
+
+	/**
+	 * Creates a resource server listening on the global channel manager.
+	 */
+	public CoapResourceServer() {
+	}
+
+	/**
+	 * Creates a resource server listening on a channel manager of its own, e.g.
+	 * one exchanging datagrams on a LoopbackNetwork.
+	 * 
+	 * @param channelManager
+	 *            - the channel manager the server is started on
+	 */
+	public CoapResourceServer(CoapChannelManager channelManager) {
+		if (channelManager == null) {
+			throw new IllegalArgumentException("channelManager must not be null");
+		}
+		this.channelManager = channelManager;
+	}
+
+	/**
+	 * @return The channel manager the server is started on.
+	 */
+	public CoapChannelManager getChannelManager() {
+		if (this.channelManager == null) {
+			return BasicCoapChannelManager.getInstance();
+		}
+		return this.channelManager;
+	}
 
 	public Map<String, CoapResource> getResources() {
 		return this.resources;
@@ -119,10 +154,25 @@ public class CoapResourceServer implements ResourceServer {
 	 * @see {@link #start()} To start the server on the standard port
 	 */
 	public void start(int serverport) throws Exception {
+		start(serverport, 1);
+	}
+
+	/**
+	 * Start the ResourceServer with several socket handlers sharing the port,
+	 * so that incoming requests are handled on several cores.
+	 * 
+	 * @param serverport
+	 *            - The port to be used.
+	 * @param shards
+	 *            - The number of socket handlers serving the port.
+	 * @throws Exception
+	 *             if the connection can not be established
+	 */
+	public void start(int serverport, int shards) throws Exception {
 		this.coreResource = new CoreResource(this);
 		this.resources.put(this.coreResource.getPath(), this.coreResource);
 		this.port = serverport;
-		BasicCoapChannelManager.getInstance().createServerListener(this, this.port);
+		getChannelManager().createServerListener(this, this.port, shards);
 	}
 
 	@Override
@@ -282,8 +332,12 @@ public class CoapResourceServer implements ResourceServer {
 			response = channel.createResponse(request, CoapResponseCode.Bad_Request_400);
 			break;
 		}
-		channel.sendMessage(response);
-
+		try {
+			channel.sendMessage(response);
+		} catch (IllegalStateException e) {
+			/* the response is lost like a dropped datagram */
+			Log.w("CCoap", "response to " + channel.getRemoteAddress() + " rejected: " + e.getMessage());
+		}
 	}
 
 	/**
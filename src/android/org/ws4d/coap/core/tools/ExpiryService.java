@@ -0,0 +1,113 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Removes the expired entries of all {@link TimeoutHashMap}s with a single
+ * daemon thread. The thread sleeps until the next entry of any map expires and
+ * terminates when no map is registered anymore.
+ */
+final class ExpiryService implements Runnable {
+
+	private static final CopyOnWriteArrayList<TimeoutHashMap<?, ?>> maps = new CopyOnWriteArrayList<TimeoutHashMap<?, ?>>();
+	private static final Object lock = new Object();
+	private static Thread thread = null;
+
+	/** the point in time the service wakes up next */
+	private static long wakeup = Long.MAX_VALUE;
+
+	private ExpiryService() {
+	}
+
+	/**
+	 * @return The current time of a monotonic clock in milliseconds.
+	 */
+	static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	static void register(TimeoutHashMap<?, ?> map) {
+		synchronized (lock) {
+			maps.add(map);
+			if (thread == null) {
+				thread = new Thread(new ExpiryService(), "TimeoutHashMap expiry");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	static void unregister(TimeoutHashMap<?, ?> map) {
+		synchronized (lock) {
+			maps.remove(map);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Called when an entry was added to an empty map. Wakes up the service if
+	 * the entry expires before the service would wake up anyway.
+	 * 
+	 * @param expires
+	 *            - the point in time the entry expires
+	 */
+	static void scheduled(long expires) {
+		synchronized (lock) {
+			if (expires < wakeup) {
+				wakeup = expires;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			long next = Long.MAX_VALUE;
+			long now = now();
+			for (TimeoutHashMap<?, ?> map : maps) {
+				next = Math.min(next, map.update(now));
+			}
+
+			synchronized (lock) {
+				if (maps.isEmpty()) {
+					thread = null;
+					return;
+				}
+				/* a map may have become non-empty while updating the others */
+				if (wakeup < next) {
+					next = wakeup;
+				}
+				wakeup = next;
+				long delay = next - now();
+				if (delay > 0) {
+					try {
+						if (next == Long.MAX_VALUE) {
+							lock.wait();
+						} else {
+							lock.wait(delay);
+						}
+					} catch (InterruptedException e) {
+						// do nothing, the maps are updated again
+					}
+				}
+				wakeup = Long.MAX_VALUE;
+			}
+		}
+	}
+}
@@ -19,14 +19,22 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This class provides a thread safe hash map implementation that automatically removes
- * added items after a fixed amount of miliseconds.
+ * added items after a fixed amount of miliseconds.<br>
+ * All entries of a map have the same timeout, so they expire in the order they
+ * were added. The entries are kept in insertion order and expired entries are
+ * removed from the head of that queue, which costs O(1) amortized per entry.
+ * Expired entries are invisible to get() even before they are removed. The
+ * removal is done by one {@link ExpiryService} thread shared by all maps,
+ * which reports every entry it removes to the {@link ExpiryListener} of the
+ * map, if any.
  * 
  * @author Bjorn Butzin <bjoern.butzin@uni-rostock.de>
  *
@@ -40,24 +48,27 @@ public class TimeoutHashMap<K, V> implements Map<K, V> {
 	/**
 	 * This map that actually keeps the key value pairs. The original value is
 	 * wrapped into a TimedEntry. A TimedEntry enhances the original value with
-	 * the point in time when the item has to be deleted. This point in time is
-	 * represented as milliseconds since the same point in time as used by
-	 * System.currentTimeMillis().
+	 * the point in time when the item has to be deleted.
 	 */
-	private Map<K, TimedEntry<V>> map = new Hashtable<K, TimedEntry<V>>();
+	private Map<K, TimedEntry<K, V>> map = new ConcurrentHashMap<K, TimedEntry<K, V>>();
+
+	/**
+	 * all entries in the order they were added, i.e. in the order they expire
+	 */
+	private ConcurrentLinkedQueue<TimedEntry<K, V>> expiryQueue = new ConcurrentLinkedQueue<TimedEntry<K, V>>();
 
 	/**
 	 * the timeout of every new entry in ms
 	 */
-	private Long timeout;
+	private final long timeout;
 
 	/**
-	 * this timer calls the update method when the next entry is timed out
+	 * notified about entries removed because they expired, may be null
 	 */
-	private Thread thread = new Thread(new TimeoutHashMapTimer(this));
+	private volatile ExpiryListener<K, V> expiryListener;
 
 	/**
-	 * Creates a new TimeoutHashMap2 object
+	 * Creates a new TimeoutHashMap object
 	 * 
 	 * @param timeout
 	 *            - the amount of milliseconds after which a newly added item
@@ -65,152 +76,224 @@ public class TimeoutHashMap<K, V> implements Map<K, V> {
 	 */
 	public TimeoutHashMap(long timeout) {
 		this.timeout = timeout;
-		this.thread.start();
+		ExpiryService.register(this);
 	}
 
-	public synchronized void clear() {
+	/**
+	 * Sets the listener that is notified about every entry that is removed
+	 * because it expired. The listener is called from the thread of the
+	 * {@link ExpiryService} and must not block.
+	 * 
+	 * @param expiryListener
+	 *            - the listener, null to remove it
+	 */
+	public void setExpiryListener(ExpiryListener<K, V> expiryListener) {
+		this.expiryListener = expiryListener;
+	}
+
+	/**
+	 * Stops the automatic removal of expired entries. Entries still expire on
+	 * read.
+	 */
+	public void close() {
+		ExpiryService.unregister(this);
+	}
+
+	public void clear() {
 		this.map.clear();
+		this.expiryQueue.clear();
 	}
 
-	public synchronized boolean containsKey(Object key) {
-		return this.map.containsKey(key);
+	public boolean containsKey(Object key) {
+		return get(key) != null;
 	}
 
-	public synchronized boolean containsValue(Object value) {
-		for (TimedEntry<V> entry : this.map.values()) {
-			if (entry.getValue().equals(value)) {
+	public boolean containsValue(Object value) {
+		long now = ExpiryService.now();
+		for (TimedEntry<K, V> entry : this.map.values()) {
+			V v = entry.getValue();
+			if (!entry.isExpired(now) && v != null && v.equals(value)) {
 				return true;
 			}
 		}
 		return false;
 	}
 
-	public synchronized Set<java.util.Map.Entry<K, V>> entrySet() {
+	public Set<java.util.Map.Entry<K, V>> entrySet() {
+		long now = ExpiryService.now();
 		Set<Entry<K, V>> set = new HashSet<Entry<K, V>>();
-		for (Entry<K, TimedEntry<V>> entry : this.map.entrySet()) {
-			set.add(new AbstractMap.SimpleEntry<K, V>(entry.getKey(), entry.getValue().getValue()));
+		for (Entry<K, TimedEntry<K, V>> entry : this.map.entrySet()) {
+			V value = entry.getValue().getValue();
+			if (!entry.getValue().isExpired(now) && value != null) {
+				set.add(new AbstractMap.SimpleEntry<K, V>(entry.getKey(), value));
+			}
 		}
 		return set;
 	}
 
-	public synchronized V get(Object key) {
-		TimedEntry<V> e = this.map.get(key);
-		if(e!= null){
-			return this.map.get(key).getValue();
+	public V get(Object key) {
+		TimedEntry<K, V> e = this.map.get(key);
+		if (e == null || e.isExpired(ExpiryService.now())) {
+			return null;
 		}
-		return null;
-		
+		return e.getValue();
 	}
 
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
 		return this.map.isEmpty();
 	}
 
-	public synchronized Set<K> keySet() {
+	public Set<K> keySet() {
 		return this.map.keySet();
 	}
 
-	public synchronized V put(K key, V value) {
-		TimedEntry<V> entry = this.map.put(key, new TimedEntry<V>(System.currentTimeMillis() + this.timeout, value));
-		V old = null != entry ? entry.getValue() : null;
-		// important to wake the timer, especially if map was empty before
-		this.thread.interrupt();
-		return old;
+	public V put(K key, V value) {
+		TimedEntry<K, V> entry = new TimedEntry<K, V>(key, ExpiryService.now() + this.timeout, value);
+		this.expiryQueue.add(entry);
+		TimedEntry<K, V> old = this.map.put(key, entry);
+		if (this.expiryQueue.peek() == entry) {
+			/* the map was empty, the service may be waiting for entries */
+			ExpiryService.scheduled(entry.getExpires());
+		}
+		return null != old ? old.kill() : null;
 	}
 
-	public synchronized void putAll(Map<? extends K, ? extends V> m) {
+	public void putAll(Map<? extends K, ? extends V> m) {
 		for (Entry<? extends K, ? extends V> e : m.entrySet()) {
 			this.put(e.getKey(), e.getValue());
 		}
 	}
 
-	public synchronized V remove(Object key) {
-		 TimedEntry<V> t = this.map.remove(key);
-		 return null==t ? null : t.getValue();
+	public V remove(Object key) {
+		/*
+		 * the entry stays in the expiry queue until it reaches its head, but
+		 * without its key and value
+		 */
+		TimedEntry<K, V> t = this.map.remove(key);
+		return null == t ? null : t.kill();
 	}
 
-	public synchronized int size() {
+	public int size() {
 		return this.map.size();
 	}
 
-	public synchronized Collection<V> values() {
+	public Collection<V> values() {
+		long now = ExpiryService.now();
 		Collection<V> result = new ArrayList<V>();
-		for (TimedEntry<V> entry : this.map.values()) {
-			result.add(entry.getValue());
+		for (TimedEntry<K, V> entry : this.map.values()) {
+			V value = entry.getValue();
+			if (!entry.isExpired(now) && value != null) {
+				result.add(value);
+			}
 		}
 		return result;
 	}
 
-	synchronized Long update() {
-		long time = Long.MAX_VALUE;
-
-		// search for next expiring entry & already expired entries
-		// iterator is required to prevent concurrent modification exception
-		Iterator<Entry<K, TimedEntry<V>>> it = this.map.entrySet().iterator();
+	/**
+	 * Removes the expired entries from the head of the expiry queue.
+	 * 
+	 * @param now
+	 *            - the current time of {@link ExpiryService#now()}
+	 * @return The point in time the next entry expires, Long.MAX_VALUE if the
+	 *         map is empty.
+	 */
+	long update(long now) {
+		Iterator<TimedEntry<K, V>> it = this.expiryQueue.iterator();
 		while (it.hasNext()) {
-			Entry<K, TimedEntry<V>> entry = it.next();
-			long newTime = entry.getValue().getExpires() - System.currentTimeMillis();
-			if (newTime < 1) {
-				// Immediately remove expired entries
+			TimedEntry<K, V> entry = it.next();
+			if (entry.isDead()) {
+				/* removed or replaced meanwhile */
 				it.remove();
-			} else if (newTime < time) {
-				// set next expire time
-				time = newTime;
+				continue;
+			}
+			if (!entry.isExpired(now)) {
+				return entry.getExpires();
+			}
+			it.remove();
+			// only remove the mapping if it was not replaced or removed meanwhile
+			K key = entry.getKey();
+			V value = entry.getValue();
+			if (key != null && this.map.remove(key, entry)) {
+				entry.kill();
+				ExpiryListener<K, V> listener = this.expiryListener;
+				if (null != listener) {
+					try {
+						listener.expired(key, value);
+					} catch (RuntimeException e) {
+						// do not stop the expiry of the other maps
+					}
+				}
 			}
 		}
-		return time;
+		return Long.MAX_VALUE;
 	}
 
-	private class TimedEntry<A> {
+	/**
+	 * Is notified about the entries of a {@link TimeoutHashMap} that expired.
+	 * 
+	 * @param <K>
+	 *            the data type of the keys of the map
+	 * @param <V>
+	 *            the data type of the values of the map
+	 */
+	public interface ExpiryListener<K, V> {
 
-		private final Long expires;
-		private final A value;
+		/**
+		 * Called after an entry was removed because it expired. Entries that
+		 * were removed or replaced before are not reported.
+		 * 
+		 * @param key
+		 *            - the key of the expired entry
+		 * @param value
+		 *            - the value of the expired entry
+		 */
+		void expired(K key, V value);
+	}
+
+	private static class TimedEntry<A, B> {
+
+		/* cleared when the entry is removed from the map */
+		private volatile A key;
+		private final long expires;
+		private volatile B value;
 
-		TimedEntry(Long expires, A value) {
+		TimedEntry(A key, long expires, B value) {
+			this.key = key;
 			this.expires = expires;
 			this.value = value;
 		}
 
-		public Long getExpires() {
+		public A getKey() {
+			return this.key;
+		}
+
+		public long getExpires() {
 			return this.expires;
 		}
 
-		public A getValue() {
+		public B getValue() {
 			return this.value;
 		}
-	}
-
-	private class TimeoutHashMapTimer implements Runnable {
-
-		private TimeoutHashMap<K, V> timerMap;
 
-		TimeoutHashMapTimer(TimeoutHashMap<K, V> map) {
-			this.timerMap = map;
+		public boolean isExpired(long now) {
+			return now >= this.expires;
 		}
 
-		public void run() {
-			while (true) {
-				if (!this.timerMap.isEmpty()) {
-					long time;
+		/**
+		 * Releases the key and the value of an entry that was removed from the
+		 * map.
+		 * 
+		 * @return The value of the entry.
+		 */
+		B kill() {
+			B v = this.value;
+			this.value = null;
+			this.key = null;
+			return v;
+		}
 
-					// remove expired entries & get next expire time
-					time = this.timerMap.update();
-					// next delete in <time> milliseconds -> sleep
-					try {
-						Thread.sleep(time);
-					} catch (@SuppressWarnings("unused") InterruptedException e) {
-						// do nothing, InterruptedException is expected on a put
-					}
-				} else {
-					// timerMap is empty we can sleep until something is added
-					// we expect an interrupt when something is added
-					try {
-						Thread.sleep(Long.MAX_VALUE);
-					} catch (@SuppressWarnings("unused") InterruptedException e) {
-						// do nothing, InterruptedException is expected on a put
-					}
-				}
-			}
+		boolean isDead() {
+			return this.key == null;
 		}
 	}
 }
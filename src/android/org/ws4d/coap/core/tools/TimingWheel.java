@@ -0,0 +1,253 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+/**
+ * A hashed timing wheel. Timeouts are sorted into buckets by the tick they
+ * expire in, so scheduling and cancelling are O(1). A timeout fires at the
+ * first tick at or after its deadline, i.e. up to one tick late but never
+ * early.<br>
+ * The timeouts are intrusive list nodes: a class that needs a timer extends
+ * {@link Timeout}, no objects are allocated per scheduled timeout. The wheel
+ * is not thread safe, it is owned by a single thread.
+ * 
+ * @param <T>
+ *            the type of the timeouts
+ */
+public class TimingWheel<T extends TimingWheel.Timeout> {
+
+	private static final int NOT_SCHEDULED = -1;
+	private static final int EXPIRED = -2;
+
+	/**
+	 * A node of the timing wheel.
+	 */
+	public static class Timeout {
+		private Timeout prev = null;
+		private Timeout next = null;
+		private int bucket = NOT_SCHEDULED;
+		private long deadlineTick = 0;
+
+		/**
+		 * @return True if the timeout is scheduled and was not yet returned by
+		 *         {@link TimingWheel#poll(long)}.
+		 */
+		public boolean isScheduled() {
+			return this.bucket != NOT_SCHEDULED;
+		}
+	}
+
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long tickDuration;
+	private final long startTime;
+
+	/** the next tick to process */
+	private long tick = 0;
+	private int size = 0;
+
+	/* expired timeouts in the order they expired */
+	private Timeout expiredHead = null;
+	private Timeout expiredTail = null;
+
+	/**
+	 * @param ticksPerWheel
+	 *            - the number of buckets, rounded up to a power of two
+	 * @param tickDuration
+	 *            - the duration of a tick in milliseconds
+	 * @param now
+	 *            - the current time in milliseconds, all times passed to the
+	 *            wheel must use the same (monotonic) clock
+	 */
+	public TimingWheel(int ticksPerWheel, long tickDuration, long now) {
+		if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("invalid number of ticks per wheel");
+		}
+		if (tickDuration < 1) {
+			throw new IllegalArgumentException("tick duration must be at least 1 ms");
+		}
+		int length = 1;
+		while (length < ticksPerWheel) {
+			length <<= 1;
+		}
+		this.buckets = new Timeout[length];
+		this.mask = length - 1;
+		this.tickDuration = tickDuration;
+		this.startTime = now;
+	}
+
+	/**
+	 * Schedules a timeout. A timeout that is already scheduled is rescheduled.
+	 * 
+	 * @param t
+	 *            - the timeout
+	 * @param deadline
+	 *            - the time in milliseconds the timeout expires at
+	 */
+	public void schedule(T t, long deadline) {
+		Timeout timeout = t;
+		if (timeout.isScheduled()) {
+			cancel(t);
+		}
+		long elapsed = deadline - this.startTime;
+		long deadlineTick = (elapsed + this.tickDuration - 1) / this.tickDuration;
+		if (deadlineTick < this.tick) {
+			/* already expired, fire with the next tick */
+			deadlineTick = this.tick;
+		}
+		int index = (int) (deadlineTick & this.mask);
+		timeout.deadlineTick = deadlineTick;
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = this.buckets[index];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		this.buckets[index] = timeout;
+		this.size++;
+	}
+
+	/**
+	 * Cancels a timeout. Does nothing if the timeout is not scheduled.
+	 * 
+	 * @param t
+	 *            - the timeout
+	 */
+	public void cancel(T t) {
+		Timeout timeout = t;
+		if (timeout.bucket == NOT_SCHEDULED) {
+			return;
+		}
+		if (timeout.bucket == EXPIRED) {
+			if (timeout.prev == null) {
+				this.expiredHead = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				this.expiredTail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+		} else {
+			unlink(timeout);
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = NOT_SCHEDULED;
+		this.size--;
+	}
+
+	/**
+	 * Returns the next expired timeout. The timeout is no longer scheduled
+	 * afterwards.
+	 * 
+	 * @param now
+	 *            - the current time in milliseconds
+	 * @return The next expired timeout or null if none expired until now.
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll(long now) {
+		if (this.expiredHead == null) {
+			advance(now);
+		}
+		Timeout timeout = this.expiredHead;
+		if (timeout == null) {
+			return null;
+		}
+		this.expiredHead = timeout.next;
+		if (this.expiredHead == null) {
+			this.expiredTail = null;
+		} else {
+			this.expiredHead.prev = null;
+		}
+		timeout.next = null;
+		timeout.bucket = NOT_SCHEDULED;
+		this.size--;
+		return (T) timeout;
+	}
+
+	/**
+	 * @param now
+	 *            - the current time in milliseconds
+	 * @return Milliseconds until the next tick that has a timeout in its bucket,
+	 *         0 if there are expired timeouts, -1 if no timeout is scheduled.
+	 */
+	public long getDelay(long now) {
+		if (this.size == 0) {
+			return -1;
+		}
+		if (this.expiredHead != null) {
+			return 0;
+		}
+		for (long t = this.tick; t < this.tick + this.buckets.length; t++) {
+			if (this.buckets[(int) (t & this.mask)] != null) {
+				return Math.max(0, this.startTime + t * this.tickDuration - now);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of scheduled timeouts.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Moves all timeouts of the ticks until now to the expired list.
+	 */
+	private void advance(long now) {
+		long currentTick = (now - this.startTime) / this.tickDuration;
+		if (this.size == 0) {
+			/* nothing to expire, skip the empty ticks */
+			this.tick = Math.max(this.tick, currentTick + 1);
+			return;
+		}
+		while (this.tick <= currentTick) {
+			Timeout timeout = this.buckets[(int) (this.tick & this.mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadlineTick <= this.tick) {
+					unlink(timeout);
+					timeout.bucket = EXPIRED;
+					timeout.next = null;
+					timeout.prev = this.expiredTail;
+					if (this.expiredTail == null) {
+						this.expiredHead = timeout;
+					} else {
+						this.expiredTail.next = timeout;
+					}
+					this.expiredTail = timeout;
+				}
+				timeout = next;
+			}
+			this.tick++;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev == null) {
+			this.buckets[timeout.bucket] = timeout.next;
+		} else {
+			timeout.prev.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.CoapServer;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.CallbackMode;
+import org.ws4d.coap.core.connection.LoopbackNetwork;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.connection.api.CoapServerChannel;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.rest.CoapData;
+
+/**
+ * Measures the throughput of a server whose request handler blocks, e.g. on a
+ * database or a sensor, in each {@link CallbackMode}. Many clients, each with
+ * a channel manager and thus a port of its own, send confirmable GET requests
+ * one after the other on a {@link LoopbackNetwork}. In DISPATCH_THREAD mode a
+ * blocked handler stalls all clients of its dispatch thread, in
+ * VIRTUAL_THREAD mode only its own client.<br>
+ * Usage: BlockingHandlerBenchmark [requests per client] [handler delay ms]
+ * [clients]
+ */
+public class BlockingHandlerBenchmark {
+
+	private static final int SERVER_PORT = 5683;
+	private static final String PATH = "/bench";
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int delay = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		System.out.println(clients + " clients, handler delay " + delay + " ms, dispatch threads "
+				+ new NetworkConfig().getDispatchThreads());
+
+		System.out.println("mode             requests/s  failed");
+		CallbackMode[] modes = CallbackMode.values();
+		for (int i = 0; i < modes.length; i++) {
+			LoopbackNetwork network = new LoopbackNetwork();
+			BasicCoapChannelManager serverManager = new BasicCoapChannelManager(network);
+			NetworkConfig config = new NetworkConfig();
+			config.setCallbackMode(modes[i]);
+			serverManager.setNetworkConfig(config);
+			serverManager.createServerListener(new BlockingServer(delay), SERVER_PORT);
+
+			/* warm up the JIT before the measured run */
+			AtomicInteger failed = new AtomicInteger(0);
+			run(network, clients, Math.max(1, requests / 10), failed);
+			failed.set(0);
+			long nanos = run(network, clients, requests, failed);
+			double throughput = (double) clients * requests * TimeUnit.SECONDS.toNanos(1) / nanos;
+			System.out.printf("%-15s  %10.0f  %6d%n", modes[i], throughput, failed.get());
+
+			serverManager.stop();
+		}
+	}
+
+	/**
+	 * Runs all clients at once and waits until they received all responses.
+	 *
+	 * @return the nanoseconds from the start until the last response
+	 */
+	private static long run(LoopbackNetwork network, int clients, int requests, AtomicInteger failed)
+			throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(clients);
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(new Client(network, requests, start, done, failed));
+			threads[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long nanos = System.nanoTime() - begin;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return nanos;
+	}
+
+	/**
+	 * Answers every request after blocking for a fixed time.
+	 */
+	private static class BlockingServer implements CoapServer {
+
+		private final int delay;
+
+		BlockingServer(int delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public CoapServer onAccept(CoapRequest request) {
+			return this;
+		}
+
+		@Override
+		public void onRequest(CoapServerChannel channel, CoapRequest request) {
+			try {
+				Thread.sleep(this.delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			CoapResponse response = channel.createResponse(request, CoapResponseCode.Content_205);
+			response.setPayload(new CoapData("value", CoapMediaType.text_plain));
+			channel.sendMessage(response);
+		}
+
+		@Override
+		public void onSeparateResponseFailed(CoapServerChannel channel) {
+			// no separate responses
+		}
+
+		@Override
+		public void onReset(CoapRequest lastRequest) {
+			// nothing to clean up
+		}
+	}
+
+	/**
+	 * Sends the requests of one client on a channel manager of its own.
+	 */
+	private static class Client implements Runnable, CoapClient {
+
+		private final BasicCoapChannelManager manager;
+		private final CoapClientChannel channel;
+		private final int requests;
+		private final Semaphore outstanding = new Semaphore(1);
+		private final CountDownLatch start;
+		private final CountDownLatch done;
+		private final AtomicInteger failed;
+
+		Client(LoopbackNetwork network, int requests, CountDownLatch start, CountDownLatch done,
+				AtomicInteger failed) {
+			this.manager = new BasicCoapChannelManager(network);
+			this.channel = this.manager.connect(this, network.getAddress(), SERVER_PORT);
+			this.requests = requests;
+			this.start = start;
+			this.done = done;
+			this.failed = failed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.start.await();
+				for (int i = 0; i < this.requests; i++) {
+					this.outstanding.acquire();
+					this.channel.sendMessage(this.channel.createRequest(CoapRequestCode.GET, PATH, true));
+				}
+				/* wait for the last response */
+				this.outstanding.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				this.done.countDown();
+				this.manager.stop();
+			}
+		}
+
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			this.outstanding.release();
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// no multicast requests
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			this.failed.incrementAndGet();
+			this.outstanding.release();
+		}
+
+		@Override
+		public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+				boolean resetByServer) {
+			this.failed.incrementAndGet();
+			this.outstanding.release();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.LoopbackNetwork;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.rest.BasicCoapResource;
+import org.ws4d.coap.core.rest.CoapResourceServer;
+
+/**
+ * Measures the throughput of concurrent confirmable GET requests from one
+ * client channel manager to a CoapResourceServer. Both exchange their
+ * datagrams on a {@link LoopbackNetwork}, so the result shows the cost of the
+ * CoAP stack and not of the sockets. The client threads share the channel to
+ * the server, as requests of one client do, and each of them keeps a fixed
+ * number of requests outstanding. NSTART of the client is raised to the
+ * requests outstanding in total, otherwise the client would send them one
+ * after the other.<br>
+ * Usage: ConcurrentGetBenchmark [requests per thread] [outstanding requests
+ * per thread] [thread counts...]
+ */
+public class ConcurrentGetBenchmark implements CoapClient {
+
+	private static final int SERVER_PORT = 5683;
+	private static final String PATH = "/bench";
+
+	/** limits the requests in flight of all threads */
+	private Semaphore outstanding;
+
+	/** counts the responses and failures still to come */
+	private CountDownLatch remaining;
+
+	private final AtomicInteger failed = new AtomicInteger(0);
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int[] threadCounts = { 1, 2, 4, 8 };
+		if (args.length > 2) {
+			threadCounts = new int[args.length - 2];
+			for (int i = 0; i < threadCounts.length; i++) {
+				threadCounts[i] = Integer.parseInt(args[i + 2]);
+			}
+		}
+
+		LoopbackNetwork network = new LoopbackNetwork();
+		BasicCoapChannelManager serverManager = new BasicCoapChannelManager(network);
+		CoapResourceServer server = new CoapResourceServer(serverManager);
+		server.start(SERVER_PORT);
+		server.createResource(new BasicCoapResource(PATH, "value", CoapMediaType.text_plain));
+		BasicCoapChannelManager clientManager = new BasicCoapChannelManager(network);
+		NetworkConfig clientConfig = new NetworkConfig();
+		ConcurrentGetBenchmark benchmark = new ConcurrentGetBenchmark();
+		CoapClientChannel channel = clientManager.connect(benchmark, network.getAddress(), SERVER_PORT);
+
+		/* warm up the JIT before the measured runs */
+		clientConfig.setNstart(threadCounts[threadCounts.length - 1] * window);
+		clientManager.setNetworkConfig(clientConfig);
+		benchmark.run(channel, threadCounts[threadCounts.length - 1], requests, window);
+
+		System.out.println("threads  nstart  requests/s  failed  lost datagrams");
+		for (int threads : threadCounts) {
+			clientConfig.setNstart(threads * window);
+			clientManager.setNetworkConfig(clientConfig);
+			long lost = network.getLostDatagrams();
+			double throughput = benchmark.run(channel, threads, requests, window);
+			System.out.printf("%7d  %6d  %10.0f  %6d  %14d%n", threads, clientConfig.getNstart(), throughput,
+					benchmark.failed.get(), network.getLostDatagrams() - lost);
+		}
+
+		channel.close();
+		clientManager.stop();
+		serverManager.stop();
+	}
+
+	/**
+	 * Sends the requests of all threads and waits for their responses.
+	 * 
+	 * @return the requests per second
+	 */
+	private double run(final CoapClientChannel channel, int threads, final int requests, int window)
+			throws InterruptedException {
+		this.outstanding = new Semaphore(threads * window);
+		this.remaining = new CountDownLatch(threads * requests);
+		this.failed.set(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int n = 0; n < requests; n++) {
+							ConcurrentGetBenchmark.this.outstanding.acquire();
+							channel.sendMessage(channel.createRequest(CoapRequestCode.GET, PATH, true));
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			workers[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		this.remaining.await();
+		long nanos = System.nanoTime() - begin;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return (double) threads * requests * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private void completed() {
+		this.outstanding.release();
+		this.remaining.countDown();
+	}
+
+	@Override
+	public void onResponse(CoapClientChannel channel, CoapResponse response) {
+		completed();
+	}
+
+	@Override
+	public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress, int srcPort) {
+		// no multicast requests
+	}
+
+	@Override
+	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+		this.failed.incrementAndGet();
+		completed();
+	}
+
+	@Override
+	public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+			boolean resetByServer) {
+		this.failed.incrementAndGet();
+		completed();
+	}
+}
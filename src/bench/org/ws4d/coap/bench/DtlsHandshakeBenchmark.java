@@ -0,0 +1,204 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.ws4d.coap.core.CoapClientAdapter;
+import org.ws4d.coap.core.CoapServer;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.DtlsCoapSocketHandler;
+import org.ws4d.coap.core.connection.LoopbackNetwork;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.connection.api.CoapServerChannel;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.rest.CoapData;
+
+/**
+ * Measures the latency of the first GET request to a coaps server with a full
+ * DTLS handshake, with a resumed handshake and on an established session.
+ * Client and server exchange their datagrams on a {@link LoopbackNetwork}.
+ * Every full handshake uses a new SSLContext on the client, so its session
+ * cache is empty. The resumed handshakes reuse the SSLContext with a new
+ * socket handler, like a client after the channel manager was restarted. The
+ * handshake counters of the socket handlers show which kind of handshake
+ * actually ran.<br>
+ * The server certificate is read from a PKCS12 key store that also serves as
+ * trust store of the client, e.g. created with: keytool -genkeypair -keyalg
+ * EC -alias bench -dname CN=localhost -storetype PKCS12 -keystore bench.p12
+ * -storepass secret<br>
+ * Usage: DtlsHandshakeBenchmark key store [password] [handshakes]
+ */
+public class DtlsHandshakeBenchmark extends CoapClientAdapter {
+
+	private static final int SERVER_PORT = 5684;
+	private static final String HOST = "localhost";
+	private static final String PATH = "/bench";
+	private static final int RESPONSE_TIMEOUT_S = 20;
+
+	private volatile CountDownLatch response;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: DtlsHandshakeBenchmark key store [password] [handshakes]");
+			return;
+		}
+		char[] password = (args.length > 1 ? args[1] : "secret").toCharArray();
+		int handshakes = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			keyStore.load(in, password);
+		} finally {
+			in.close();
+		}
+
+		LoopbackNetwork network = new LoopbackNetwork();
+		BasicCoapChannelManager serverManager = new BasicCoapChannelManager(network);
+		serverManager.setDtlsContext(createContext(keyStore, password));
+		serverManager.createSecureServerListener(new BenchServer(), SERVER_PORT);
+		BasicCoapChannelManager clientManager = new BasicCoapChannelManager(network);
+		DtlsHandshakeBenchmark benchmark = new DtlsHandshakeBenchmark();
+
+		/* warm up the JIT before the measured runs */
+		for (int i = 0; i < handshakes; i++) {
+			benchmark.run(network, clientManager, createContext(keyStore, password), 1, new long[2]);
+		}
+
+		System.out.println("handshake    ms per GET  handshakes  resumed");
+		long[] counters = new long[2];
+		double nanos = 0;
+		for (int i = 0; i < handshakes; i++) {
+			nanos += benchmark.run(network, clientManager, createContext(keyStore, password), 1, counters);
+		}
+		print("full", nanos / handshakes, counters);
+
+		SSLContext context = createContext(keyStore, password);
+		/* the session to resume */
+		benchmark.run(network, clientManager, context, 1, new long[2]);
+		counters = new long[2];
+		nanos = 0;
+		for (int i = 0; i < handshakes; i++) {
+			nanos += benchmark.run(network, clientManager, context, 1, counters);
+		}
+		print("resumed", nanos / handshakes, counters);
+
+		/* the first request includes the handshake, the others do not */
+		counters = new long[2];
+		nanos = benchmark.run(network, clientManager, context, handshakes + 1, counters);
+		print("established", nanos / (handshakes + 1), counters);
+
+		clientManager.stop();
+		serverManager.stop();
+	}
+
+	private static void print(String name, double nanos, long[] counters) {
+		System.out.printf("%-11s  %10.2f  %10d  %7d%n", name, nanos / TimeUnit.MILLISECONDS.toNanos(1), counters[0],
+				counters[1]);
+	}
+
+	private static SSLContext createContext(KeyStore keyStore, char[] password) throws Exception {
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		SSLContext context = SSLContext.getInstance(DtlsCoapSocketHandler.PROTOCOL);
+		context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+		return context;
+	}
+
+	/**
+	 * Connects a new socket handler to the server and sends GET requests one
+	 * after the other. Adds the completed and the resumed handshakes of the
+	 * socket handler to counters.
+	 *
+	 * @return the nanoseconds from connecting until the last response
+	 */
+	private long run(LoopbackNetwork network, BasicCoapChannelManager manager, SSLContext context, int requests,
+			long[] counters) throws Exception {
+		DtlsCoapSocketHandler handler = new DtlsCoapSocketHandler(manager, network.open(0, false, false,
+				manager.getNetworkConfig()), context, false);
+		try {
+			long begin = System.nanoTime();
+			CoapClientChannel channel = handler.connect(this, HOST, network.getAddress(), SERVER_PORT);
+			for (int i = 0; i < requests; i++) {
+				this.response = new CountDownLatch(1);
+				channel.sendMessage(channel.createRequest(CoapRequestCode.GET, PATH, true));
+				if (!this.response.await(RESPONSE_TIMEOUT_S, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("no response, failed handshakes " + handler.getFailedHandshakes());
+				}
+			}
+			long nanos = System.nanoTime() - begin;
+			counters[0] += handler.getHandshakes();
+			counters[1] += handler.getResumedHandshakes();
+			channel.close();
+			return nanos;
+		} finally {
+			handler.close();
+		}
+	}
+
+	@Override
+	public void onResponse(CoapClientChannel channel, CoapResponse response) {
+		this.response.countDown();
+	}
+
+	@Override
+	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+		// the request times out
+	}
+
+	/**
+	 * Answers every request with a short payload.
+	 */
+	private static class BenchServer implements CoapServer {
+
+		@Override
+		public CoapServer onAccept(CoapRequest request) {
+			return this;
+		}
+
+		@Override
+		public void onRequest(CoapServerChannel channel, CoapRequest request) {
+			CoapResponse response = channel.createResponse(request, CoapResponseCode.Content_205);
+			response.setPayload(new CoapData("value", CoapMediaType.text_plain));
+			channel.sendMessage(response);
+		}
+
+		@Override
+		public void onSeparateResponseFailed(CoapServerChannel channel) {
+			// no separate responses
+		}
+
+		@Override
+		public void onReset(CoapRequest lastRequest) {
+			// nothing to clean up
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.messages.CoapHeaderOption;
+import org.ws4d.coap.core.messages.CoapHeaderOptions;
+
+/**
+ * Compares {@link CoapHeaderOptions} with the sorted Vector the option
+ * container used before. Both build, query, serialize and parse the options
+ * of a request with 10 to 20 options: host, port, a path segment per
+ * remaining option, two queries, content format, accept and block2 in the
+ * order a request is built, then observe and an ETag that are inserted in
+ * front. Each lookup phase asks for ten option types, three of them missing.
+ * <br>
+ * Usage: HeaderOptionsBenchmark [messages] [rounds] [option counts...]
+ */
+public class HeaderOptionsBenchmark {
+
+	/** the options without the path segments */
+	private static final int FIXED_OPTIONS = 9;
+
+	private static final CoapHeaderOptionType[] LOOKUPS = { CoapHeaderOptionType.Uri_Host,
+			CoapHeaderOptionType.Uri_Port, CoapHeaderOptionType.Content_Format, CoapHeaderOptionType.Accept,
+			CoapHeaderOptionType.Block2, CoapHeaderOptionType.Block1, CoapHeaderOptionType.Observe,
+			CoapHeaderOptionType.Size2, CoapHeaderOptionType.Etag, CoapHeaderOptionType.Max_Age };
+
+	/** results of the measured code, so the JIT can not drop it */
+	private static long sink = 0;
+
+	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int[] optionCounts = { 10, 15, 20 };
+		if (args.length > 2) {
+			optionCounts = new int[args.length - 2];
+			for (int i = 0; i < optionCounts.length; i++) {
+				optionCounts[i] = Integer.parseInt(args[i + 2]);
+			}
+		}
+
+		/* warm up the JIT before the measured rounds */
+		for (int i = 0; i < 3; i++) {
+			for (int count : optionCounts) {
+				CoapHeaderOption[] options = createOptions(count);
+				runArray(options, messages, new long[4]);
+				runVector(options, messages, new long[4]);
+			}
+		}
+
+		System.out.println(messages + " messages per round, ns per message");
+		System.out.println("options  container            build  lookup  serialize   parse    total");
+		for (int count : optionCounts) {
+			CoapHeaderOption[] options = createOptions(count);
+			long[] array = new long[4];
+			long[] vector = new long[4];
+			for (int i = 0; i < rounds; i++) {
+				runArray(options, messages, array);
+				runVector(options, messages, vector);
+			}
+			print(count, "CoapHeaderOptions", array, (long) messages * rounds);
+			print(count, "Vector", vector, (long) messages * rounds);
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static void print(int count, String name, long[] nanos, long messages) {
+		System.out.printf("%7d  %-17s  %7.1f  %6.1f  %9.1f  %6.1f  %7.1f%n", count, name,
+				(double) nanos[0] / messages, (double) nanos[1] / messages, (double) nanos[2] / messages,
+				(double) nanos[3] / messages, (double) (nanos[0] + nanos[1] + nanos[2] + nanos[3]) / messages);
+	}
+
+	/**
+	 * @return The options of a request in the order they are added.
+	 */
+	private static CoapHeaderOption[] createOptions(int count) {
+		if (count <= FIXED_OPTIONS) {
+			throw new IllegalArgumentException("at least " + (FIXED_OPTIONS + 1) + " options");
+		}
+		CoapHeaderOption[] options = new CoapHeaderOption[count];
+		int i = 0;
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Uri_Host, "sensor.example.com".getBytes());
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Uri_Port, new byte[] { 0x16, 0x33 });
+		for (int segment = 0; segment < count - FIXED_OPTIONS; segment++) {
+			options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Uri_Path, ("segment" + segment).getBytes());
+		}
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Uri_Query, "unit=celsius".getBytes());
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Uri_Query, "precision=2".getBytes());
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Content_Format, new byte[] { 50 });
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Accept, new byte[] { 50 });
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Block2, new byte[] { 0x06 });
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Observe, new byte[0]);
+		options[i++] = new CoapHeaderOption(CoapHeaderOptionType.Etag, new byte[] { 1, 2, 3, 4 });
+		return options;
+	}
+
+	/**
+	 * Adds the nanoseconds of the build, lookup, serialize and parse phases to
+	 * nanos.
+	 */
+	private static void runArray(CoapHeaderOption[] options, int messages, long[] nanos) {
+		CoapHeaderOptions[] built = new CoapHeaderOptions[messages];
+		byte[][] serialized = new byte[messages][];
+		long result = 0;
+
+		long begin = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			CoapHeaderOptions headerOptions = new CoapHeaderOptions();
+			for (CoapHeaderOption option : options) {
+				headerOptions.addOption(option);
+			}
+			built[m] = headerOptions;
+		}
+		long builtTime = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			for (CoapHeaderOptionType type : LOOKUPS) {
+				if (built[m].getOption(type) != null) {
+					result++;
+				}
+			}
+		}
+		long lookedUp = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			serialized[m] = built[m].serialize();
+		}
+		long serializedTime = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			byte[] data = serialized[m];
+			result += new CoapHeaderOptions(ByteBuffer.wrap(data), 0, data.length).getOptionCount();
+		}
+		long end = System.nanoTime();
+		check(options, built[0].serialize(), result, messages);
+
+		nanos[0] += builtTime - begin;
+		nanos[1] += lookedUp - builtTime;
+		nanos[2] += serializedTime - lookedUp;
+		nanos[3] += end - serializedTime;
+	}
+
+	/**
+	 * Adds the nanoseconds of the build, lookup, serialize and parse phases to
+	 * nanos.
+	 */
+	private static void runVector(CoapHeaderOption[] options, int messages, long[] nanos) {
+		VectorOptions[] built = new VectorOptions[messages];
+		byte[][] serialized = new byte[messages][];
+		long result = 0;
+
+		long begin = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			VectorOptions headerOptions = new VectorOptions();
+			for (CoapHeaderOption option : options) {
+				headerOptions.addOption(option);
+			}
+			built[m] = headerOptions;
+		}
+		long builtTime = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			for (CoapHeaderOptionType type : LOOKUPS) {
+				if (built[m].getOption(type) != null) {
+					result++;
+				}
+			}
+		}
+		long lookedUp = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			serialized[m] = built[m].serialize();
+		}
+		long serializedTime = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			byte[] data = serialized[m];
+			result += new VectorOptions(data, 0, data.length).getOptionCount();
+		}
+		long end = System.nanoTime();
+		check(options, built[0].serialize(), result, messages);
+
+		nanos[0] += builtTime - begin;
+		nanos[1] += lookedUp - builtTime;
+		nanos[2] += serializedTime - lookedUp;
+		nanos[3] += end - serializedTime;
+	}
+
+	/**
+	 * Checks that both containers produce the same bytes and found the same
+	 * options.
+	 */
+	private static void check(CoapHeaderOption[] options, byte[] serialized, long result, int messages) {
+		CoapHeaderOptions expected = new CoapHeaderOptions();
+		for (CoapHeaderOption option : options) {
+			expected.addOption(option);
+		}
+		if (!Arrays.equals(expected.serialize(), serialized)) {
+			throw new IllegalStateException("the containers serialized different options");
+		}
+		long found = (long) messages * (LOOKUPS.length - 3 + options.length);
+		if (result != found) {
+			throw new IllegalStateException(result + " options found, expected " + found);
+		}
+		sink += result;
+	}
+
+	/**
+	 * The option container before the sorted array, without the methods the
+	 * benchmark does not use.
+	 */
+	private static class VectorOptions {
+		private Vector<CoapHeaderOption> headerOptions = new Vector<CoapHeaderOption>();
+
+		VectorOptions() {
+			/* creates empty header options */
+		}
+
+		VectorOptions(byte[] bytes, int offset, int length) {
+			int lastOptionNumber = 0;
+			int optionOffset = offset;
+			while (optionOffset < length && bytes[optionOffset] != -1) {
+				CoapHeaderOption option = new CoapHeaderOption(bytes, optionOffset, lastOptionNumber);
+				lastOptionNumber = option.getOptionTypeValue();
+				optionOffset += option.getDeserializedLength();
+				addOption(option);
+			}
+		}
+
+		CoapHeaderOption getOption(CoapHeaderOptionType optionType) {
+			for (CoapHeaderOption headerOption : this.headerOptions) {
+				if (headerOption.getOptionTypeValue() == optionType.getValue()) {
+					return headerOption;
+				}
+			}
+			return null;
+		}
+
+		void addOption(CoapHeaderOption option) {
+			this.headerOptions.add(option);
+			Collections.sort(this.headerOptions);
+		}
+
+		int getOptionCount() {
+			return this.headerOptions.size();
+		}
+
+		byte[] serialize() {
+			int length = 0;
+			int lastOptionNumber = 0;
+			for (CoapHeaderOption option : this.headerOptions) {
+				length += option.getSerializeLength(lastOptionNumber);
+				lastOptionNumber = option.getOptionTypeValue();
+			}
+
+			byte[] data = new byte[length];
+			int arrayIndex = 0;
+			lastOptionNumber = 0;
+			for (CoapHeaderOption headerOption : this.headerOptions) {
+				byte[] opt = headerOption.serializeOption(lastOptionNumber);
+				for (int i = 0; i < opt.length; i++) {
+					data[arrayIndex++] = opt[i];
+				}
+				lastOptionNumber = headerOption.getOptionTypeValue();
+			}
+			return data;
+		}
+	}
+}
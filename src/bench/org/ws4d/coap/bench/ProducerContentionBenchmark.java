@@ -0,0 +1,155 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.NetworkConfig;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.BasicCoapSocketHandler;
+import org.ws4d.coap.core.connection.LoopbackNetwork;
+import org.ws4d.coap.core.connection.OverloadPolicy;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.BasicCoapResponse;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+
+/**
+ * Measures the submission of messages to the worker thread of one socket
+ * handler by many producer threads at once. The producers send NON messages
+ * to a port of a {@link LoopbackNetwork} nobody is bound to, so the run
+ * covers the outbound queue, the wakeups of the worker and the encoding, but
+ * no receiver. The result shows how many submissions per second the handler
+ * takes and how many selector wakeups they caused.<br>
+ * Usage: ProducerContentionBenchmark [messages per thread] [thread
+ * counts...]
+ */
+public class ProducerContentionBenchmark implements CoapClient {
+
+	/** a port nobody is bound to, its datagrams are counted as lost */
+	private static final int SINK_PORT = 9;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int[] threadCounts = { 1, 2, 4, 8, 16 };
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 0; i < threadCounts.length; i++) {
+				threadCounts[i] = Integer.parseInt(args[i + 1]);
+			}
+		}
+
+		LoopbackNetwork network = new LoopbackNetwork();
+		NetworkConfig config = new NetworkConfig();
+		/* the sink never answers, NON messages to it must not be paced */
+		config.setProbingRate(Double.MAX_VALUE);
+		/* producers wait for space instead of failing */
+		config.setOverloadPolicy(OverloadPolicy.BLOCK);
+		BasicCoapChannelManager manager = new BasicCoapChannelManager(network);
+		manager.setNetworkConfig(config);
+		BasicCoapSocketHandler handler = new BasicCoapSocketHandler(manager, network.open(0, false, false, config),
+				config);
+		CoapClientChannel channel = handler.connect(new ProducerContentionBenchmark(), network.getAddress(),
+				SINK_PORT);
+
+		/* warm up the JIT before the measured runs */
+		run(handler, network, channel, threadCounts[threadCounts.length - 1], messages);
+
+		System.out.println("threads  messages/s  wakeups  wakeups per 1000 messages");
+		for (int threads : threadCounts) {
+			long wakeups = handler.getSendWakeups();
+			double throughput = run(handler, network, channel, threads, messages);
+			wakeups = handler.getSendWakeups() - wakeups;
+			System.out.printf("%7d  %10.0f  %7d  %25.1f%n", threads, throughput, wakeups,
+					wakeups * 1000.0 / ((long) threads * messages));
+		}
+
+		channel.close();
+		handler.close();
+		manager.stop();
+	}
+
+	/**
+	 * Submits the messages of all threads and waits until the worker sent them.
+	 *
+	 * @return the messages per second
+	 */
+	private static double run(final BasicCoapSocketHandler handler, LoopbackNetwork network,
+			final CoapClientChannel channel, int threads, final int messages) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final byte[] token = { 1, 2, 3, 4 };
+		long total = (long) threads * messages;
+		long sent = network.getSentDatagrams() + total;
+		Thread[] producers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			producers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int n = 0; n < messages; n++) {
+							BasicCoapResponse message = new BasicCoapResponse(CoapPacketType.NON,
+									CoapResponseCode.Content_205, n & 0xFFFF, token);
+							message.setChannel(channel);
+							handler.sendMessage(message);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			producers[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		/* the worker sends the rest of the queue */
+		while (network.getSentDatagrams() < sent) {
+			Thread.sleep(1);
+		}
+		long nanos = System.nanoTime() - begin;
+		return (double) total * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	@Override
+	public void onResponse(CoapClientChannel channel, CoapResponse response) {
+		// the sink does not answer
+	}
+
+	@Override
+	public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress, int srcPort) {
+		// no multicast requests
+	}
+
+	@Override
+	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+		// NON messages do not fail
+	}
+
+	@Override
+	public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+			boolean resetByServer) {
+		// no requests are sent
+	}
+}
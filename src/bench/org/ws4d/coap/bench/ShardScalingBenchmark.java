@@ -0,0 +1,182 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.UdpDatagramTransport;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.rest.BasicCoapResource;
+import org.ws4d.coap.core.rest.CoapResourceServer;
+
+/**
+ * Measures how the throughput of a CoapResourceServer scales with the number
+ * of socket shards of its port. The server and the clients exchange
+ * confirmable GET requests over real UDP sockets on the loopback interface.
+ * Every client has a channel manager and thus a source port of its own, so
+ * the kernel spreads the clients over the shards. Each client keeps a fixed
+ * number of requests outstanding.<br>
+ * Usage: ShardScalingBenchmark [requests per client] [outstanding requests
+ * per client] [clients] [shard counts...]
+ */
+public class ShardScalingBenchmark {
+
+	private static final int SERVER_PORT = 5683;
+	private static final String PATH = "/bench";
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int[] shardCounts = { 1, 2, 4 };
+		if (args.length > 3) {
+			shardCounts = new int[args.length - 3];
+			for (int i = 0; i < shardCounts.length; i++) {
+				shardCounts[i] = Integer.parseInt(args[i + 3]);
+			}
+		}
+		if (!UdpDatagramTransport.FACTORY.isReusePortSupported()) {
+			System.out.println("SO_REUSEPORT is not supported, all shards share one socket");
+		}
+		System.out.println("available processors " + Runtime.getRuntime().availableProcessors() + ", " + clients
+				+ " clients");
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+		System.out.println(" shards  requests/s  failed");
+		for (int i = 0; i < shardCounts.length; i++) {
+			/* a port of its own for every run, the sockets of the last one may linger */
+			int port = SERVER_PORT + i;
+			BasicCoapChannelManager serverManager = new BasicCoapChannelManager(UdpDatagramTransport.FACTORY);
+			CoapResourceServer server = new CoapResourceServer(serverManager);
+			server.start(port, shardCounts[i]);
+			server.createResource(new BasicCoapResource(PATH, "value", CoapMediaType.text_plain));
+
+			/* warm up the JIT and the sockets before the measured run */
+			AtomicInteger failed = new AtomicInteger(0);
+			run(address, port, clients, requests, window, failed);
+			failed.set(0);
+			long nanos = run(address, port, clients, requests, window, failed);
+			double throughput = (double) clients * requests * TimeUnit.SECONDS.toNanos(1) / nanos;
+			System.out.printf("%7d  %10.0f  %6d%n", shardCounts[i], throughput, failed.get());
+
+			serverManager.stop();
+		}
+	}
+
+	/**
+	 * Runs all clients at once and waits until they received all responses.
+	 * 
+	 * @return the nanoseconds from the start until the last response
+	 */
+	private static long run(InetAddress address, int port, int clients, int requests, int window,
+			AtomicInteger failed) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(clients);
+		Client[] runs = new Client[clients];
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			runs[i] = new Client(address, port, requests, window, start, done, failed);
+			threads[i] = new Thread(runs[i]);
+			threads[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long nanos = System.nanoTime() - begin;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return nanos;
+	}
+
+	/**
+	 * Sends the requests of one client on a channel manager of its own.
+	 */
+	private static class Client implements Runnable, CoapClient {
+
+		private final BasicCoapChannelManager manager = new BasicCoapChannelManager(UdpDatagramTransport.FACTORY);
+		private final CoapClientChannel channel;
+		private final int requests;
+		private final int window;
+		private final Semaphore outstanding;
+		private final CountDownLatch start;
+		private final CountDownLatch done;
+		private final AtomicInteger failed;
+
+		Client(InetAddress address, int port, int requests, int window, CountDownLatch start, CountDownLatch done,
+				AtomicInteger failed) {
+			this.channel = this.manager.connect(this, address, port);
+			this.requests = requests;
+			this.window = window;
+			this.outstanding = new Semaphore(window);
+			this.start = start;
+			this.done = done;
+			this.failed = failed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.start.await();
+				for (int i = 0; i < this.requests; i++) {
+					this.outstanding.acquire();
+					this.channel.sendMessage(this.channel.createRequest(CoapRequestCode.GET, PATH, true));
+				}
+				/* wait for the last responses */
+				this.outstanding.acquire(this.window);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				this.done.countDown();
+				this.manager.stop();
+			}
+		}
+
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			this.outstanding.release();
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// no multicast requests
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			this.failed.incrementAndGet();
+			this.outstanding.release();
+		}
+
+		@Override
+		public void onRequestFailed(CoapClientChannel channel, CoapRequest request, boolean notReachable,
+				boolean resetByServer) {
+			this.failed.incrementAndGet();
+			this.outstanding.release();
+		}
+	}
+}
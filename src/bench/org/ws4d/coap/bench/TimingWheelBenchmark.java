@@ -0,0 +1,204 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.bench;
+
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.ws4d.coap.core.tools.TimingWheel;
+
+/**
+ * Compares the {@link TimingWheel} of the retransmission timers with the
+ * PriorityBlockingQueue of TimeoutObjects the socket handler used before. Both
+ * run the workload of the worker thread on a simulated clock: all timers are
+ * scheduled with a deadline within the initial ACK timeout, most of them are
+ * confirmed before they expire and the clock then advances tick by tick until
+ * the remaining ones expired. The queue cannot cancel a timer, confirmed
+ * messages are skipped when they are polled as the handler did.<br>
+ * Usage: TimingWheelBenchmark [timers] [confirmed percent] [rounds]
+ */
+public class TimingWheelBenchmark {
+
+	/* the values of the socket handler */
+	private static final int TICK_MS = 10;
+	private static final int WHEEL_SIZE = 512;
+	private static final int ACK_TIMEOUT = 2000;
+	private static final double ACK_RANDOM_FACTOR = 1.5;
+
+	public static void main(String[] args) {
+		int timers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int confirmed = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		Timer[] nodes = new Timer[timers];
+		Random random = new Random(42);
+		for (int i = 0; i < timers; i++) {
+			nodes[i] = new Timer(ACK_TIMEOUT + random.nextInt((int) (ACK_TIMEOUT * (ACK_RANDOM_FACTOR - 1))),
+					random.nextInt(100) < confirmed);
+		}
+
+		/* warm up the JIT before the measured rounds */
+		for (int i = 0; i < 3; i++) {
+			runWheel(nodes, new long[3]);
+			runQueue(nodes, new long[3]);
+		}
+
+		System.out.println(timers + " timers, " + confirmed + "% confirmed, ns per timer");
+		System.out.println("structure            schedule    cancel    expire     total");
+		long[] wheel = new long[3];
+		long[] queue = new long[3];
+		for (int i = 0; i < rounds; i++) {
+			runWheel(nodes, wheel);
+			runQueue(nodes, queue);
+		}
+		print("TimingWheel", wheel, (long) timers * rounds);
+		print("PriorityBlockingQueue", queue, (long) timers * rounds);
+	}
+
+	private static void print(String name, long[] nanos, long timers) {
+		System.out.printf("%-21s %8.1f  %8.1f  %8.1f  %8.1f%n", name, (double) nanos[0] / timers,
+				(double) nanos[1] / timers, (double) nanos[2] / timers,
+				(double) (nanos[0] + nanos[1] + nanos[2]) / timers);
+	}
+
+	/**
+	 * Adds the nanoseconds of the schedule, cancel and expire phases to nanos.
+	 */
+	private static void runWheel(Timer[] nodes, long[] nanos) {
+		long now = 0;
+		TimingWheel<Timer> wheel = new TimingWheel<Timer>(WHEEL_SIZE, TICK_MS, now);
+
+		long begin = System.nanoTime();
+		for (Timer node : nodes) {
+			wheel.schedule(node, now + node.timeout);
+		}
+		long scheduled = System.nanoTime();
+		for (Timer node : nodes) {
+			if (node.confirmed) {
+				wheel.cancel(node);
+			}
+		}
+		long cancelled = System.nanoTime();
+		int expired = 0;
+		while (wheel.size() > 0) {
+			now += TICK_MS;
+			Timer node = wheel.poll(now);
+			while (node != null) {
+				expired++;
+				node = wheel.poll(now);
+			}
+		}
+		long end = System.nanoTime();
+		check(nodes, expired);
+
+		nanos[0] += scheduled - begin;
+		nanos[1] += cancelled - scheduled;
+		nanos[2] += end - cancelled;
+	}
+
+	/**
+	 * Adds the nanoseconds of the schedule, cancel and expire phases to nanos.
+	 */
+	private static void runQueue(Timer[] nodes, long[] nanos) {
+		long now = 0;
+		PriorityBlockingQueue<TimeoutObject<Timer>> queue = new PriorityBlockingQueue<TimeoutObject<Timer>>();
+		for (Timer node : nodes) {
+			node.completed = false;
+		}
+
+		long begin = System.nanoTime();
+		for (Timer node : nodes) {
+			queue.add(new TimeoutObject<Timer>(node, now + node.timeout));
+		}
+		long scheduled = System.nanoTime();
+		for (Timer node : nodes) {
+			if (node.confirmed) {
+				node.completed = true;
+			}
+		}
+		long cancelled = System.nanoTime();
+		int expired = 0;
+		while (!queue.isEmpty()) {
+			now += TICK_MS;
+			TimeoutObject<Timer> tObj = queue.peek();
+			while (tObj != null && tObj.getExpire() <= now) {
+				queue.poll();
+				if (!tObj.getObject().completed) {
+					expired++;
+				}
+				tObj = queue.peek();
+			}
+		}
+		long end = System.nanoTime();
+		check(nodes, expired);
+
+		nanos[0] += scheduled - begin;
+		nanos[1] += cancelled - scheduled;
+		nanos[2] += end - cancelled;
+	}
+
+	private static void check(Timer[] nodes, int expired) {
+		int unconfirmed = 0;
+		for (Timer node : nodes) {
+			if (!node.confirmed) {
+				unconfirmed++;
+			}
+		}
+		if (expired != unconfirmed) {
+			throw new IllegalStateException(expired + " timers expired, expected " + unconfirmed);
+		}
+	}
+
+	/**
+	 * The timer of a CON message.
+	 */
+	private static class Timer extends TimingWheel.Timeout {
+		final int timeout;
+		final boolean confirmed;
+		boolean completed;
+
+		Timer(int timeout, boolean confirmed) {
+			this.timeout = timeout;
+			this.confirmed = confirmed;
+		}
+	}
+
+	/**
+	 * The queue entry of the socket handler before the timing wheel.
+	 */
+	private static class TimeoutObject<T> implements Comparable<TimeoutObject<?>> {
+		private long expires;
+		private T object;
+
+		public TimeoutObject(T object, long expires) {
+			this.expires = expires;
+			this.object = object;
+		}
+
+		public T getObject() {
+			return this.object;
+		}
+
+		public long getExpire() {
+			return this.expires;
+		}
+
+		@Override
+		public int compareTo(TimeoutObject<?> o) {
+			return (int) (this.expires - o.expires);
+		}
+	}
+}
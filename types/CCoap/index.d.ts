@@ -25,6 +25,29 @@ interface CCoapDiscoveredDevice {
     resources: string;
 }
 
+interface CCoapConfig {
+    ackTimeout?: number;
+    ackRandomFactor?: number;
+    maxRetransmit?: number;
+    nstart?: number;
+    probingRate?: number;
+    minRto?: number;
+    maxRto?: number;
+    exchangeLifetime?: number;
+    maxDatagramSize?: number;
+    receiveBufferSize?: number;
+    sendBufferSize?: number;
+    receiveBatchBudget?: number;
+    outboundQueueSize?: number;
+    overloadPolicy?: string;
+    dispatchThreads?: number;
+    dispatchQueueSize?: number;
+    deduplicationCapacity?: number;
+    callbackMode?: string;
+    maxReceiveBlockSize?: number;
+    maxSendBlockSize?: number;
+}
+
 interface CCoapInterface {
     get(uri: string): Promise<CCoapResponse>;
     post(uri: string, payload: string | Uint8Array): Promise<CCoapResponse>;
@@ -32,6 +55,8 @@ interface CCoapInterface {
     delete(uri: string): Promise<CCoapResponse>;
     discover(timeout?: number): Promise<CCoapDiscoveredDevice[]>;
     request(req: CCoapRequest): Promise<CCoapResponse>;
+    isWritable(): Promise<boolean>;
+    configure(config: CCoapConfig): Promise<void>;
 }
 
 declare var CCoap: CCoapInterface;
\ No newline at end of file
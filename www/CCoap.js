@@ -56,6 +56,18 @@ class CCoap {
     });
   }
 
+  isWritable() {
+    return new Promise(function (resolve, reject) {
+      exec(resolve, reject, 'CCoap', 'isWritable', []);
+    });
+  }
+
+  configure(config) {
+    return new Promise(function (resolve, reject) {
+      exec(resolve, reject, 'CCoap', 'configure', [config]);
+    });
+  }
+
   request(req) {
     return new Promise(function (resolve, reject) {
       exec(resolve, reject, 'CCoap', 'request', [req])